@@ -0,0 +1,370 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Label users on demand, by a saved {@link Model} kept in memory.
+ *
+ * The server listens on the loopback interface only:
+ * - GET /classify?lang=...&location=...&utc_offset=...&timezone=... returns the country of the user
+ *      (missing parameters are treated as missing values; the location is stemmed as when storing).
+ * - GET /stats returns the counters of the server, as JSON:
+ *      latency percentiles and throughput are measured over the last {@value #WINDOW} lookups.
+ *
+ * Concurrent lookups are handed over to a dedicated scorer thread in micro-batches:
+ * a batch is scored once full, or once its first lookup has waited for the batch interval.
+ * Batching saves the hand-offs, not the scoring: the model is locked (and the scorer woken up)
+ * once per batch, but its users are classified one by one, see {@link Model#classifyAll(List)}.
+ */
+class ClassificationServer {
+    private final static Logger logger = LogManager.getLogger(ClassificationServer.class.getSimpleName());
+
+    public final static int DEFAULT_PORT = 8080;
+    public final static int DEFAULT_THREADS = 16;
+    public final static int DEFAULT_BATCH_SIZE = 64;
+    public final static long DEFAULT_BATCH_INTERVAL = 2;  // ms
+
+    private final static String CLASSIFY_PATH = "/classify";
+    private final static String STATS_PATH = "/stats";
+    private final static String CHARSET = "UTF-8";
+
+    /**
+     * The lookup parameters, and the attributes of the user they map to.
+     */
+    private final static String[] PARAMETERS = {"lang", "location", "utc_offset", "timezone"};
+    private final static String[] ATTRIBUTES = {Storage.LANG, Storage.LOCATION, Storage.UTC_OFFSET, Storage.TIMEZONE};
+
+    /**
+     * The number of recent lookups the statistics are measured over.
+     */
+    private final static int WINDOW = 10000;
+
+    /**
+     * How often (ms) a lookup checks that the scorer is still there while waiting for its country.
+     */
+    private final static long LOOKUP_POLL = 100;
+
+    private final Model model;
+    private final int batchSize;
+    private final long batchIntervalNanos;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final BlockingQueue<Lookup> queue = new LinkedBlockingQueue<>();
+    private final Thread scorer;
+    private volatile boolean running = true;
+
+    /**
+     * The latencies (ns) and the end times (ns) of the last lookups, in a ring.
+     */
+    private final long[] latencies = new long[WINDOW];
+    private final long[] endTimes = new long[WINDOW];
+    private long lookups = 0;
+    private long errors = 0;
+    private long batches = 0;
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Build the server.
+     *
+     * @param model         the model labeling the users.
+     * @param port          the port the server listens on; 0 for any free port.
+     * @param threads       the number of threads handling the requests.
+     * @param batchSize     the maximum number of lookups scored at once.
+     * @param batchInterval the maximum time (ms) a lookup waits for its batch to be filled.
+     * @throws IOException if the server can't listen on the port.
+     */
+    public ClassificationServer(Model model, int port, int threads, int batchSize, long batchInterval)
+            throws IOException {
+        assert (model != null && threads > 0 && batchSize > 0 && batchInterval >= 0);
+
+        this.model = model;
+        this.batchSize = batchSize;
+        this.batchIntervalNanos = TimeUnit.MILLISECONDS.toNanos(batchInterval);
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.handlers = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(this.handlers);
+        this.server.createContext(CLASSIFY_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                classify(exchange);
+            }
+        });
+        this.server.createContext(STATS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "application/json", stats());
+            }
+        });
+
+        this.scorer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                score();
+            }
+        }, ClassificationServer.class.getSimpleName() + "-scorer");
+    }
+
+    /**
+     * A user waiting to be labeled.
+     */
+    private static final class Lookup {
+        private final Map<String, Object> user;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private String country = null;
+
+        Lookup(Map<String, Object> user) {
+            this.user = user;
+        }
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Start serving.
+     */
+    public void start() {
+        this.scorer.start();
+        this.server.start();
+        logger.info("Serving on http://{}:{}{} (and {}).",
+                this.server.getAddress().getHostString(), this.server.getAddress().getPort(),
+                CLASSIFY_PATH, STATS_PATH);
+    }
+
+    /**
+     * Parse the query string of a request.
+     *
+     * @param query the raw query string, or null.
+     * @return the parameters by name.
+     * @throws IOException on decoding error.
+     */
+    private static Map<String, String> parameters(String query) throws IOException {
+        final Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+
+        for (String pair : query.split("&")) {
+            final int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, separator), CHARSET),
+                        URLDecoder.decode(pair.substring(separator + 1), CHARSET));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Handle a lookup: queue it for the scorer, and wait for its country.
+     *
+     * @param exchange the request.
+     * @throws IOException on response error.
+     */
+    private void classify(HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "text/plain", "Only GET is supported.\n");
+            return;
+        }
+
+        final Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+        final Map<String, Object> user = new HashMap<>();
+        for (int i = 0; i < PARAMETERS.length; i++) {
+            final String value = parameters.get(PARAMETERS[i]);
+            if (value != null && !value.isEmpty()) {
+                user.put(ATTRIBUTES[i], value);
+            }
+        }
+        if (user.containsKey(Storage.LOCATION)) {
+            user.put(Storage.LOCATION, Storage.stemLocation((String) user.get(Storage.LOCATION)));
+        }
+
+        final Lookup lookup = new Lookup(user);
+        try {
+            if (!this.running) {
+                throw new InterruptedException("Server stopped.");
+            }
+            this.queue.put(lookup);
+            /* If the server stopped meanwhile, the scorer may be gone before the lookup was queued. */
+            while (!lookup.done.await(LOOKUP_POLL, TimeUnit.MILLISECONDS)) {
+                if (!this.scorer.isAlive()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.record(start, lookup.country != null);
+        if (lookup.country != null) {
+            respond(exchange, 200, "text/plain", lookup.country + "\n");
+        } else {
+            respond(exchange, 500, "text/plain", "The user could not be labeled.\n");
+        }
+    }
+
+    /**
+     * Scorer loop: collect lookups until the batch is full
+     * or its first lookup has waited for the batch interval, then score them at once.
+     */
+    private void score() {
+        final List<Lookup> batch = new ArrayList<>(this.batchSize);
+        final List<Map<String, Object>> users = new ArrayList<>(this.batchSize);
+
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                final Lookup first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                final long deadline = System.nanoTime() + this.batchIntervalNanos;
+                while (batch.size() < this.batchSize) {
+                    final Lookup lookup = this.queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (lookup == null) {
+                        break;
+                    }
+                    batch.add(lookup);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            for (Lookup lookup : batch) {
+                users.add(lookup.user);
+            }
+            final String[] countries = this.model.classifyAll(users);
+            for (int i = 0; i < batch.size(); i++) {
+                final Lookup lookup = batch.get(i);
+                lookup.country = countries[i];
+                lookup.done.countDown();
+            }
+
+            synchronized (this) {
+                this.batches++;
+            }
+            batch.clear();
+            users.clear();
+        }
+
+        // Don't leave anybody waiting.
+        Lookup lookup;
+        while ((lookup = this.queue.poll()) != null) {
+            lookup.done.countDown();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String contentType, String body)
+            throws IOException {
+        final byte[] bytes = body.getBytes(CHARSET);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=" + CHARSET);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Account for a completed lookup, before answering it.
+     *
+     * @param start the time (ns) the lookup arrived.
+     * @param ok    false if the lookup failed.
+     */
+    private synchronized void record(long start, boolean ok) {
+        final long end = System.nanoTime();
+        final int slot = (int) (this.lookups % WINDOW);
+        this.latencies[slot] = end - start;
+        this.endTimes[slot] = end;
+        this.lookups++;
+        if (!ok) {
+            this.errors++;
+        }
+    }
+
+    /**
+     * @return the counters of the server, as JSON.
+     */
+    public String stats() {
+        final long[] latencies;
+        final long first;
+        final long last;
+        final long lookups;
+        final long errors;
+        final long batches;
+        synchronized (this) {
+            final int size = (int) Math.min(this.lookups, WINDOW);
+            latencies = Arrays.copyOf(this.latencies, size);
+            lookups = this.lookups;
+            errors = this.errors;
+            batches = this.batches;
+            last = size > 0 ? this.endTimes[(int) ((lookups - 1) % WINDOW)] : 0;
+            first = size > 0 ? this.endTimes[(int) ((lookups - size) % WINDOW)] : 0;
+        }
+
+        Arrays.sort(latencies);
+        final double throughput = latencies.length > 1 && last > first ?
+                (latencies.length - 1) * 1e9 / (last - first) : 0;
+
+        return String.format(Locale.ROOT,
+                "{\"lookups\": %d, \"errors\": %d, \"batches\": %d, \"mean_batch_size\": %.2f, " +
+                        "\"p50_ms\": %.3f, \"p99_ms\": %.3f, \"throughput\": %.1f, \"uptime_s\": %d}\n",
+                lookups, errors, batches, batches > 0 ? (double) lookups / batches : 0,
+                percentile(latencies, 0.5) / 1e6, percentile(latencies, 0.99) / 1e6, throughput,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - this.startTime));
+    }
+
+    /**
+     * @param sorted some sorted values.
+     * @param rank   the rank of the percentile, between 0 and 1.
+     * @return the percentile (nearest rank), 0 if there are no values.
+     */
+    static long percentile(long[] sorted, double rank) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(rank * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Stop accepting lookups, answer the pending ones and stop serving.
+     *
+     * @throws InterruptedException if interrupted while waiting for the scorer.
+     */
+    public void stop() throws InterruptedException {
+        this.server.stop(1);
+        this.running = false;
+        this.scorer.join();
+        this.handlers.shutdown();
+        logger.info("Stopped serving: {}", this.stats().trim());
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import twitter4j.StatusListener;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Statuses read from a file of statuses (one JSON per line),
+ * or from the segments of a {@link Journal} directory.
+ */
+class FileSource extends ThreadedSource {
+    private final static Logger logger = LogManager.getLogger(FileSource.class.getSimpleName());
+
+    private final File path;
+    private long malformed = 0;
+
+    /**
+     * @param path a file of statuses, or a journal directory.
+     */
+    public FileSource(String path) {
+        assert (path != null);
+        this.path = new File(path);
+    }
+
+    @Override
+    protected void run(StatusListener listener) throws IOException {
+        final File[] files = this.path.isDirectory() ? Journal.segments(this.path) : new File[]{this.path};
+        for (File file : files) {
+            if (!this.isRunning()) {
+                break;
+            }
+
+            logger.info("Reading statuses from {}.", file);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), Journal.CHARSET))) {
+                String line;
+                while (this.isRunning() && (line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+
+                    try {
+                        this.deliver(listener, TwitterObjectFactory.createStatus(line));
+                    } catch (TwitterException e) {
+                        logger.debug("Skipping malformed status.", e);
+                        this.malformed++;
+                    }
+                }
+            }
+        }
+
+        if (this.malformed > 0) {
+            logger.warn("Skipped {} malformed statuses.", this.malformed);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%s)", FileSource.class.getSimpleName(), this.path);
+    }
+}
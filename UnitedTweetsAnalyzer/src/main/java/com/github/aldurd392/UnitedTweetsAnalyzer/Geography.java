@@ -1,8 +1,19 @@
 package com.github.aldurd392.UnitedTweetsAnalyzer;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Location;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.ItemVisitor;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -17,6 +28,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Handle the interactions with the Geography system.
@@ -25,9 +38,34 @@ import java.util.*;
  * against the polygons it contains.
  */
 class Geography {
+    private final static Logger logger = LogManager.getLogger(Geography.class.getSimpleName());
+
     private static final String DATASTORE_TYPE = "url";
     private static final String STATE_NAME = "NAME";
 
+    /**
+     * Upper bound to the grid resolution (cells per side).
+     * 4096 * 4096 cells take 32MB.
+     */
+    public static final int MAX_GRID_RESOLUTION = 4096;
+
+    /**
+     * Grid cells that are not fully inside a polygon are marked as follows.
+     */
+    private static final short GRID_OUTSIDE = -1;
+    private static final short GRID_BOUNDARY = -2;
+
+    /**
+     * While classifying a cell we slightly enlarge it (relatively to its size),
+     * so that rounding errors in mapping a point to its cell can't lead to wrong answers.
+     */
+    private static final double GRID_TOLERANCE = 1e-6;
+
+    /**
+     * Looking up the factory is expensive, we do it once.
+     */
+    private static final GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+
     /**
      * We indicate with UNKNOWN that the position
      * doesn't lie within any of the shapefile polygons.
@@ -37,14 +75,71 @@ class Geography {
     public static final String UNKNOWN_COUNTRY = "UNKNOWN";
 
     /**
-     * We'll store here the MultiPolygon extracted from the shapefile
-     * in addition to their label (i.e. the country name).
+     * The identifier of {@link #UNKNOWN_COUNTRY}, see {@link #getCountry(int)}.
+     */
+    public static final int UNKNOWN_COUNTRY_ID = 0;
+
+    /**
+     * Batch queries are split in tasks of (at most) this many points.
+     */
+    static final int BATCH_THRESHOLD = 4096;
+
+    /**
+     * The pool running the batch queries.
+     * Its threads are started on demand.
+     */
+    static final ForkJoinPool batchPool = new ForkJoinPool();
+
+    /**
+     * We'll store here the distinct labels of the polygons extracted from the shapefile
+     * (i.e. the country names), starting from {@link #UNKNOWN_COUNTRY}.
+     * The position of a country in this array is its identifier.
+     */
+    final private String[] countries;
+
+    /**
+     * We'll store here the polygons, indexed for fast repeated point-in-polygon tests,
+     * and the identifier of the country labelling each of them.
+     */
+    final private IndexedPointInAreaLocator[] polygons;
+    final private int[] polygonCountries;
+
+    /**
+     * An R-tree over the polygons envelopes, containing their indexes.
+     * A query only tests the few polygons whose bounding box contains the point,
+     * so that it costs O(log n) instead of O(n):
+     * this matters when loading county-level or world-wide shapefiles.
+     */
+    final private STRtree index;
+
+    /**
+     * An optional grid over {@link Constants#envelopeBox}, pre-classifying its cells.
+     * Each cell contains the index of the polygon that fully contains it,
+     * {@link #GRID_OUTSIDE} if it doesn't intersect any polygon,
+     * or {@link #GRID_BOUNDARY} otherwise.
+     * Most of the points fall deep inside a polygon:
+     * we need the exact geometry tests only for the boundary cells.
      *
-     * Queries costs O(n).
-     * But in our case n is small (USA has ~50 states), so it's a good
-     * trade-off between memory and time.
+     * Cells are stored by row, null if the grid is disabled.
      */
-    final private List<Map.Entry<String, MultiPolygon>> polygons;
+    final private short[] grid;
+    final private int gridResolution;
+    final private double cellWidth;
+    final private double cellHeight;
+
+    /**
+     * Each thread gets its own lookup state,
+     * so that queries don't build a point, an envelope and a visitor each.
+     *
+     * The rest of the Geography is never modified after construction:
+     * it is safely shared by concurrent queries.
+     */
+    final private ThreadLocal<Lookup> lookups = new ThreadLocal<Lookup>() {
+        @Override
+        protected Lookup initialValue() {
+            return new Lookup();
+        }
+    };
 
 
     /**
@@ -53,6 +148,180 @@ class Geography {
      * @throws IOException if can't open the shapefile path or any IO error occur.
      */
     public Geography(String filePath) throws IOException {
+        this(filePath, 0);
+    }
+
+    /**
+     * Create the Geography object.
+     * @param filePath the path to a shapefile object,
+     *                 or to its snapshot (see {@link GeographySnapshot}).
+     * @param gridResolution the number of cells per side of the pre-classification grid.
+     *                       If &lt;= 0, the grid is disabled.
+     * @throws IOException if can't open the shapefile path or any IO error occur.
+     */
+    public Geography(String filePath, int gridResolution) throws IOException {
+        this(Geography.loadPolygons(filePath), gridResolution);
+    }
+
+    /**
+     * Create the Geography object from a list of labeled polygons.
+     * @param polygons the polygons and their labels (i.e. the country names).
+     * @param gridResolution the number of cells per side of the pre-classification grid.
+     *                       If &lt;= 0, the grid is disabled.
+     */
+    Geography(List<Map.Entry<String, MultiPolygon>> polygons, int gridResolution) {
+        this.polygons = new IndexedPointInAreaLocator[polygons.size()];
+        this.polygonCountries = new int[polygons.size()];
+        this.index = new STRtree();
+
+        final Map<String, Integer> countries = new LinkedHashMap<>();
+        countries.put(UNKNOWN_COUNTRY, UNKNOWN_COUNTRY_ID);
+
+        for (int i = 0; i < polygons.size(); i++) {
+            final Map.Entry<String, MultiPolygon> entry = polygons.get(i);
+            final MultiPolygon polygon = entry.getValue();
+
+            Integer country = countries.get(entry.getKey());
+            if (country == null) {
+                country = countries.size();
+                countries.put(entry.getKey(), country);
+            }
+
+            this.polygonCountries[i] = country;
+            this.polygons[i] = new IndexedPointInAreaLocator(polygon);
+            /*
+             * The locator builds its index lazily on the first query:
+             * we trigger it here, so that queries never modify it.
+             */
+            this.polygons[i].locate(polygon.getEnvelopeInternal().centre());
+            this.index.insert(polygon.getEnvelopeInternal(), i);
+        }
+
+        this.index.build();
+        this.countries = countries.keySet().toArray(new String[countries.size()]);
+
+        if (gridResolution > MAX_GRID_RESOLUTION) {
+            logger.warn("Grid resolution {} is too high. Falling back to: {}", gridResolution, MAX_GRID_RESOLUTION);
+            gridResolution = MAX_GRID_RESOLUTION;
+        }
+        if (gridResolution > 0 && polygons.size() > Short.MAX_VALUE) {
+            logger.warn("Too many polygons ({}) for the pre-classification grid. Disabling it.", polygons.size());
+            gridResolution = 0;
+        }
+
+        this.gridResolution = gridResolution;
+        this.cellWidth = gridResolution > 0 ? Constants.envelopeBox.getWidth() / gridResolution : 0;
+        this.cellHeight = gridResolution > 0 ? Constants.envelopeBox.getHeight() / gridResolution : 0;
+        this.grid = gridResolution > 0 ? this.buildGrid(polygons) : null;
+    }
+
+    /**
+     * Pre-classify each cell of the grid.
+     * @param polygons the polygons we've been built from.
+     * @return the grid cells, by row.
+     */
+    private short[] buildGrid(List<Map.Entry<String, MultiPolygon>> polygons) {
+        final PreparedGeometryFactory preparedGeometryFactory = new PreparedGeometryFactory();
+        final PreparedGeometry[] prepared = new PreparedGeometry[polygons.size()];
+        for (int i = 0; i < prepared.length; i++) {
+            prepared[i] = preparedGeometryFactory.create(polygons.get(i).getValue());
+        }
+
+        final short[] grid = new short[this.gridResolution * this.gridResolution];
+        final double minX = Constants.envelopeBox.getMinX();
+        final double minY = Constants.envelopeBox.getMinY();
+
+        int boundaries = 0;
+        final Envelope cell = new Envelope();
+        for (int row = 0; row < this.gridResolution; row++) {
+            for (int column = 0; column < this.gridResolution; column++) {
+                cell.init(
+                        minX + column * this.cellWidth, minX + (column + 1) * this.cellWidth,
+                        minY + row * this.cellHeight, minY + (row + 1) * this.cellHeight
+                );
+                cell.expandBy(this.cellWidth * GRID_TOLERANCE, this.cellHeight * GRID_TOLERANCE);
+
+                final short value = this.classifyCell(cell, prepared);
+                grid[row * this.gridResolution + column] = value;
+                if (value == GRID_BOUNDARY) {
+                    boundaries++;
+                }
+            }
+        }
+
+        logger.info("Built a {}x{} pre-classification grid, {} boundary cells out of {}.",
+                this.gridResolution, this.gridResolution, boundaries, grid.length);
+        return grid;
+    }
+
+    /**
+     * Classify a grid cell.
+     * A cell is inside a polygon only if no other polygon intersects it,
+     * so that overlapping polygons are left to the exact test.
+     * @param cell the cell envelope.
+     * @param prepared our polygons, prepared for the geometric tests.
+     * @return the index of the polygon properly containing the cell,
+     * {@link #GRID_OUTSIDE} or {@link #GRID_BOUNDARY}.
+     */
+    private short classifyCell(Envelope cell, PreparedGeometry[] prepared) {
+        final List<?> candidates = this.index.query(cell);
+        if (candidates.isEmpty()) {
+            return GRID_OUTSIDE;
+        }
+
+        final Geometry rectangle = Geography.geometryFactory.toGeometry(cell);
+        short inside = GRID_OUTSIDE;
+        for (Object candidate : candidates) {
+            final int i = (Integer) candidate;
+            if (!prepared[i].intersects(rectangle)) {
+                continue;
+            }
+
+            if (inside != GRID_OUTSIDE || !prepared[i].containsProperly(rectangle)) {
+                return GRID_BOUNDARY;
+            }
+            inside = (short) i;
+        }
+
+        return inside;
+    }
+
+    /**
+     * Map a point inside the envelope box to its grid cell.
+     * @param x the point longitude.
+     * @param y the point latitude.
+     * @return the content of the grid cell.
+     */
+    private short gridCell(double x, double y) {
+        int column = (int) ((x - Constants.envelopeBox.getMinX()) / this.cellWidth);
+        int row = (int) ((y - Constants.envelopeBox.getMinY()) / this.cellHeight);
+
+        column = Math.max(0, Math.min(column, this.gridResolution - 1));
+        row = Math.max(0, Math.min(row, this.gridResolution - 1));
+
+        return this.grid[row * this.gridResolution + column];
+    }
+
+    /**
+     * Load the labeled polygons contained in a shapefile or in its snapshot.
+     * @param filePath the path to a shapefile object,
+     *                 or to its snapshot (see {@link GeographySnapshot}).
+     * @return the polygons and their labels (i.e. the country names), in shapefile order.
+     * @throws IOException if can't open the shapefile path or any IO error occur.
+     */
+    static List<Map.Entry<String, MultiPolygon>> loadPolygons(String filePath) throws IOException {
+        return GeographySnapshot.isSnapshot(filePath) ?
+                GeographySnapshot.read(filePath) :
+                Geography.loadShapefile(filePath);
+    }
+
+    /**
+     * Load the labeled polygons contained in a shapefile.
+     * @param filePath the path to a shapefile object.
+     * @return the polygons and their labels (i.e. the country names), in shapefile order.
+     * @throws IOException if can't open the shapefile path or any IO error occur.
+     */
+    static List<Map.Entry<String, MultiPolygon>> loadShapefile(String filePath) throws IOException {
         final File file = new File(filePath);
         final Map<String, Serializable> map = new HashMap<>(1);
         map.put(DATASTORE_TYPE, file.toURI().toURL());
@@ -81,7 +350,7 @@ class Geography {
                 polygons.add(new AbstractMap.SimpleImmutableEntry<>(name, polygon));
             }
 
-            this.polygons = Collections.unmodifiableList(polygons);
+            return polygons;
         } finally {
             if (iterator != null) {
                 iterator.close();
@@ -99,23 +368,156 @@ class Geography {
      * @return the name of the coordinate state or UNKNOWN if not found.
      */
     public String query(Coordinate coordinate) {
-        final Point point = JTSFactoryFinder.getGeometryFactory().createPoint(coordinate);
+        return this.query(coordinate.x, coordinate.y);
+    }
+
+    /**
+     * Query the polygons in our geography to find the country of the input coordinate.
+     * This builds no JTS geometry, so it allocates few objects
+     * (only the small ones of the point-in-polygon tests).
+     * @param longitude the longitude of the coordinate that needs to be queried.
+     * @param latitude the latitude of the coordinate that needs to be queried.
+     * @return the name of the coordinate state or UNKNOWN if not found.
+     */
+    public String query(double longitude, double latitude) {
+        return this.countries[this.queryId(longitude, latitude)];
+    }
 
+    /**
+     * Query the polygons in our geography to find the country of the input coordinate.
+     * This builds no JTS geometry, so it allocates few objects
+     * (only the small ones of the point-in-polygon tests).
+     * @param longitude the longitude of the coordinate that needs to be queried.
+     * @param latitude the latitude of the coordinate that needs to be queried.
+     * @return the identifier of the coordinate state or {@link #UNKNOWN_COUNTRY_ID} if not found.
+     */
+    public int queryId(double longitude, double latitude) {
         /** Before trying to locate the country,
          * we make sure that the point lies within
          * the specified bounding box.
          */
-        if (!Geography.isInsideEnvelope(point)) {
-            return UNKNOWN_COUNTRY;
+        if (!Geography.isInsideEnvelope(longitude, latitude)) {
+            return UNKNOWN_COUNTRY_ID;
+        }
+
+        if (this.grid != null) {
+            final short cell = this.gridCell(longitude, latitude);
+            if (cell == GRID_OUTSIDE) {
+                return UNKNOWN_COUNTRY_ID;
+            } else if (cell != GRID_BOUNDARY) {
+                return this.polygonCountries[cell];
+            }
         }
 
-        for (Map.Entry<String, MultiPolygon> entry : this.polygons) {
-            if (entry.getValue().contains(point)) {
-                return entry.getKey();
+        final int found = this.lookups.get().locate(longitude, latitude);
+        return found < 0 ? UNKNOWN_COUNTRY_ID : this.polygonCountries[found];
+    }
+
+    /**
+     * Query a batch of coordinates, in parallel.
+     * @param longitudes the longitudes of the coordinates that need to be queried.
+     * @param latitudes the latitudes of the coordinates that need to be queried.
+     * @return the identifiers of the coordinates states, see {@link #getCountry(int)}.
+     */
+    public int[] queryIds(double[] longitudes, double[] latitudes) {
+        assert longitudes.length == latitudes.length;
+
+        final int[] countries = new int[longitudes.length];
+        batchPool.invoke(new BatchQuery(this, longitudes, latitudes, countries, 0, countries.length));
+        return countries;
+    }
+
+    /**
+     * @param id a country identifier, as returned by {@link #queryId(double, double)}.
+     * @return the name of the country.
+     */
+    public String getCountry(int id) {
+        return this.countries[id];
+    }
+
+    /**
+     * @return the number of distinct countries (UNKNOWN included).
+     */
+    public int getCountriesCount() {
+        return this.countries.length;
+    }
+
+    /**
+     * Recursively split a batch query, until it's small enough
+     * to be executed sequentially.
+     */
+    private static final class BatchQuery extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Geography geography;
+        private final double[] longitudes;
+        private final double[] latitudes;
+        private final int[] countries;
+        private final int from;
+        private final int to;
+
+        BatchQuery(Geography geography, double[] longitudes, double[] latitudes,
+                   int[] countries, int from, int to) {
+            this.geography = geography;
+            this.longitudes = longitudes;
+            this.latitudes = latitudes;
+            this.countries = countries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= BATCH_THRESHOLD) {
+                for (int i = this.from; i < this.to; i++) {
+                    this.countries[i] = this.geography.queryId(this.longitudes[i], this.latitudes[i]);
+                }
+            } else {
+                final int middle = (this.from + this.to) >>> 1;
+                invokeAll(
+                        new BatchQuery(this.geography, this.longitudes, this.latitudes, this.countries, this.from, middle),
+                        new BatchQuery(this.geography, this.longitudes, this.latitudes, this.countries, middle, this.to)
+                );
             }
         }
+    }
+
+    /**
+     * The state of a lookup: it finds the polygon containing a point.
+     * Only the polygons whose envelope contains the point are tested.
+     * If many polygons contain it, we honour the shapefile order,
+     * as a linear scan would do.
+     *
+     * Instances are reused by their thread, across lookups.
+     */
+    private final class Lookup implements ItemVisitor {
+        private final Coordinate coordinate = new Coordinate();
+        private final Envelope envelope = new Envelope();
+        private int found;
+
+        /**
+         * @param x the point longitude.
+         * @param y the point latitude.
+         * @return the index of the polygon containing the point, or -1 if not found.
+         */
+        int locate(double x, double y) {
+            this.coordinate.x = x;
+            this.coordinate.y = y;
+            this.envelope.init(x, x, y, y);
+            this.found = -1;
+
+            Geography.this.index.query(this.envelope, this);
+            return this.found;
+        }
 
-        return UNKNOWN_COUNTRY;
+        @Override
+        public void visitItem(Object item) {
+            final int i = (Integer) item;
+            if ((this.found < 0 || i < this.found) &&
+                    Geography.this.polygons[i].locate(this.coordinate) == Location.INTERIOR) {
+                this.found = i;
+            }
+        }
     }
 
     /**
@@ -124,7 +526,17 @@ class Geography {
      * @return True if p is within the envelopeBox.
      */
     public static boolean isInsideEnvelope(Point p) {
-        return Constants.envelopeBox.contains(p.getX(), p.getY());
+        return isInsideEnvelope(p.getX(), p.getY());
+    }
+
+    /**
+     * Check if a coordinate is inside the Constant envelopeBox.
+     * @param longitude the coordinate longitude.
+     * @param latitude the coordinate latitude.
+     * @return True if the coordinate is within the envelopeBox.
+     */
+    public static boolean isInsideEnvelope(double longitude, double latitude) {
+        return Constants.envelopeBox.contains(longitude, latitude);
     }
 
     /**
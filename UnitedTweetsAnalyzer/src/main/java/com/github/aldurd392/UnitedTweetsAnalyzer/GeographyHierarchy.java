@@ -0,0 +1,238 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A hierarchy of geographies, e.g. countries, then states, then counties.
+ *
+ * Each level is loaded from its own shapefile.
+ * Lookups are cascaded: once a point has been located at a level,
+ * only the children of the matched polygon are searched at the finer level.
+ * A single level hierarchy behaves as its {@link Geography}.
+ */
+class GeographyHierarchy {
+    private final static Logger logger = LogManager.getLogger(GeographyHierarchy.class.getSimpleName());
+
+    /**
+     * Separates the shapefile paths of the different levels, coarse to fine.
+     */
+    public static final String PATH_SEPARATOR = ",";
+
+    /**
+     * A node of the hierarchy: a geography and, for each of its countries,
+     * the node containing the polygons lying within it at the finer level.
+     */
+    private static final class Node {
+        final Geography geography;
+        final Node[] children;
+
+        Node(Geography geography) {
+            this.geography = geography;
+            this.children = new Node[geography.getCountriesCount()];
+        }
+    }
+
+    private final Node root;
+    private final int levels;
+
+    /**
+     * Load the hierarchy.
+     * @param paths a list of shapefile (or snapshot) paths, coarse to fine,
+     *              separated by {@link #PATH_SEPARATOR}.
+     * @param gridResolution the resolution of the pre-classification grid of the coarse level,
+     *                       see {@link Geography#Geography(List, int)}.
+     * @return the hierarchy.
+     * @throws IOException if can't open a shapefile path or any IO error occur.
+     */
+    public static GeographyHierarchy load(String paths, int gridResolution) throws IOException {
+        final List<List<Map.Entry<String, MultiPolygon>>> levels = new ArrayList<>();
+        for (String path : paths.split(PATH_SEPARATOR)) {
+            levels.add(Geography.loadPolygons(path.trim()));
+        }
+
+        return new GeographyHierarchy(levels, gridResolution);
+    }
+
+    /**
+     * Build the hierarchy.
+     * Each polygon is attached to the polygon of the coarser level
+     * containing its interior point.
+     * @param levels the labeled polygons of each level, coarse to fine.
+     * @param gridResolution the resolution of the pre-classification grid of the coarse level.
+     */
+    GeographyHierarchy(List<List<Map.Entry<String, MultiPolygon>>> levels, int gridResolution) {
+        assert !levels.isEmpty();
+
+        this.levels = levels.size();
+        this.root = new Node(new Geography(levels.get(0), gridResolution));
+
+        for (int level = 1; level < levels.size(); level++) {
+            final Map<Node, Map<Integer, List<Map.Entry<String, MultiPolygon>>>> groups = new IdentityHashMap<>();
+            int orphans = 0;
+
+            for (Map.Entry<String, MultiPolygon> entry : levels.get(level)) {
+                final Point point = entry.getValue().getInteriorPoint();
+
+                /* Descend to the parent level. */
+                Node parent = this.root;
+                int parentCountry = parent.geography.queryId(point.getX(), point.getY());
+                for (int l = 1; l < level && parentCountry != Geography.UNKNOWN_COUNTRY_ID; l++) {
+                    parent = parent.children[parentCountry];
+                    parentCountry = parent == null ?
+                            Geography.UNKNOWN_COUNTRY_ID :
+                            parent.geography.queryId(point.getX(), point.getY());
+                }
+
+                if (parentCountry == Geography.UNKNOWN_COUNTRY_ID) {
+                    orphans++;
+                    continue;
+                }
+
+                Map<Integer, List<Map.Entry<String, MultiPolygon>>> siblings = groups.get(parent);
+                if (siblings == null) {
+                    siblings = new HashMap<>();
+                    groups.put(parent, siblings);
+                }
+                List<Map.Entry<String, MultiPolygon>> children = siblings.get(parentCountry);
+                if (children == null) {
+                    children = new ArrayList<>();
+                    siblings.put(parentCountry, children);
+                }
+                children.add(entry);
+            }
+
+            for (Map.Entry<Node, Map<Integer, List<Map.Entry<String, MultiPolygon>>>> group : groups.entrySet()) {
+                for (Map.Entry<Integer, List<Map.Entry<String, MultiPolygon>>> children : group.getValue().entrySet()) {
+                    group.getKey().children[children.getKey()] = new Node(new Geography(children.getValue(), 0));
+                }
+            }
+
+            if (orphans > 0) {
+                logger.warn("{} polygons of level {} don't lie within any polygon of the coarser level.",
+                        orphans, level);
+            }
+        }
+    }
+
+    /**
+     * @return the number of levels.
+     */
+    public int getLevels() {
+        return this.levels;
+    }
+
+    /**
+     * Locate a coordinate at each level.
+     * As {@link Geography#query(double, double)}, this allocates few objects.
+     * @param longitude the longitude of the coordinate that needs to be queried.
+     * @param latitude the latitude of the coordinate that needs to be queried.
+     * @param countries filled with the names of the country at each level, coarse to fine.
+     *                  Once a level is UNKNOWN, the finer ones are UNKNOWN too.
+     */
+    public void query(double longitude, double latitude, String[] countries) {
+        assert countries.length >= this.levels;
+
+        Node node = this.root;
+        for (int level = 0; level < this.levels; level++) {
+            if (node == null) {
+                countries[level] = Geography.UNKNOWN_COUNTRY;
+                continue;
+            }
+
+            final int country = node.geography.queryId(longitude, latitude);
+            countries[level] = node.geography.getCountry(country);
+            node = country == Geography.UNKNOWN_COUNTRY_ID ? null : node.children[country];
+        }
+    }
+
+    /**
+     * Locate a coordinate at each level.
+     * @param longitude the longitude of the coordinate that needs to be queried.
+     * @param latitude the latitude of the coordinate that needs to be queried.
+     * @return the names of the country at each level, coarse to fine.
+     */
+    public String[] query(double longitude, double latitude) {
+        final String[] countries = new String[this.levels];
+        this.query(longitude, latitude, countries);
+        return countries;
+    }
+
+    /**
+     * Locate a batch of coordinates at each level, in parallel.
+     * @param longitudes the longitudes of the coordinates that need to be queried.
+     * @param latitudes the latitudes of the coordinates that need to be queried.
+     * @return for each coordinate, the names of its country at each level, coarse to fine.
+     */
+    public String[][] query(double[] longitudes, double[] latitudes) {
+        assert longitudes.length == latitudes.length;
+
+        final String[][] countries = new String[longitudes.length][this.levels];
+        Geography.batchPool.invoke(new BatchQuery(this, longitudes, latitudes, countries, 0, countries.length));
+        return countries;
+    }
+
+    /**
+     * Recursively split a batch query, until it's small enough
+     * to be executed sequentially.
+     */
+    private static final class BatchQuery extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final GeographyHierarchy hierarchy;
+        private final double[] longitudes;
+        private final double[] latitudes;
+        private final String[][] countries;
+        private final int from;
+        private final int to;
+
+        BatchQuery(GeographyHierarchy hierarchy, double[] longitudes, double[] latitudes,
+                   String[][] countries, int from, int to) {
+            this.hierarchy = hierarchy;
+            this.longitudes = longitudes;
+            this.latitudes = latitudes;
+            this.countries = countries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= Geography.BATCH_THRESHOLD) {
+                for (int i = this.from; i < this.to; i++) {
+                    this.hierarchy.query(this.longitudes[i], this.latitudes[i], this.countries[i]);
+                }
+            } else {
+                final int middle = (this.from + this.to) >>> 1;
+                invokeAll(
+                        new BatchQuery(this.hierarchy, this.longitudes, this.latitudes, this.countries, this.from, middle),
+                        new BatchQuery(this.hierarchy, this.longitudes, this.latitudes, this.countries, middle, this.to)
+                );
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%d levels)", GeographyHierarchy.class.getSimpleName(), this.levels);
+    }
+
+    /**
+     * @param countries the names of the country at each level.
+     * @return a readable representation of the location.
+     */
+    public static String toString(String[] countries) {
+        return Arrays.toString(countries);
+    }
+}
@@ -0,0 +1,298 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary snapshot of the polygons of a shapefile.
+ *
+ * Opening a shapefile through GeoTools takes seconds and lots of transient heap.
+ * We compile it once in a flat layout that can be memory-mapped and
+ * turned back into polygons with a few bulk copies.
+ *
+ * The layout is (little endian, sections aligned to 8 bytes):
+ * - header: magic, version, number of polygons, parts, rings and coordinates (ints).
+ * - coordinates: x, y of each coordinate (doubles).
+ * - polygon offsets: index of the first part of each polygon, plus the parts count (ints).
+ * - part offsets: index of the first ring of each part, plus the rings count (ints).
+ *   The first ring of each part is its shell, the others are its holes.
+ * - ring offsets: index of the first coordinate of each ring, plus the coordinates count (ints).
+ * - names: length in bytes (int) and UTF-8 bytes of each polygon name;
+ *   a polygon without a name (i.e. a shapefile feature without a label) has length -1.
+ *
+ * We don't store the polygons envelopes: JTS computes them lazily,
+ * in a single pass over the coordinates we've just copied.
+ */
+class GeographySnapshot {
+    private final static Logger logger = LogManager.getLogger(GeographySnapshot.class.getSimpleName());
+
+    /**
+     * Snapshot files are recognized by their extension.
+     */
+    public final static String EXTENSION = ".geo";
+
+    private final static int MAGIC = 0x47415455;  // "UTAG"
+    private final static int VERSION = 1;
+    private final static int HEADER_SIZE = 6 * 4;
+    /**
+     * The name length of the polygons without a name.
+     */
+    private final static int NO_NAME = -1;
+
+    /**
+     * Snapshot polygons are backed by packed coordinate sequences, instead of Coordinate objects.
+     */
+    private final static GeometryFactory geometryFactory =
+            new GeometryFactory(PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+
+    /**
+     * Static class.
+     */
+    private GeographySnapshot() {
+    }
+
+    /**
+     * Check whether a path points to a snapshot.
+     * @param path the path to check.
+     * @return true if the path has the snapshot extension.
+     */
+    public static boolean isSnapshot(String path) {
+        return path.endsWith(EXTENSION);
+    }
+
+    /**
+     * Write a snapshot of labeled polygons.
+     * @param polygons the polygons and their labels (i.e. the country names); labels may be null.
+     * @param path the snapshot path.
+     * @throws IOException on write error.
+     */
+    public static void write(List<Map.Entry<String, MultiPolygon>> polygons, String path) throws IOException {
+        int parts = 0;
+        int rings = 0;
+        int coordinates = 0;
+        for (Map.Entry<String, MultiPolygon> entry : polygons) {
+            final MultiPolygon multiPolygon = entry.getValue();
+            parts += multiPolygon.getNumGeometries();
+
+            for (int p = 0; p < multiPolygon.getNumGeometries(); p++) {
+                final Polygon polygon = (Polygon) multiPolygon.getGeometryN(p);
+                rings += 1 + polygon.getNumInteriorRing();
+                coordinates += polygon.getNumPoints();
+            }
+        }
+
+        final int[] polygonOffsets = new int[polygons.size() + 1];
+        final int[] partOffsets = new int[parts + 1];
+        final int[] ringOffsets = new int[rings + 1];
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path))) {
+            final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+            writeInt(out, scratch, MAGIC);
+            writeInt(out, scratch, VERSION);
+            writeInt(out, scratch, polygons.size());
+            writeInt(out, scratch, parts);
+            writeInt(out, scratch, rings);
+            writeInt(out, scratch, coordinates);
+            long written = pad(out, HEADER_SIZE);
+
+            int part = 0;
+            int ring = 0;
+            int coordinate = 0;
+            for (int i = 0; i < polygons.size(); i++) {
+                final MultiPolygon multiPolygon = polygons.get(i).getValue();
+                polygonOffsets[i] = part;
+
+                for (int p = 0; p < multiPolygon.getNumGeometries(); p++) {
+                    final Polygon polygon = (Polygon) multiPolygon.getGeometryN(p);
+                    partOffsets[part++] = ring;
+
+                    for (int r = -1; r < polygon.getNumInteriorRing(); r++) {
+                        final LineString lineString = r < 0 ? polygon.getExteriorRing() : polygon.getInteriorRingN(r);
+                        ringOffsets[ring++] = coordinate;
+
+                        for (Coordinate c : lineString.getCoordinates()) {
+                            writeDouble(out, scratch, c.x);
+                            writeDouble(out, scratch, c.y);
+                            coordinate++;
+                        }
+                    }
+                }
+            }
+            polygonOffsets[polygons.size()] = part;
+            partOffsets[parts] = ring;
+            ringOffsets[rings] = coordinate;
+            written += 16L * coordinates;
+
+            for (int[] offsets : new int[][]{polygonOffsets, partOffsets, ringOffsets}) {
+                for (int offset : offsets) {
+                    writeInt(out, scratch, offset);
+                }
+                written = pad(out, written + 4L * offsets.length);
+            }
+
+            for (Map.Entry<String, MultiPolygon> entry : polygons) {
+                if (entry.getKey() == null) {
+                    writeInt(out, scratch, NO_NAME);
+                    continue;
+                }
+
+                final byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                writeInt(out, scratch, name.length);
+                out.write(name);
+            }
+        }
+
+        logger.info("Written snapshot {}: {} polygons, {} rings, {} coordinates.",
+                path, polygons.size(), rings, coordinates);
+    }
+
+    /**
+     * Load the labeled polygons of a snapshot, by memory-mapping it.
+     * @param path the snapshot path.
+     * @return the polygons and their labels (i.e. the country names, null if missing), in shapefile order.
+     * @throws IOException on read error or if the file is not a valid snapshot.
+     */
+    public static List<Map.Entry<String, MultiPolygon>> read(String path) throws IOException {
+        final MappedByteBuffer mapped;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+             FileChannel channel = file.getChannel()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException(path + " is not a geography snapshot");
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException(path + " has an unsupported snapshot version");
+        }
+
+        final int polygonsCount = buffer.getInt();
+        final int partsCount = buffer.getInt();
+        final int ringsCount = buffer.getInt();
+        final int coordinatesCount = buffer.getInt();
+
+        int position = align(HEADER_SIZE);
+        final DoubleBuffer coordinates = section(buffer, position).asDoubleBuffer();
+        position = align(position + 16 * coordinatesCount);
+
+        final IntBuffer polygonOffsets = section(buffer, position).asIntBuffer();
+        position = align(position + 4 * (polygonsCount + 1));
+        final IntBuffer partOffsets = section(buffer, position).asIntBuffer();
+        position = align(position + 4 * (partsCount + 1));
+        final IntBuffer ringOffsets = section(buffer, position).asIntBuffer();
+        position = align(position + 4 * (ringsCount + 1));
+
+        buffer.position(position);
+
+        final List<Map.Entry<String, MultiPolygon>> polygons = new ArrayList<>(polygonsCount);
+        for (int i = 0; i < polygonsCount; i++) {
+            final int firstPart = polygonOffsets.get(i);
+            final Polygon[] parts = new Polygon[polygonOffsets.get(i + 1) - firstPart];
+
+            for (int p = 0; p < parts.length; p++) {
+                final int firstRing = partOffsets.get(firstPart + p);
+                final LinearRing[] rings = new LinearRing[partOffsets.get(firstPart + p + 1) - firstRing];
+
+                for (int r = 0; r < rings.length; r++) {
+                    final int firstCoordinate = ringOffsets.get(firstRing + r);
+                    final double[] ring = new double[2 * (ringOffsets.get(firstRing + r + 1) - firstCoordinate)];
+
+                    coordinates.position(2 * firstCoordinate);
+                    coordinates.get(ring);
+                    rings[r] = geometryFactory.createLinearRing(new PackedCoordinateSequence.Double(ring, 2));
+                }
+
+                parts[p] = geometryFactory.createPolygon(rings[0], Arrays.copyOfRange(rings, 1, rings.length));
+            }
+
+            final int length = buffer.getInt();
+            String name = null;
+            if (length >= 0) {
+                final byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                name = new String(bytes, StandardCharsets.UTF_8);
+            } else if (length != NO_NAME) {
+                throw new IOException(path + " has an invalid name length " + length);
+            }
+
+            polygons.add(new AbstractMap.SimpleImmutableEntry<>(name, geometryFactory.createMultiPolygon(parts)));
+        }
+
+        logger.info("Loaded snapshot {}: {} polygons, {} rings, {} coordinates.",
+                path, polygonsCount, ringsCount, coordinatesCount);
+        return polygons;
+    }
+
+    /**
+     * @param buffer the whole snapshot.
+     * @param position the beginning of a section.
+     * @return a little endian view of the snapshot, starting at position.
+     */
+    private static ByteBuffer section(ByteBuffer buffer, int position) {
+        buffer.position(position);
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @param position a position in the snapshot.
+     * @return the first position, greater or equal, aligned to 8 bytes.
+     */
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    private static void writeInt(OutputStream out, ByteBuffer scratch, int value) throws IOException {
+        scratch.clear();
+        scratch.putInt(value);
+        out.write(scratch.array(), 0, 4);
+    }
+
+    private static void writeDouble(OutputStream out, ByteBuffer scratch, double value) throws IOException {
+        scratch.clear();
+        scratch.putDouble(value);
+        out.write(scratch.array(), 0, 8);
+    }
+
+    /**
+     * Pad the output with zeros, up to the next 8 bytes boundary.
+     * @param out the snapshot output.
+     * @param written the number of bytes written so far.
+     * @return the number of bytes written, after padding.
+     * @throws IOException on write error.
+     */
+    private static long pad(OutputStream out, long written) throws IOException {
+        while ((written & 7) != 0) {
+            out.write(0);
+            written++;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,436 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import twitter4j.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouple the Twitter stream from the Storage.
+ *
+ * The stream listener hands the statuses over to a bounded, lock-free queue,
+ * as flat records: see {@link TweetRecord}.
+ * Records are pooled, see {@link #acquire()}: once stored, they are reused.
+ * A dedicated writer thread drains it and stores the statuses in batches,
+ * each one committed within a single transaction.
+ * When the queue is full, new statuses are dropped (and counted)
+ * instead of stalling the stream.
+ *
+ * With a sharded storage, each shard gets its own queue and writer thread (a lane):
+ * statuses are routed by user, see {@link Storage#shardOf(long, int)}.
+ *
+ * Between the stream and the writers, a pool of workers prepares the statuses
+ * (stemming, geocoding), see {@link Storage#prepare(TweetRecord)}:
+ * the writers are left with the database writes only.
+ */
+class Ingester {
+    private final static Logger logger = LogManager.getLogger(Ingester.class.getSimpleName());
+
+    public final static int DEFAULT_QUEUE_SIZE = 10000;
+    public final static int DEFAULT_BATCH_SIZE = 500;
+    public final static long DEFAULT_FLUSH_INTERVAL = 1000;  // ms
+
+    /**
+     * How long the writer sleeps when it finds the queue empty.
+     */
+    private final static long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * How often the writer logs its counters.
+     */
+    private final static long STATS_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    private final Storage[] storages;
+    private final Lane[] lanes;
+
+    /**
+     * The statuses waiting to be prepared by the {@link #workers}.
+     * Each one has already reserved a slot in the depth of its lane.
+     */
+    private final ConcurrentLinkedQueue<TweetRecord> input = new ConcurrentLinkedQueue<>();
+    private final Thread[] workers;
+
+    /**
+     * The records ready to be reused.
+     * It can't grow past the records in flight, bounded by the queues capacity.
+     */
+    private final ConcurrentLinkedQueue<TweetRecord> pool = new ConcurrentLinkedQueue<>();
+
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+
+    private volatile boolean running = true;
+    private volatile boolean preparing = true;
+
+    /**
+     * If set, it learns from the stored tweets, see {@link #setLearner(OnlineLearner)}.
+     */
+    private OnlineLearner learner = null;
+
+    /**
+     * Build the ingester.
+     *
+     * @param storage       the storage in which statuses will be written.
+     * @param capacity      the maximum number of statuses waiting to be written.
+     * @param batchSize     the number of statuses committed within a single transaction.
+     * @param flushInterval the maximum time (ms) a status waits before being committed.
+     */
+    public Ingester(Storage storage, int capacity, int batchSize, long flushInterval) {
+        this(new Storage[]{storage}, capacity, batchSize, flushInterval);
+    }
+
+    /**
+     * Build the ingester over a sharded storage.
+     *
+     * @param storages      the storage shards in which statuses will be written.
+     * @param capacity      the maximum number of statuses waiting to be written, per shard.
+     * @param batchSize     the number of statuses committed within a single transaction.
+     * @param flushInterval the maximum time (ms) a status waits before being committed.
+     */
+    public Ingester(Storage[] storages, int capacity, int batchSize, long flushInterval) {
+        this(storages, capacity, batchSize, flushInterval, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Build the ingester over a sharded storage.
+     *
+     * @param storages      the storage shards in which statuses will be written.
+     * @param capacity      the maximum number of statuses waiting to be written, per shard.
+     * @param batchSize     the number of statuses committed within a single transaction.
+     * @param flushInterval the maximum time (ms) a status waits before being committed.
+     * @param workers       the number of threads preparing the statuses.
+     */
+    public Ingester(Storage[] storages, int capacity, int batchSize, long flushInterval, int workers) {
+        assert (storages != null && storages.length > 0);
+        assert (capacity > 0 && batchSize > 0 && flushInterval > 0 && workers > 0);
+
+        this.storages = storages;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+
+        this.lanes = new Lane[storages.length];
+        for (int i = 0; i < storages.length; i++) {
+            this.lanes[i] = new Lane(i, storages[i]);
+        }
+
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    prepare();
+                }
+            }, Ingester.class.getSimpleName() + "-worker-" + i);
+        }
+    }
+
+    /**
+     * Hand the stored tweets over to a learner, once their batch is committed.
+     * To be called before {@link #start()}.
+     *
+     * @param learner the learner.
+     */
+    public void setLearner(OnlineLearner learner) {
+        this.learner = learner;
+    }
+
+    /**
+     * Start the worker and writer threads.
+     */
+    public void start() {
+        for (Thread worker : this.workers) {
+            worker.start();
+        }
+        for (Lane lane : this.lanes) {
+            lane.writer.start();
+        }
+    }
+
+    /**
+     * Worker loop: prepare the statuses and hand them over to the writer of their lane.
+     * On shutdown, keep going until the input is empty.
+     */
+    private void prepare() {
+        while (this.running || !this.input.isEmpty()) {
+            final TweetRecord record = this.input.poll();
+            if (record == null) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            final Lane lane = this.laneOf(record);
+            try {
+                lane.storage.prepare(record);
+            } catch (RuntimeException e) {
+                /* Keep the worker alive, and give the slot back. */
+                logger.error("Error while preparing status {}, dropping it.", record.id, e);
+                lane.depth.decrementAndGet();
+                this.dropped.incrementAndGet();
+                this.release(record);
+                continue;
+            }
+            lane.queue.offer(record);
+        }
+    }
+
+    /**
+     * @param record a record.
+     * @return the lane of its user's shard.
+     */
+    private Lane laneOf(TweetRecord record) {
+        return this.lanes.length == 1 || !record.hasUser ?
+                this.lanes[0] :
+                this.lanes[Storage.shardOf(record.userId, this.lanes.length)];
+    }
+
+    /**
+     * Get a record to be filled, see {@link TweetRecord#set(Status)},
+     * and then handed over by {@link #offer(TweetRecord)}.
+     *
+     * @return a pooled record, or a new one.
+     */
+    public TweetRecord acquire() {
+        final TweetRecord record = this.pool.poll();
+        return record != null ? record : this.storages[0].newRecord();
+    }
+
+    /**
+     * Give a record back to the pool, see {@link #acquire()}.
+     * It mustn't be used any more.
+     *
+     * @param record the record.
+     */
+    private void release(TweetRecord record) {
+        record.clear();
+        this.pool.offer(record);
+    }
+
+    /**
+     * Hand a status over to the writer of its shard.
+     * This never blocks: if the queue is full the status is dropped.
+     * Only its fields are retained, in a pooled record: see {@link #acquire()}.
+     *
+     * @param status the status to be stored.
+     * @return true if the status has been queued.
+     */
+    public boolean offer(Status status) {
+        return this.offer(this.acquire().set(status));
+    }
+
+    /**
+     * Hand a status over to the writer of its shard.
+     * This never blocks: if the queue is full the status is dropped.
+     * Either way, the record belongs to the ingester from now on.
+     *
+     * @param record the fields of the status to be stored, see {@link #acquire()}.
+     * @return true if the status has been queued.
+     */
+    public boolean offer(TweetRecord record) {
+        if (!this.running) {
+            this.dropped.incrementAndGet();
+            this.release(record);
+            return false;
+        }
+
+        final Lane lane = this.laneOf(record);
+        if (lane.depth.incrementAndGet() > this.capacity) {
+            lane.depth.decrementAndGet();
+            this.dropped.incrementAndGet();
+            this.release(record);
+            return false;
+        }
+
+        this.input.offer(record);
+        return true;
+    }
+
+    /**
+     * A queue and the writer thread storing its statuses into a shard.
+     */
+    private final class Lane {
+        private final int shard;
+        private final Storage storage;
+
+        /**
+         * The prepared statuses.
+         * The queue itself is unbounded, we bound it by reserving
+         * a slot in {@link #depth} before every insertion
+         * (including the statuses still being prepared).
+         */
+        private final ConcurrentLinkedQueue<TweetRecord> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+
+        private final Thread writer;
+
+        Lane(int shard, Storage storage) {
+            assert (storage != null);
+
+            this.shard = shard;
+            this.storage = storage;
+            this.writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, Ingester.class.getSimpleName() + "-writer-" + shard);
+        }
+
+        /**
+         * Writer loop: collect statuses until the batch is full
+         * or its oldest status has waited for the flush interval, then commit.
+         * On shutdown, keep going until the workers are done and the queue is empty.
+         * The writer of the first shard logs the counters.
+         */
+        private void drain() {
+            final List<TweetRecord> batch = new ArrayList<>(batchSize);
+            long deadline = 0;
+            long nextStats = System.nanoTime() + STATS_INTERVAL;
+
+            while (preparing || !this.queue.isEmpty()) {
+                final TweetRecord record = this.queue.poll();
+                final long now = System.nanoTime();
+
+                if (record != null) {
+                    this.depth.decrementAndGet();
+
+                    if (batch.isEmpty()) {
+                        deadline = now + flushIntervalNanos;
+                    }
+                    batch.add(record);
+
+                    if (batch.size() >= batchSize) {
+                        this.flush(batch);
+                    }
+                } else if (!batch.isEmpty() && now - deadline >= 0) {
+                    this.flush(batch);
+                } else {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+
+                if (this.shard == 0 && now - nextStats >= 0) {
+                    logStats();
+                    nextStats = now + STATS_INTERVAL;
+                }
+            }
+
+            this.flush(batch);
+        }
+
+        /**
+         * Commit the batch to the storage and clear it.
+         *
+         * @param batch the statuses to be committed.
+         */
+        private void flush(List<TweetRecord> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                if (this.storage.insertRecords(batch)) {
+                    stored.addAndGet(batch.size());
+
+                    if (learner != null) {
+                        for (TweetRecord record : batch) {
+                            learner.offer(record);
+                        }
+                    }
+                } else {
+                    dropped.addAndGet(batch.size());
+                }
+            } catch (RuntimeException e) {
+                /* Keep the writer alive: the next batches can still be stored. */
+                logger.error("Error while storing a batch of {} statuses into shard {}.",
+                        batch.size(), this.shard, e);
+                dropped.addAndGet(batch.size());
+            } finally {
+                for (TweetRecord record : batch) {
+                    release(record);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void logStats() {
+        long skippedUsers = 0;
+        long skippedTweets = 0;
+        double placeCacheHitRate = 0;
+        for (Storage storage : this.storages) {
+            skippedUsers += storage.getSkippedUsers();
+            skippedTweets += storage.getSkippedTweets();
+            placeCacheHitRate += storage.getPlaceCacheHitRate() / this.storages.length;
+        }
+
+        logger.info("Ingest queue depth: {}, stored statuses: {}, dropped statuses: {}, " +
+                        "known users skipped: {}, known tweets skipped: {}, place cache hit rate: {}, " +
+                        "stem cache hits: {}, misses: {}.",
+                this.getQueueDepth(), this.getStored(), this.getDropped(),
+                skippedUsers, skippedTweets,
+                String.format("%.2f", placeCacheHitRate),
+                Storage.getStemCache().getHits(), Storage.getStemCache().getMisses());
+    }
+
+    /**
+     * Stop accepting statuses and wait for the workers and the writers to drain the queues.
+     *
+     * @throws InterruptedException if interrupted while waiting for the threads.
+     */
+    public void close() throws InterruptedException {
+        this.running = false;
+
+        for (Thread worker : this.workers) {
+            LockSupport.unpark(worker);
+            if (worker.isAlive()) {
+                worker.join();
+            }
+        }
+        this.preparing = false;
+
+        for (Lane lane : this.lanes) {
+            LockSupport.unpark(lane.writer);
+            if (lane.writer.isAlive()) {
+                lane.writer.join();
+            }
+        }
+        this.logStats();
+    }
+
+    /**
+     * @return the number of statuses waiting to be written.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : this.lanes) {
+            depth += lane.depth.get();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of statuses dropped because the queue was full
+     * or because their batch could not be committed.
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return the number of statuses handed over to the storage.
+     */
+    public long getStored() {
+        return this.stored.get();
+    }
+}
@@ -0,0 +1,240 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append-only journal of the raw statuses (as JSON), as received from the stream.
+ *
+ * The journal is a directory of segments: journal-00000000000000000000.json,
+ * journal-00000000000000000001.json... each one holding a status per line.
+ * A new segment is started once the current one exceeds {@link #SEGMENT_SIZE},
+ * and on every start: existing segments are never written again.
+ * Statuses are appended through a buffer: a background thread flushes it and forces
+ * the segment to the disk every {@link #FLUSH_INTERVAL} (as on roll and on close), see {@link #sync()}.
+ * On a crash, at most the statuses of the last interval are lost.
+ *
+ * The journal can be replayed into the storage, see {@link Replayer}.
+ */
+class Journal {
+    private final static Logger logger = LogManager.getLogger(Journal.class.getSimpleName());
+
+    public final static Charset CHARSET = Charset.forName("UTF-8");
+    public final static byte SEPARATOR = '\n';
+
+    private final static String PREFIX = "journal-";
+    private final static String EXTENSION = ".json";
+
+    /**
+     * The size (bytes) after which a new segment is started.
+     * Segments are memory-mapped as a whole while replaying.
+     */
+    final static long SEGMENT_SIZE = 64L << 20;
+
+    private final static int BUFFER_SIZE = 1 << 20;
+    private final static long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final File directory;
+
+    private FileOutputStream file = null;
+    private OutputStream output = null;
+    private volatile boolean closed = false;
+    /**
+     * True if statuses have been appended since the last {@link #sync()}.
+     */
+    private boolean dirty = false;
+    private long sequence;
+    private long segmentSize = 0;
+
+    private final Thread flusher;
+
+    private long appended = 0;
+
+    /**
+     * Open the journal, creating its directory if needed.
+     *
+     * @param directory the journal directory.
+     * @throws IOException if the directory can't be created.
+     */
+    public Journal(String directory) throws IOException {
+        assert (directory != null);
+
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Can't create the journal directory " + directory);
+        }
+
+        final File[] segments = segments(this.directory);
+        this.sequence = segments.length == 0 ? 0 : sequenceOf(segments[segments.length - 1]) + 1;
+
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, Journal.class.getSimpleName() + "-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @param directory the journal directory.
+     * @return the segments of the journal, from the oldest one.
+     */
+    public static File[] segments(File directory) {
+        final File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(EXTENSION);
+            }
+        });
+
+        if (segments == null) {
+            return new File[0];
+        }
+        /* Sequences are zero padded: names sort as sequences. */
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @param segment a segment of the journal.
+     * @return its sequence number.
+     */
+    private static long sequenceOf(File segment) {
+        final String name = segment.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - EXTENSION.length()));
+    }
+
+    /**
+     * Append a status to the journal.
+     * Statuses appended once the journal is closed are ignored.
+     *
+     * @param json the raw JSON of the status.
+     * @throws IOException on write error.
+     */
+    public synchronized void append(String json) throws IOException {
+        if (this.closed) {
+            return;
+        } else if (this.output == null || this.segmentSize >= SEGMENT_SIZE) {
+            this.roll();
+        }
+
+        final byte[] bytes = json.getBytes(CHARSET);
+        this.output.write(bytes);
+        this.output.write(SEPARATOR);
+        this.segmentSize += bytes.length + 1;
+        this.appended++;
+        this.dirty = true;
+    }
+
+    /**
+     * Flusher loop: sync the journal every {@link #FLUSH_INTERVAL}, whether statuses keep coming or not.
+     */
+    private void flush() {
+        while (!this.closed) {
+            LockSupport.parkNanos(FLUSH_INTERVAL);
+            try {
+                this.sync();
+            } catch (IOException e) {
+                logger.error("Error while flushing the journal.", e);
+            }
+        }
+    }
+
+    /**
+     * Flush the buffer and force the current segment to the disk,
+     * if statuses have been appended since the last time.
+     * Only the flush holds the journal: statuses can be appended while the segment is forced.
+     *
+     * @throws IOException on write error.
+     */
+    public void sync() throws IOException {
+        final FileChannel channel;
+        synchronized (this) {
+            if (this.output == null || !this.dirty) {
+                return;
+            }
+
+            this.output.flush();
+            this.dirty = false;
+            channel = this.file.getChannel();
+        }
+
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            /* Rolled or closed meanwhile: the segment has been forced before, see closeSegment(). */
+            logger.debug("Journal segment closed while being forced.");
+        }
+    }
+
+    /**
+     * Flush the buffer, force the current segment to the disk and close it.
+     * Called holding the journal.
+     *
+     * @throws IOException on write or close error.
+     */
+    private void closeSegment() throws IOException {
+        this.output.flush();
+        /* Even if not dirty: a concurrent sync() may still be forcing it. */
+        this.file.getChannel().force(false);
+        this.dirty = false;
+        this.output.close();
+    }
+
+    /**
+     * Close the current segment and start a new one.
+     *
+     * @throws IOException on close or creation error.
+     */
+    private void roll() throws IOException {
+        if (this.output != null) {
+            this.closeSegment();
+        }
+
+        final File segment = new File(this.directory, String.format("%s%020d%s", PREFIX, this.sequence++, EXTENSION));
+        this.file = new FileOutputStream(segment);
+        this.output = new BufferedOutputStream(this.file, BUFFER_SIZE);
+        this.segmentSize = 0;
+
+        logger.info("Journaling statuses to {}.", segment);
+    }
+
+    /**
+     * Sync and close the current segment, then stop the flusher.
+     *
+     * @throws IOException on close error.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            this.closed = true;
+            if (this.output != null) {
+                this.closeSegment();
+                this.output = null;
+                this.file = null;
+            }
+            logger.info("Journaled {} statuses.", this.appended);
+        }
+
+        LockSupport.unpark(this.flusher);
+        try {
+            this.flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
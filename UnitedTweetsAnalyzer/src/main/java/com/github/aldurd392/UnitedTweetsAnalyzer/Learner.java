@@ -6,6 +6,8 @@ import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import weka.classifiers.AbstractClassifier;
+import weka.classifiers.AggregateableEvaluation;
+import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.classifiers.UpdateableClassifier;
 import weka.classifiers.bayes.NaiveBayes;
@@ -28,9 +30,16 @@ import weka.filters.unsupervised.attribute.StringToWordVector;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
 /**
@@ -42,6 +51,20 @@ class Learner {
     private final static Logger logger = LogManager.getLogger(Learner.class.getSimpleName());
 
     private final static String LOCATION_PREFIX = "_LOCATION";
+    /**
+     * The number of words kept while converting the location attribute to a vector of words.
+     */
+    private final static int LOCATION_WORDS = 750;
+
+    /**
+     * Estimated heap taken by an instance: its values and the objects holding them (bytes).
+     * See {@link #estimateMemory()}.
+     */
+    private final static int INSTANCE_OVERHEAD = 64;
+    /**
+     * How many times a classifier is expected to copy its training data while being evaluated.
+     */
+    private final static int COPY_FACTOR = 3;
 
     /**
      * This map will let you add other classifiers to this class.
@@ -99,12 +122,32 @@ class Learner {
      * We'll keep the classifier here.
      */
     private AbstractClassifier classifier = null;
+    /**
+     * The header of the instances as loaded from the DB,
+     * and the filters fitted on them, see {@link #setUpData(Instances, Filter[])}.
+     * They are needed to save a {@link Model}.
+     */
+    private Instances raw_header = null;
+    private Filter[] filters = new Filter[0];
     /**
      * Specifies the number of words to keep while converting
      * the location attribute to a vector of words.
      * If <= 0, this feature is disabled.
      */
     private final int wordsToKeep;
+    /**
+     * The number of days of tweets labeling the training users.
+     * If <= 0, all the stored tweets are used.
+     */
+    private int window = 0;
+    /**
+     * The number of folds built and evaluated at once while cross-validating.
+     */
+    private int threads = 1;
+    /**
+     * The seed randomizing the data, or null for a random one.
+     */
+    private Long seed = null;
 
     /**
      * Build a new learner
@@ -127,13 +170,106 @@ class Learner {
         return this.training_data;
     }
 
+    /**
+     * Load the training data, as {@link #buildAndEvaluate(float)} would.
+     *
+     * @return the training data.
+     * @throws Exception on load error.
+     */
+    public Instances loadTrainingData() throws Exception {
+        this.loadData(true);
+        return this.training_data;
+    }
+
+    /**
+     * Use already loaded training data, instead of loading it in {@link #buildAndEvaluate(float)}.
+     * The learner only changes the set itself (not its instances): pass it a copy,
+     * see {@link Instances#Instances(Instances)}, to share the instances with other learners.
+     *
+     * @param training_data the training data, see {@link #loadTrainingData()}.
+     */
+    public void setTrainingData(Instances training_data) {
+        this.training_data = training_data;
+        this.raw_header = new Instances(training_data, 0);
+        this.filters = new Filter[0];
+    }
+
+    /**
+     * Use the training data already loaded by another learner,
+     * as {@link #setTrainingData(Instances)} does (on a copy).
+     *
+     * @param loader the learner that has loaded the training data, see {@link #loadTrainingData()}.
+     */
+    public void shareTrainingData(Learner loader) {
+        assert loader.training_data != null;
+
+        this.training_data = new Instances(loader.training_data);
+        this.raw_header = loader.raw_header;
+        this.filters = loader.filters;
+    }
+
+    /**
+     * Roughly estimate the heap the classifier needs to be built and evaluated
+     * against the training data.
+     *
+     * @return the estimated heap (MB).
+     */
+    public int estimateMemory() {
+        assert this.training_data != null;
+
+        final long instanceSize = this.training_data.numAttributes() * 8L + INSTANCE_OVERHEAD;
+        long bytes = this.training_data.numInstances() * instanceSize * COPY_FACTOR;
+        if (this.classifier instanceof LibSVM) {
+            bytes += (long) (((LibSVM) this.classifier).getCacheSize() * 1024 * 1024);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, 1 + bytes / (1024 * 1024));
+    }
+
     public AbstractClassifier getClassifier() {
         return this.classifier;
     }
 
+    /**
+     * Label the training users by their tweets of the last days only.
+     *
+     * @param days the number of days, 0 to use all the stored tweets.
+     */
+    public void setWindow(int days) {
+        this.window = days;
+    }
+
+    /**
+     * Cross-validate on many threads, see {@link #crossValidate(int)}.
+     *
+     * @param threads the number of folds built and evaluated at once.
+     */
+    public void setThreads(int threads) {
+        assert threads > 0;
+        this.threads = threads;
+    }
+
+    /**
+     * Randomize the data (and the cross-validation folds) by a fixed seed,
+     * so that evaluations can be repeated.
+     *
+     * @param seed the seed, or null for a random one.
+     */
+    public void setSeed(Long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return a new generator, from the seed if set.
+     */
+    private Random newRandom() {
+        return this.seed != null ? new Random(this.seed) : new Random();
+    }
+
     /**
      * Set up the instances in input, setting up the class attribute
      * and if specified it apply the input filter.
+     * The header of the input and the filters actually applied are kept,
+     * see {@link #raw_header}.
      *
      * @param instances to set up.
      * @param filters   if set applies the filters on the input instances
@@ -142,12 +278,15 @@ class Learner {
      */
     private Instances setUpData(Instances instances, Filter[] filters) {
         Instances newInstances = instances;
+        final List<Filter> applied = new ArrayList<>();
+        this.raw_header = new Instances(instances, 0);
 
         if (filters != null) {
             for (Filter filter : filters) {
                 try {
                     filter.setInputFormat(newInstances);
                     newInstances = Filter.useFilter(newInstances, filter);
+                    applied.add(filter);
                 } catch (Exception e) {
                     logger.warn(
                             "Cannot apply specified filter {}. Ignoring it.", filter.toString(),
@@ -157,6 +296,7 @@ class Learner {
             }
         }
 
+        this.filters = applied.toArray(new Filter[applied.size()]);
         newInstances.setClass(newInstances.attribute(Storage.COUNTRY));
         return newInstances;
     }
@@ -206,7 +346,7 @@ class Learner {
         remove.setAttributeIndices(String.format("%d", this.training_data.attribute(Storage.ID).index() + 1));
         remove.setInputFormat(this.training_data);
         this.training_data = Filter.useFilter(this.training_data, remove);
-        this.training_data.randomize(new Random());
+        this.training_data.randomize(this.newRandom());
 
         assert this.training_data.numAttributes() == this.classification_data.numAttributes() - 1 :
                 "Training data filtering is not working, bad number of attributes.";
@@ -221,7 +361,42 @@ class Learner {
      * @param training_data Instances to be set up.
      */
     private void setupTrainingData(Instances training_data) {
-        training_data.randomize(new Random());
+        training_data.randomize(this.newRandom());
+    }
+
+    /**
+     * If the storage is sharded, let the query read all the shards
+     * through the connection to the first one.
+     * If a window is set, restrict the labels to its tweets.
+     * See {@link Storage#readerStatements(String, int, int)}.
+     *
+     * @param query the query, not connected yet.
+     * @throws Exception on connection or statement error.
+     */
+    private void prepareReader(InstanceQuery query) throws Exception {
+        prepareReader(query, this.window);
+    }
+
+    /**
+     * See {@link #prepareReader(InstanceQuery)}.
+     *
+     * @param query  the query, not connected yet.
+     * @param window the number of days of tweets labeling the users, 0 for all.
+     * @throws Exception on connection or statement error.
+     */
+    private static void prepareReader(InstanceQuery query, int window) throws Exception {
+        final int shards = Storage.countShards(Main.DEFAULT_DATABASE_PATH);
+        final List<String> statements = Storage.readerStatements(Main.DEFAULT_DATABASE_PATH, shards, window);
+        if (statements.isEmpty()) {
+            return;
+        }
+
+        logger.info("Reading {} shards, labeling users by {}.",
+                shards, window > 0 ? "the tweets of the last " + window + " days" : "all their tweets");
+        query.connectToDatabase();
+        for (String statement : statements) {
+            query.execute(statement);
+        }
     }
 
     /**
@@ -249,112 +424,19 @@ class Learner {
         InstanceQuery query = null;
         try {
             query = new InstanceQuery();
+            this.prepareReader(query);
 
-            if (this.wordsToKeep > 0) {
-                NominalToString nomToStringFilter = new NominalToString();
-                StringToWordVector stringFilter = new StringToWordVector();
-                NumericToNominal numericToNominal = new NumericToNominal();
-
-                stringFilter.setDoNotOperateOnPerClassBasis(true);
-                stringFilter.setOutputWordCounts(false);
-
-                final int wordsToKeep = 750;
-                stringFilter.setWordsToKeep(wordsToKeep);
-                stringFilter.setStemmer(null);
-                stringFilter.setAttributeNamePrefix(LOCATION_PREFIX);
-                stringFilter.setIDFTransform(true);
-
-                /**
-                 * Remove from the WordVector all those words with length 1,
-                 * or defined as stopwords.
-                 */
-                stringFilter.setStopwordsHandler(new StopwordsHandler() {
-                    @Override
-                    public boolean isStopword(String word) {
-                        return word.length() <= 1 ||
-                                (word.length() == 2 && !Constants.countryCodes.contains(word)) ||
-                                Constants.stopWords.contains(word);
-                    }
-                });
-
-                Filter[] filters = {nomToStringFilter, stringFilter, numericToNominal};
-
-                String locationAttributeString;
-                if (isTraining) {
-                    query.setQuery(Storage.TRAINING_QUERY);
-                    Instances instances = query.retrieveInstances();
-
-                    locationAttributeString = String.format(
-                            "%d", instances.attribute(Storage.LOCATION).index() + 1
-                    );
-
-                    nomToStringFilter.setAttributeIndexes(
-                            locationAttributeString
-                    );
-
-                    stringFilter.setAttributeIndices(
-                            locationAttributeString
-                    );
-
-                    numericToNominal.setAttributeIndicesArray(
-                            new int[]{
-                                    instances.attribute(Storage.UTC_OFFSET).index(),
-                                    instances.attribute(Storage.LANG).index(),
-                                    instances.attribute(Storage.TIMEZONE).index(),
-                                    instances.attribute(Storage.COUNTRY).index(),
-                            }
-                    );
-                    numericToNominal.setInvertSelection(true);
-
-                    this.training_data = setUpData(instances, filters);
-                    assert (this.training_data.numAttributes() > 3 + wordsToKeep) :
-                            "StringToWordVector doesn't seem to be working!";
-
-                    this.setupTrainingData(this.training_data);
-                } else {
-                    query.setQuery(Storage.CLASSIFICATION_QUERY);
-                    Instances universe = query.retrieveInstances();
-
-                    locationAttributeString = String.format(
-                            "%d", universe.attribute(Storage.LOCATION).index() + 1
-                    );
-
-                    nomToStringFilter.setAttributeIndexes(
-                            locationAttributeString
-                    );
-
-                    stringFilter.setAttributeIndices(
-                            locationAttributeString
-                    );
-
-                    numericToNominal.setAttributeIndicesArray(
-                            new int[]{
-                                    universe.attribute(Storage.ID).index(),
-                                    universe.attribute(Storage.UTC_OFFSET).index(),
-                                    universe.attribute(Storage.LANG).index(),
-                                    universe.attribute(Storage.TIMEZONE).index(),
-                                    universe.attribute(Storage.COUNTRY).index(),
-                            }
-                    );
-                    numericToNominal.setInvertSelection(true);
-
-                    universe = setUpData(universe, filters);
-                    this.setupClassificationData(universe);
-                }
+            if (isTraining) {
+                query.setQuery(Storage.TRAINING_QUERY);
+                this.setUpTrainingData(query.retrieveInstances());
+                assert (this.wordsToKeep <= 0 || this.training_data.numAttributes() > 3 + LOCATION_WORDS) :
+                        "StringToWordVector doesn't seem to be working!";
             } else {
-                if (isTraining) {
-                    query.setQuery(Storage.TRAINING_QUERY);
-                    Instances instances = query.retrieveInstances();
+                query.setQuery(Storage.CLASSIFICATION_QUERY);
+                Instances universe = query.retrieveInstances();
 
-                    this.training_data = setUpData(instances, null);
-                    this.setupTrainingData(this.training_data);
-                } else {
-                    query.setQuery(Storage.CLASSIFICATION_QUERY);
-                    Instances universe = query.retrieveInstances();
-
-                    universe = setUpData(universe, null);
-                    this.setupClassificationData(universe);
-                }
+                universe = setUpData(universe, this.wordsToKeep > 0 ? locationFilters(universe) : null);
+                this.setupClassificationData(universe);
             }
         } catch (Exception e) {
             logger.error("Error while executing DB query", e);
@@ -366,6 +448,86 @@ class Learner {
         }
     }
 
+    /**
+     * Set up the training users as loaded from the DB, as {@link #loadTrainingData()} does:
+     * convert their location to a vector of words if needed, see {@link #wordsToKeep},
+     * and randomize them.
+     *
+     * @param instances the training users, as loaded from the DB.
+     * @throws Exception on filter setup error.
+     */
+    void setUpTrainingData(Instances instances) throws Exception {
+        this.training_data = setUpData(instances, this.wordsToKeep > 0 ? locationFilters(instances) : null);
+        this.setupTrainingData(this.training_data);
+    }
+
+    /**
+     * Build the filters converting the location attribute to a vector of words.
+     * It is nominal in our dataset, so we convert it to a string and then we split it;
+     * the words are then converted back to nominal attributes.
+     *
+     * @param instances the instances to be filtered, as loaded from the DB.
+     * @return the filters, to be applied in order.
+     * @throws Exception on filter setup error.
+     */
+    private static Filter[] locationFilters(Instances instances) throws Exception {
+        NominalToString nomToStringFilter = new NominalToString();
+        StringToWordVector stringFilter = new StringToWordVector();
+        NumericToNominal numericToNominal = new NumericToNominal();
+
+        stringFilter.setDoNotOperateOnPerClassBasis(true);
+        stringFilter.setOutputWordCounts(false);
+
+        stringFilter.setWordsToKeep(LOCATION_WORDS);
+        stringFilter.setStemmer(null);
+        stringFilter.setAttributeNamePrefix(LOCATION_PREFIX);
+        stringFilter.setIDFTransform(true);
+
+        stringFilter.setStopwordsHandler(new LocationStopwords());
+
+        final String locationAttributeString = String.format(
+                "%d", instances.attribute(Storage.LOCATION).index() + 1
+        );
+        nomToStringFilter.setAttributeIndexes(locationAttributeString);
+        stringFilter.setAttributeIndices(locationAttributeString);
+
+        /**
+         * Every other attribute is left as it is (the training users come without their ID).
+         */
+        final List<Integer> indices = new ArrayList<>();
+        for (String name : new String[]{
+                Storage.ID, Storage.UTC_OFFSET, Storage.LANG, Storage.TIMEZONE, Storage.COUNTRY}) {
+            final Attribute attribute = instances.attribute(name);
+            if (attribute != null) {
+                indices.add(attribute.index());
+            }
+        }
+        final int[] indicesArray = new int[indices.size()];
+        for (int i = 0; i < indicesArray.length; i++) {
+            indicesArray[i] = indices.get(i);
+        }
+        numericToNominal.setAttributeIndicesArray(indicesArray);
+        numericToNominal.setInvertSelection(true);
+
+        return new Filter[]{nomToStringFilter, stringFilter, numericToNominal};
+    }
+
+    /**
+     * Remove from the WordVector all those words with length 1,
+     * or defined as stopwords.
+     * It is saved along with the filter, see {@link Model}.
+     */
+    private static class LocationStopwords implements StopwordsHandler, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean isStopword(String word) {
+            return word.length() <= 1 ||
+                    (word.length() == 2 && !Constants.countryCodes.contains(word)) ||
+                    Constants.stopWords.contains(word);
+        }
+    }
+
     /**
      * Setup the classifier parameters'.
      */
@@ -520,23 +682,7 @@ class Learner {
             return;
         }
 
-        CSVPrinter csvFilePrinter = null;
-        FileWriter fileWriter = null;
-
-        if (output_path != null) {
-            final CSVFormat csvFileFormat = CSVFormat.EXCEL.withDelimiter(CSV_DELIMITER);
-
-            try {
-                fileWriter = new FileWriter(output_path);
-                csvFilePrinter = new CSVPrinter(fileWriter, csvFileFormat);
-                csvFilePrinter.printRecord(CSV_FILE_HEADER);
-            } catch (IOException e) {
-                logger.warn("Error while creating CSV file printer", e);
-
-                IOUtils.closeQuietly(fileWriter);
-                IOUtils.closeQuietly(csvFilePrinter);
-            }
-        }
+        CSVPrinter csvFilePrinter = openOutput(output_path);
 
         try {
             logger.info("Building classifier {}...",
@@ -545,7 +691,6 @@ class Learner {
         } catch (Exception e) {
             logger.fatal("Error while building classifier for new instances.", e);
 
-            IOUtils.closeQuietly(fileWriter);
             IOUtils.closeQuietly(csvFilePrinter);
 
             return;
@@ -620,10 +765,143 @@ class Learner {
             }
         }
 
-        IOUtils.closeQuietly(fileWriter);
         IOUtils.closeQuietly(csvFilePrinter);
     }
 
+    /**
+     * Create the CSV file receiving the classification results.
+     *
+     * @param output_path the path of the file, or null.
+     * @return the CSV printer, or null if no path is given or on error.
+     */
+    private static CSVPrinter openOutput(String output_path) {
+        if (output_path == null) {
+            return null;
+        }
+
+        final CSVFormat csvFileFormat = CSVFormat.EXCEL.withDelimiter(CSV_DELIMITER);
+        FileWriter fileWriter = null;
+        try {
+            fileWriter = new FileWriter(output_path);
+            final CSVPrinter csvFilePrinter = new CSVPrinter(fileWriter, csvFileFormat);
+            csvFilePrinter.printRecord(CSV_FILE_HEADER);
+            return csvFilePrinter;
+        } catch (IOException e) {
+            logger.warn("Error while creating CSV file printer", e);
+
+            IOUtils.closeQuietly(fileWriter);
+            return null;
+        }
+    }
+
+    /**
+     * Train the classifier against the whole training data,
+     * and pack it along with the filters applied to the data.
+     * The training data must be already loaded, e.g. by {@link #buildAndEvaluate(float)}.
+     *
+     * @return the trained model, ready to be saved.
+     * @throws Exception on classifier error.
+     */
+    public Model buildModel() throws Exception {
+        assert this.training_data != null;
+
+        logger.info("Building classifier {} against {} instances...",
+                this.classifier.getClass().getSimpleName(), this.training_data.numInstances());
+        // Updateable classifiers consume their training data.
+        this.trainClassifier(new Instances(this.training_data));
+
+        /**
+         * New users must keep their location as a string, whether the training data has seen it or not:
+         * the model starts from the header with the location converted to a string.
+         */
+        Instances header = this.raw_header;
+        Filter[] filters = this.filters;
+        if (filters.length > 0 && filters[0] instanceof NominalToString) {
+            header = filters[0].getOutputFormat();
+            filters = Arrays.copyOfRange(filters, 1, filters.length);
+        }
+        return new Model(this.classifier, header, filters, this.training_data);
+    }
+
+    /**
+     * Label the sampled unlabeled users by a saved model,
+     * without loading the training data nor training the classifier.
+     * See {@link Storage#PREDICTION_QUERY}.
+     *
+     * @param model       the model, see {@link #buildModel()}.
+     * @param output_path optional path to store a CSV file with the results.
+     * @throws Exception on DB error.
+     */
+    public static void predict(Model model, String output_path) throws Exception {
+        final long start = System.currentTimeMillis();
+
+        Instances users;
+        InstanceQuery query = null;
+        try {
+            query = new InstanceQuery();
+            prepareReader(query, 0);
+            query.setQuery(Storage.PREDICTION_QUERY);
+            users = query.retrieveInstances();
+        } catch (Exception e) {
+            logger.error("Error while executing DB query", e);
+            throw e;
+        } finally {
+            if (query != null) {
+                query.close();
+            }
+        }
+        logger.info("Loaded {} unlabeled users in {} ms.", users.numInstances(), System.currentTimeMillis() - start);
+
+        final CSVPrinter csvFilePrinter = openOutput(output_path);
+        final Attribute attribute_id = users.attribute(Storage.ID);
+        final Attribute attribute_location = users.attribute(Storage.LOCATION);
+        final Attribute attribute_lang = users.attribute(Storage.LANG);
+        final Attribute attribute_utc_offset = users.attribute(Storage.UTC_OFFSET);
+        final Attribute attribute_timezone = users.attribute(Storage.TIMEZONE);
+
+        try {
+            for (Instance user : users) {
+                final long id = Double.valueOf(user.value(attribute_id)).longValue();
+
+                final String country;
+                try {
+                    country = model.classify(user);
+                } catch (Exception e) {
+                    logger.warn("Classification - id: {}, class: UNAVAILABLE", id);
+                    logger.error("Error while classifying unlabeled instance", e);
+                    return;
+                }
+                if (country == null) {
+                    /* Still written out, with an empty country. */
+                    logger.warn("Classification - id: {}, class: UNAVAILABLE", id);
+                }
+
+                final Object[] values = {
+                        id,
+                        String.format(Constants.twitter_user_intent, id),
+                        user.stringValue(attribute_location),
+                        user.stringValue(attribute_lang),
+                        user.stringValue(attribute_utc_offset),
+                        user.stringValue(attribute_timezone),
+                        country,
+                };
+
+                logger.debug("Classification - {} -> {}", user.toString(), country);
+                if (csvFilePrinter != null) {
+                    try {
+                        csvFilePrinter.printRecord(values);
+                    } catch (IOException e) {
+                        logger.error("Error while printing CSV records for ID {}", id, e);
+                    }
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(csvFilePrinter);
+        }
+
+        logger.info("Labeled {} users in {} ms.", users.numInstances(), System.currentTimeMillis() - start);
+    }
+
     /**
      * Build the classifier against the training data and evaluate it.
      *
@@ -635,11 +913,13 @@ class Learner {
      * @return the evaluation of the classifier.
      */
     public Evaluation buildAndEvaluate(float evaluation_rate) {
-        try {
-            this.loadData(true);
-        } catch (Exception e) {
-            logger.error("Error while loading training data.", e);
-            return null;
+        if (this.training_data == null) {
+            try {
+                this.loadData(true);
+            } catch (Exception e) {
+                logger.error("Error while loading training data.", e);
+                return null;
+            }
         }
 
         Evaluation eval = null;
@@ -656,19 +936,24 @@ class Learner {
                 eval = new Evaluation(data.getKey());
                 eval.evaluateModel(this.classifier, data.getValue());
             } else {
-                eval = new Evaluation(this.training_data);
                 int rounded_evaluation_rate = Math.round(evaluation_rate);
 
-                logger.info("Building and evaluating classifier {} with {}-fold validation...",
+                logger.info("Building and evaluating classifier {} with {}-fold validation on {} threads...",
                         this.classifier.getClass().getSimpleName(),
-                        rounded_evaluation_rate);
-
-                eval.crossValidateModel(
-                        this.classifier,
-                        this.training_data,
                         rounded_evaluation_rate,
-                        new Random()
-                );
+                        Math.min(this.threads, rounded_evaluation_rate));
+
+                if (this.threads > 1) {
+                    eval = this.crossValidate(rounded_evaluation_rate);
+                } else {
+                    eval = new Evaluation(this.training_data);
+                    eval.crossValidateModel(
+                            this.classifier,
+                            this.training_data,
+                            rounded_evaluation_rate,
+                            this.newRandom()
+                    );
+                }
             }
         } catch (Exception e) {
             logger.error("Error while evaluating the classifier", e);
@@ -676,5 +961,66 @@ class Learner {
 
         return eval;
     }
-}
 
+    /**
+     * Cross-validate the classifier as {@link Evaluation#crossValidateModel(Classifier, Instances, int, Random, Object...)}
+     * does, but build and evaluate the folds concurrently on {@link #threads} threads.
+     * The folds are split in order, from the same generator: with the same seed, the results
+     * match the sequential ones.
+     * At most {@link #threads} folds are kept in memory at once.
+     *
+     * @param folds the number of folds.
+     * @return the evaluations of the folds, merged.
+     * @throws Exception on classifier error.
+     */
+    private Evaluation crossValidate(int folds) throws Exception {
+        final Random random = this.newRandom();
+        final Instances data = new Instances(this.training_data);
+        data.randomize(random);
+        if (data.classAttribute().isNominal()) {
+            data.stratify(folds);
+        }
+
+        final int threads = Math.min(this.threads, folds);
+        final Semaphore pending = new Semaphore(threads);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<Evaluation>> futures = new ArrayList<>(folds);
+        try {
+            for (int fold = 0; fold < folds; fold++) {
+                pending.acquire();
+
+                final Instances train = data.trainCV(folds, fold, random);
+                final Instances test = data.testCV(folds, fold);
+                final Classifier copy = AbstractClassifier.makeCopy(this.classifier);
+                futures.add(executor.submit(new Callable<Evaluation>() {
+                    @Override
+                    public Evaluation call() throws Exception {
+                        try {
+                            copy.buildClassifier(train);
+
+                            // As the sequential evaluation, use the priors of the fold's training data.
+                            final Evaluation evaluation = new Evaluation(train);
+                            evaluation.evaluateModel(copy, test);
+                            return evaluation;
+                        } finally {
+                            pending.release();
+                        }
+                    }
+                }));
+            }
+
+            final AggregateableEvaluation eval = new AggregateableEvaluation(this.training_data);
+            for (Future<Evaluation> future : futures) {
+                try {
+                    eval.aggregate(future.get());
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+            return eval;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import weka.core.stemmers.SnowballStemmer;
+
+import java.util.Arrays;
+
+/**
+ * Normalize and stem the users' locations.
+ *
+ * In a single pass over the location we replace the characters
+ * that aren't letters (or space separators) in any language with spaces,
+ * collapse the spaces, split the words, lowercase and stem them.
+ * The result is the same as the former regex based pipeline:
+ * [^\p{L}\p{Z}] to " ", \s+ to " ", toLowerCase(), trim(), split(" ").
+ *
+ * The SnowballStemmer is not thread-safe:
+ * each thread gets its own, together with its own buffers.
+ */
+class LocationNormalizer {
+    /**
+     * Words are separated by ASCII spaces only,
+     * other space separators (e.g. no-break spaces) are part of the words,
+     * as they were with split(" ").
+     */
+    private final static char SEPARATOR = ' ';
+
+    /**
+     * ASCII words are lowercased in place, unless the default locale
+     * has its own rules for them (e.g. the Turkish dotless i).
+     */
+    private final static boolean ASCII_LOWERCASE = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase()
+            .equals("abcdefghijklmnopqrstuvwxyz");
+
+    private final static ThreadLocal<LocationNormalizer> normalizers = new ThreadLocal<LocationNormalizer>() {
+        @Override
+        protected LocationNormalizer initialValue() {
+            return new LocationNormalizer();
+        }
+    };
+
+    /**
+     * We use the default stemmer, set up for english.
+     */
+    private final SnowballStemmer stemmer = new SnowballStemmer();
+
+    /**
+     * The word being read and the stemmed words, reused across locations.
+     */
+    private char[] word = new char[64];
+    private final StringBuilder output = new StringBuilder(64);
+
+    private LocationNormalizer() {
+    }
+
+    /**
+     * Normalize and stem a location, by using the normalizer of the current thread.
+     *
+     * @param location string to be stemmed
+     * @return a stemmed string, or null if the location doesn't contain any word.
+     */
+    public static String normalize(String location) {
+        if (location == null || location.length() == 0) {
+            return null;
+        }
+
+        return normalizers.get().stem(location);
+    }
+
+    private String stem(String location) {
+        this.output.setLength(0);
+
+        int length = 0;
+        for (int i = 0; i < location.length(); ) {
+            final int codePoint = location.codePointAt(i);
+            i += Character.charCount(codePoint);
+
+            if (codePoint == SEPARATOR ||
+                    !(Character.isLetter(codePoint) || Character.isSpaceChar(codePoint))) {
+                this.appendWord(length);
+                length = 0;
+                continue;
+            }
+
+            if (length + 2 > this.word.length) {
+                this.word = Arrays.copyOf(this.word, this.word.length * 2);
+            }
+            length += Character.toChars(codePoint, this.word, length);
+        }
+        this.appendWord(length);
+
+        if (this.output.length() == 0) {
+            return null;
+        }
+
+        return this.output.toString().trim();
+    }
+
+    /**
+     * Lowercase and stem the word in the buffer, then append it to the output.
+     *
+     * @param length the length of the word in the buffer.
+     */
+    private void appendWord(int length) {
+        if (length == 0) {
+            return;
+        }
+
+        boolean ascii = ASCII_LOWERCASE;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = this.word[i] < 0x80;
+        }
+
+        final String word;
+        if (ascii) {
+            for (int i = 0; i < length; i++) {
+                final char c = this.word[i];
+                if (c >= 'A' && c <= 'Z') {
+                    this.word[i] = (char) (c + ('a' - 'A'));
+                }
+            }
+            word = new String(this.word, 0, length);
+        } else {
+            word = new String(this.word, 0, length).toLowerCase();
+        }
+
+        this.output.append(this.stemmer.stem(word));
+        this.output.append(SEPARATOR);
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs (e.g. Twitter IDs).
+ *
+ * It uses open addressing with linear probing over a single long array:
+ * no boxing and no entry objects, i.e. 8 to 16 bytes per element
+ * instead of the ~50 bytes of a HashSet&lt;Long&gt;.
+ * Membership is exact: there are no false positives.
+ *
+ * Not thread-safe.
+ */
+class LongHashSet {
+    /**
+     * Marks the empty slots. The element 0 is tracked apart.
+     */
+    private final static long EMPTY = 0;
+
+    private final static int MIN_CAPACITY = 16;
+    private final static float LOAD_FACTOR = 0.75f;
+
+    private long[] table;
+    private int mask;
+    private int size;
+    private boolean containsEmpty;
+
+    /**
+     * Build an empty set.
+     */
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Build an empty set.
+     *
+     * @param expected the number of elements the set should hold without resizing.
+     */
+    public LongHashSet(int expected) {
+        this.allocate(tableSize(expected));
+    }
+
+    /**
+     * @param expected a number of elements.
+     * @return the smallest power of two table that holds them under the load factor.
+     */
+    private static int tableSize(int expected) {
+        final long needed = Math.max(MIN_CAPACITY, (long) Math.ceil(expected / LOAD_FACTOR));
+        return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+        this.table = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Spread the IDs bits, so that sequential IDs don't cluster.
+     *
+     * @param value an element.
+     * @return the slot where the probing for value starts.
+     */
+    private int slot(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) h & this.mask;
+    }
+
+    /**
+     * @param value the element to look up.
+     * @return true if the set contains value.
+     */
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return this.containsEmpty;
+        }
+
+        for (int i = this.slot(value); ; i = (i + 1) & this.mask) {
+            final long current = this.table[i];
+            if (current == value) {
+                return true;
+            } else if (current == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @param value the element to be added.
+     * @return true if the set didn't already contain value.
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            final boolean added = !this.containsEmpty;
+            this.containsEmpty = true;
+            return added;
+        }
+
+        for (int i = this.slot(value); ; i = (i + 1) & this.mask) {
+            final long current = this.table[i];
+            if (current == value) {
+                return false;
+            } else if (current == EMPTY) {
+                this.table[i] = value;
+                if (++this.size > this.table.length * LOAD_FACTOR) {
+                    this.rehash(this.table.length << 1);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Add all the elements of another set.
+     *
+     * @param other the elements to be added.
+     */
+    public void addAll(LongHashSet other) {
+        if (other.containsEmpty) {
+            this.add(EMPTY);
+        }
+        for (long value : other.table) {
+            if (value != EMPTY) {
+                this.add(value);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        final long[] old = this.table;
+        this.allocate(capacity);
+        this.size = 0;
+
+        for (long value : old) {
+            if (value != EMPTY) {
+                int i = this.slot(value);
+                while (this.table[i] != EMPTY) {
+                    i = (i + 1) & this.mask;
+                }
+                this.table[i] = value;
+                this.size++;
+            }
+        }
+    }
+
+    /**
+     * Remove all the elements, keeping the allocated table.
+     */
+    public void clear() {
+        if (this.size > 0) {
+            Arrays.fill(this.table, EMPTY);
+        }
+        this.size = 0;
+        this.containsEmpty = false;
+    }
+
+    /**
+     * @return the number of elements.
+     */
+    public int size() {
+        return this.size + (this.containsEmpty ? 1 : 0);
+    }
+
+    /**
+     * @return the approximate number of bytes used by the set.
+     */
+    public long memoryUsage() {
+        return 8L * this.table.length;
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache.
+ * When full, it evicts the least recently used entry.
+ * It keeps track of its hits and misses.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the cached values.
+ */
+class LruCache<K, V> {
+    private final LinkedHashMap<K, V> map;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Build the cache.
+     *
+     * @param capacity the maximum number of cached entries.
+     */
+    public LruCache(final int capacity) {
+        assert capacity > 0;
+
+        /*
+         * An access-ordered LinkedHashMap keeps
+         * the least recently used entry as the eldest.
+         */
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return this.size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param key the key to look up.
+     * @return the cached value, or null if missing.
+     */
+    public V get(K key) {
+        final V value;
+        synchronized (this.map) {
+            value = this.map.get(key);
+        }
+
+        if (value == null) {
+            this.misses.incrementAndGet();
+        } else {
+            this.hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Cache a value, possibly evicting the least recently used one.
+     *
+     * @param key   the key.
+     * @param value the value to be cached.
+     */
+    public void put(K key, V value) {
+        synchronized (this.map) {
+            this.map.put(key, value);
+        }
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the ratio of lookups that found their value cached.
+     */
+    public double getHitRate() {
+        final long hits = this.hits.get();
+        final long lookups = hits + this.misses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -6,9 +6,12 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import weka.classifiers.Evaluation;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -20,7 +23,7 @@ class Main {
 
     private static final String EXECUTABLE_NAME = "UnitedTweetsAnalyzer";
 
-    private static final String DEFAULT_DATABASE_PATH = "users.db";
+    static final String DEFAULT_DATABASE_PATH = "users.db";
     private static final String DEFAULT_EVALUATION_RATE = "0.3";
 
     private static final String TASK = "t";
@@ -31,20 +34,53 @@ class Main {
     private static final String OUTPUT_PATH = "o";
     private static final String LEARNER_CL = "c";
     private static final String LEARNER_WORDS = "w";
+    private static final String QUEUE_SIZE = "q";
+    private static final String BATCH_SIZE = "m";
+    private static final String RELABEL_CHUNK = "R";
+    private static final String FLUSH_INTERVAL = "f";
+    private static final String GEO_GRID = "g";
+    private static final String SHARDS = "n";
+    private static final String RETENTION = "r";
+    private static final String WINDOW = "d";
+    private static final String JOURNAL = "j";
+    private static final String INPUT = "i";
+    private static final String THREADS = "p";
+    private static final String CLASSIFIER_THREADS = "C";
+    private static final String FOLD_THREADS = "F";
+    private static final String MEMORY = "X";
+    private static final String SEED = "S";
+    private static final String MODEL = "M";
+    private static final String LEARN_ONLINE = "L";
+    private static final String PORT = "P";
+    private static final String SERVE_THREADS = "T";
+    private static final String SERVE_BATCH_SIZE = "B";
+    private static final String SERVE_BATCH_INTERVAL = "I";
     private static final String HELP = "h";
 
     /**
-     * We have three different tasks:
+     * We have eight different tasks:
      * - Store reads the stream and save the statuses in our DB.
      * - Learn builds and evaluates a classifier
      *      against the stored training data.
      * - Classify launches an unsupervised machine learning task
      *      against the unlabeled data we have stored.
+     * - Relabel assigns again a country to the stored tweets,
+     *      e.g. after a shapefile change.
+     * - Compile converts a shapefile to a snapshot,
+     *      that can be loaded in place of it much faster.
+     * - Replay stores again the statuses journaled by the store task.
+     * - Predict labels the unlabeled data by a model saved by the learn task.
+     * - Serve labels users on demand over local HTTP, by a model saved by the learn task.
      */
     private static final String[] TASK_TYPE = {
             "store",
             "learn",
-            "classify"
+            "classify",
+            "relabel",
+            "compile",
+            "replay",
+            "predict",
+            "serve"
     };
 
     /**
@@ -67,9 +103,44 @@ class Main {
      *      $JAR -t learn -l nbayes [-e 0.3]
      * To build a Naive Bayes classifier and use 10-fold validation:
      *      $JAR -t learn -l nbayes -e 10
+     * To evaluate its folds 5 at once, with repeatable results:
+     *      $JAR -t learn -l nbayes -e 10 -F 5 -S 42
+     *
+     * To evaluate all the classifiers, 4 at once, within 8 GB:
+     *      $JAR -t learn -l all -C 4 -X 8192
      *
      * To classify unlabeled instances:
      *      $JAR -t classify -l nbayes
+     *
+     * To save the trained classifier, and then classify unlabeled instances by it:
+     *      $JAR -t learn -l nbayes -M nbayes.model
+     *      $JAR -t predict -M nbayes.model -o output.csv
+     * To keep it learning from the stream, saving it every 10 minutes:
+     *      $JAR -t store -s shp/tl_2014_us_state.shp -M nbayes.model -L 600
+     * To label users on demand, scoring up to 128 lookups at once:
+     *      $JAR -t serve -M nbayes.model [-P 8080] [-B 128] [-I 2]
+     *
+     * To relabel the stored tweets against a new shapefile:
+     *      $JAR -t relabel -s shp/tl_2014_us_county.shp [-R 50000]
+     *
+     * To store the stream in 4 shards, each one with its own writer:
+     *      $JAR -t store -s shp/tl_2014_us_state.shp -n 4
+     *
+     * To journal the raw statuses while storing them, and to replay the journal:
+     *      $JAR -t store -s shp/tl_2014_us_state.shp -j journal
+     *      $JAR -t replay -s shp/tl_2014_us_state.shp -j journal
+     *
+     * To measure the ingest throughput without the network, from synthetic statuses or from a file:
+     *      $JAR -t store -s shp/tl_2014_us_state.shp -i synthetic:count=100000,geo=0.5,place=0.3,repeat=0.9
+     *      $JAR -t store -s shp/tl_2014_us_state.shp -i statuses.json
+     *
+     * To keep only the last 30 days of tweets, and learn from the last 7:
+     *      $JAR -t store -s shp/tl_2014_us_state.shp -r 30
+     *      $JAR -t learn -l nbayes -d 7
+     *
+     * To compile a shapefile to a snapshot, and then use it:
+     *      $JAR -t compile -s shp/tl_2014_us_state.shp -o shp/tl_2014_us_state.geo
+     *      $JAR -t store -s shp/tl_2014_us_state.geo
      * @return The Options we accept.
      */
     private static Options createOptions() {
@@ -86,7 +157,9 @@ class Main {
 
         Option shapefile_path = Option.builder(SHAPEFILE)
                 .longOpt("shapefile")
-                .desc("shapefile path")
+                .desc("shapefile path, or path of its compiled snapshot (" + GeographySnapshot.EXTENSION + "); " +
+                        "separate with '" + GeographyHierarchy.PATH_SEPARATOR + "' the paths of finer levels " +
+                        "(e.g. countries,states,counties)")
                 .hasArg(true)
                 .required(false)
                 .type(String.class)
@@ -130,7 +203,8 @@ class Main {
 
         Option output_path = Option.builder(OUTPUT_PATH)
                 .longOpt("output path")
-                .desc("specify an optional output path for the unsupervised classification results")
+                .desc("specify an optional output path for the unsupervised classification results; " +
+                        "the snapshot output path while compiling a shapefile")
                 .hasArg(true)
                 .required(false)
                 .type(String.class)
@@ -157,6 +231,219 @@ class Main {
                 .build();
         options.addOption(learner_words);
 
+        Option queue_size = Option.builder(QUEUE_SIZE)
+                .longOpt("queue_size")
+                .desc("maximum number of statuses waiting to be stored; " +
+                        "statuses exceeding it are dropped (default " + Ingester.DEFAULT_QUEUE_SIZE + ")")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(queue_size);
+
+        Option batch_size = Option.builder(BATCH_SIZE)
+                .longOpt("batch_size")
+                .desc("number of statuses committed within a single transaction " +
+                        "(default " + Ingester.DEFAULT_BATCH_SIZE + ")")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(batch_size);
+
+        Option relabel_chunk = Option.builder(RELABEL_CHUNK)
+                .longOpt("relabel_chunk")
+                .desc("number of tweets relabeled within a single transaction " +
+                        "(default " + Storage.DEFAULT_RELABEL_CHUNK + ")")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(relabel_chunk);
+
+        Option flush_interval = Option.builder(FLUSH_INTERVAL)
+                .longOpt("flush_interval")
+                .desc("maximum time (ms) a status waits before being committed " +
+                        "(default " + Ingester.DEFAULT_FLUSH_INTERVAL + ")")
+                .hasArg(true)
+                .required(false)
+                .type(Long.class)
+                .build();
+        options.addOption(flush_interval);
+
+        Option geo_grid = Option.builder(GEO_GRID)
+                .longOpt("geo_grid")
+                .desc("number of cells per side of the grid pre-classifying the bounding box " +
+                        "to speed up the geographic lookups (max " + Geography.MAX_GRID_RESOLUTION + "); " +
+                        "disabled by default")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(geo_grid);
+
+        Option shards = Option.builder(SHARDS)
+                .longOpt("shards")
+                .desc("number of database files the users and their tweets are partitioned into, " +
+                        "each one with its own writer, at most " + Storage.MAX_SHARDS + "; " +
+                        "it can't change once tweets are stored (default: the number of existing shards)")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(shards);
+
+        Option retention = Option.builder(RETENTION)
+                .longOpt("retention")
+                .desc("number of days of tweets to keep: older daily partitions are dropped " +
+                        "(default: keep them all)")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(retention);
+
+        Option window = Option.builder(WINDOW)
+                .longOpt("window")
+                .desc("label the users by their tweets of the last days only, " +
+                        "while learning / classifying (default: all the tweets)")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(window);
+
+        Option journal = Option.builder(JOURNAL)
+                .longOpt("journal")
+                .desc("directory of the journal of the raw statuses: " +
+                        "written while storing the stream, read while replaying")
+                .hasArg(true)
+                .required(false)
+                .type(String.class)
+                .build();
+        options.addOption(journal);
+
+        Option input = Option.builder(INPUT)
+                .longOpt("input")
+                .desc("source of the stored statuses: " + Streamer.TWITTER_SOURCE + " (default); " +
+                        "a file of statuses, one JSON per line, or a journal directory; " +
+                        Streamer.SYNTHETIC_SOURCE + "[:count=N,rate=N,geo=R,place=R,places=N,repeat=R,seed=N] " +
+                        "for generated statuses")
+                .hasArg(true)
+                .required(false)
+                .type(String.class)
+                .build();
+        options.addOption(input);
+
+        Option threads = Option.builder(THREADS)
+                .longOpt("threads")
+                .desc("number of threads preparing the statuses (stemming, geocoding) before they are stored " +
+                        "(default: the available processors)")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(threads);
+
+        Option classifier_threads = Option.builder(CLASSIFIER_THREADS)
+                .longOpt("classifier_threads")
+                .desc("number of classifiers evaluated at once while learning " + LEARN_ALL + " " +
+                        "(default: the available processors)")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(classifier_threads);
+
+        Option fold_threads = Option.builder(FOLD_THREADS)
+                .longOpt("fold_threads")
+                .desc("number of cross-validation folds evaluated at once while learning a classifier (default: 1)")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(fold_threads);
+
+        Option memory = Option.builder(MEMORY)
+                .longOpt("memory")
+                .desc("heap (MB) the classifiers evaluated at once while learning " + LEARN_ALL + " may take, " +
+                        "as estimated from the training data (default: no limit)")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(memory);
+
+        Option seed = Option.builder(SEED)
+                .longOpt("seed")
+                .desc("seed randomizing the training data and the cross-validation folds, " +
+                        "to repeat an evaluation (default: random)")
+                .hasArg(true)
+                .required(false)
+                .type(Long.class)
+                .build();
+        options.addOption(seed);
+
+        Option model = Option.builder(MODEL)
+                .longOpt("model")
+                .desc("path of the model file: written by the learn task " +
+                        "(trained against all the training data), read by the predict and serve tasks")
+                .hasArg(true)
+                .required(false)
+                .type(String.class)
+                .build();
+        options.addOption(model);
+
+        Option learn_online = Option.builder(LEARN_ONLINE)
+                .longOpt("learn_online")
+                .desc("while storing, keep the model (-" + MODEL + ") learning from the stored tweets, " +
+                        "and save it every given number of seconds; " +
+                        "its classifier must be updateable (e.g. nbayes, htree)")
+                .hasArg(true)
+                .required(false)
+                .type(Long.class)
+                .build();
+        options.addOption(learn_online);
+
+        Option port = Option.builder(PORT)
+                .longOpt("port")
+                .desc("local port the serve task listens on (default " + ClassificationServer.DEFAULT_PORT + ")")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(port);
+
+        Option serve_threads = Option.builder(SERVE_THREADS)
+                .longOpt("serve_threads")
+                .desc("number of threads handling the requests of the serve task " +
+                        "(default " + ClassificationServer.DEFAULT_THREADS + ")")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(serve_threads);
+
+        Option serve_batch_size = Option.builder(SERVE_BATCH_SIZE)
+                .longOpt("serve_batch_size")
+                .desc("maximum number of lookups scored at once by the serve task " +
+                        "(default " + ClassificationServer.DEFAULT_BATCH_SIZE + ")")
+                .hasArg(true)
+                .required(false)
+                .type(Integer.class)
+                .build();
+        options.addOption(serve_batch_size);
+
+        Option serve_batch_interval = Option.builder(SERVE_BATCH_INTERVAL)
+                .longOpt("serve_batch_interval")
+                .desc("maximum time (ms) a lookup of the serve task waits for its batch to be filled " +
+                        "(default " + ClassificationServer.DEFAULT_BATCH_INTERVAL + ")")
+                .hasArg(true)
+                .required(false)
+                .type(Long.class)
+                .build();
+        options.addOption(serve_batch_interval);
+
         Option help = Option.builder(HELP)
                 .longOpt("help")
                 .desc("print this help")
@@ -169,6 +456,150 @@ class Main {
         return options;
     }
 
+    /**
+     * Parse a positive integer option, falling back to a default value.
+     *
+     * @param commandLine  the parsed command line.
+     * @param option       the option name.
+     * @param defaultValue the value returned if the option is missing or invalid.
+     * @return the option value.
+     */
+    private static int positiveIntOption(CommandLine commandLine, String option, int defaultValue) {
+        if (!commandLine.hasOption(option)) {
+            return defaultValue;
+        }
+
+        try {
+            final int value = Integer.parseInt(commandLine.getOptionValue(option));
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through.
+        }
+
+        logger.warn("Invalid -" + option + " value. Falling back to: " + defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * Open each shard of the storage.
+     *
+     * @param geography the geography assigning a country to the stored tweets.
+     * @param shards    the number of shards.
+     * @param retention the number of days of tweets to keep, see {@link Storage#setRetention(int)}.
+     * @return the storage shards.
+     * @throws ParseException if there are too many shards, or if they differ from the stored ones:
+     *                        a user and its tweets must always land in the same shard.
+     */
+    private static Storage[] openShards(GeographyHierarchy geography, int shards, int retention)
+            throws ParseException {
+        if (shards > Storage.MAX_SHARDS) {
+            throw new ParseException(String.format(
+                    "At most %d shards can be read as a whole (-%s).", Storage.MAX_SHARDS, SHARDS));
+        }
+
+        final int existing = Storage.countShards(DEFAULT_DATABASE_PATH);
+        if (new File(DEFAULT_DATABASE_PATH).exists() && existing != shards) {
+            throw new ParseException(String.format(
+                    "Found %d stored shards, but %d requested (-%s): users would be routed to other shards.",
+                    existing, shards, SHARDS));
+        }
+
+        final Storage[] storages = new Storage[shards];
+        final Thread[] loaders = new Thread[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            final Storage storage = new Storage(geography, Storage.shardPath(DEFAULT_DATABASE_PATH, shard));
+            storage.setRetention(retention);
+            storages[shard] = storage;
+
+            /* Before the stream starts: the writers won't stall on the first insert. */
+            loaders[shard] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        storage.preloadKnownIds();
+                    } catch (SQLException e) {
+                        logger.error("Error while loading the stored IDs, the first insert will retry.", e);
+                    }
+                }
+            }, "Storage-loader-" + shard);
+            loaders[shard].start();
+        }
+
+        for (Thread loader : loaders) {
+            try {
+                loader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return storages;
+    }
+
+    /**
+     * Sample again the unlabeled users we're going to classify, evenly from each shard.
+     *
+     * @throws SQLException on DB error.
+     */
+    private static void sampleUnlabeledUsers() throws SQLException {
+        final int shards = Storage.countShards(DEFAULT_DATABASE_PATH);
+        for (int shard = 0; shard < shards; shard++) {
+            final int size = Constants.classification_limit / shards +
+                    (shard < Constants.classification_limit % shards ? 1 : 0);
+            final Storage storage = new Storage(Storage.shardPath(DEFAULT_DATABASE_PATH, shard));
+            try {
+                if (size > 0) {
+                    storage.sampleUnlabeledUsers(size);
+                }
+            } finally {
+                storage.close();
+            }
+        }
+    }
+
+    /**
+     * Train the classifier of the learner against all the training data, and save it.
+     *
+     * @param learner    the learner, whose training data is loaded.
+     * @param model_path the model file.
+     * @throws Exception on classifier or write error.
+     */
+    private static void saveModel(Learner learner, String model_path) throws Exception {
+        learner.buildModel().save(model_path);
+        logger.info("Model saved to {}.", model_path);
+    }
+
+    /**
+     * Load the model to be kept learning while storing, if requested.
+     *
+     * @param commandLine the parsed command line.
+     * @return the learner, or null if not requested.
+     * @throws ParseException if the model is missing or can't be updated.
+     * @throws Exception on model read error.
+     */
+    private static OnlineLearner createOnlineLearner(CommandLine commandLine) throws Exception {
+        if (!commandLine.hasOption(LEARN_ONLINE)) {
+            return null;
+        }
+
+        final String model_path = commandLine.getOptionValue(MODEL);
+        if (model_path == null) {
+            throw new ParseException("-" + LEARN_ONLINE + " requires a model (-" + MODEL + ")");
+        }
+
+        try {
+            return new OnlineLearner(
+                    Model.load(model_path),
+                    model_path,
+                    positiveIntOption(commandLine, LEARN_ONLINE, (int) OnlineLearner.DEFAULT_CHECKPOINT_INTERVAL)
+            );
+        } catch (IllegalArgumentException e) {
+            throw new ParseException(e.getMessage());
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         // Create the command line parser
         CommandLineParser parser = new DefaultParser();
@@ -204,34 +635,109 @@ class Main {
                     );
                 }
 
-                Geography geography = new Geography(shapefile_path);
-                final Storage storage = new Storage(geography, DEFAULT_DATABASE_PATH);
-                final Streamer streamer = new Streamer(storage);
+                GeographyHierarchy geography = GeographyHierarchy.load(
+                        shapefile_path,
+                        positiveIntOption(commandLine, GEO_GRID, 0)
+                );
+                final Storage[] storages = openShards(
+                        geography,
+                        positiveIntOption(commandLine, SHARDS, Storage.countShards(DEFAULT_DATABASE_PATH)),
+                        positiveIntOption(commandLine, RETENTION, 0)
+                );
+                final Ingester ingester = new Ingester(
+                        storages,
+                        positiveIntOption(commandLine, QUEUE_SIZE, Ingester.DEFAULT_QUEUE_SIZE),
+                        positiveIntOption(commandLine, BATCH_SIZE, Ingester.DEFAULT_BATCH_SIZE),
+                        positiveIntOption(commandLine, FLUSH_INTERVAL, (int) Ingester.DEFAULT_FLUSH_INTERVAL),
+                        positiveIntOption(commandLine, THREADS, Runtime.getRuntime().availableProcessors())
+                );
+                final OnlineLearner learner = createOnlineLearner(commandLine);
+                if (learner != null) {
+                    ingester.setLearner(learner);
+                }
+
+                final String streaming_bias = commandLine.getOptionValue(STREAM_BIAS, Streamer.Bias.geo.toString());
+                Streamer.Bias bias = Streamer.Bias.geo;
+
+                try {
+                    bias = Streamer.Bias.valueOf(streaming_bias);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Illegal bias type. Falling back to: " + Streamer.Bias.geo.toString());
+                }
+
+                final String input = commandLine.getOptionValue(INPUT, Streamer.TWITTER_SOURCE);
+                final StreamSource source;
+                try {
+                    source = Streamer.createSource(input, bias, commandLine.hasOption(JOURNAL));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
 
-                // While shutting down we'll close the storage.
+                final Journal journal = commandLine.hasOption(JOURNAL) ?
+                        new Journal(commandLine.getOptionValue(JOURNAL)) : null;
+                final Streamer streamer = new Streamer(ingester, journal);
+
+                // While shutting down we'll drain the pending statuses and close the storage.
                 Runtime.getRuntime().addShutdownHook(new Thread() {
                     public void run() {
                             try {
                                 logger.info("Shutting down...");
                                 streamer.stopListening();
-                                storage.close();
-                            } catch (SQLException e) {
+                                if (journal != null) {
+                                    journal.close();
+                                }
+                                ingester.close();
+                                if (learner != null) {
+                                    learner.close();
+                                }
+                                for (Storage storage : storages) {
+                                    storage.close();
+                                }
+                            } catch (SQLException | InterruptedException | IOException e) {
                                 logger.debug("Error while shutting down.", e);
                                 // We're shutting down, nothing we can do.
                             }
                         }
                 });
 
-                final String streaming_bias = commandLine.getOptionValue(STREAM_BIAS, Streamer.Bias.geo.toString());
-                Streamer.Bias bias = Streamer.Bias.geo;
+                if (learner != null) {
+                    learner.start();
+                }
+                ingester.start();
+                streamer.startListening(source);
 
-                try {
-                    bias = Streamer.Bias.valueOf(streaming_bias);
-                } catch (IllegalArgumentException e) {
-                    logger.warn("Illegal bias type. Falling back to: " + Streamer.Bias.geo.toString());
+                if (!input.equals(Streamer.TWITTER_SOURCE)) {
+                    // Local sources are finite: once exhausted, drain the pending statuses and exit.
+                    streamer.join();
+                    System.exit(0);
+                }
+            }
+            /**
+             * In case of a "relabel" task we need the (new) shapefile.
+             */
+            else if (TASK_TYPE[3].equals(value)) {
+                String shapefile_path = commandLine.getOptionValue(SHAPEFILE);
+                if (shapefile_path == null) {
+                    throw new ParseException(
+                            "-" + TASK + " " + TASK_TYPE[3] + " requires a shapefile (-" + SHAPEFILE + ")"
+                    );
                 }
 
-                streamer.startListening(bias);
+                GeographyHierarchy geography = GeographyHierarchy.load(
+                        shapefile_path,
+                        positiveIntOption(commandLine, GEO_GRID, 0)
+                );
+                final int shards = Storage.countShards(DEFAULT_DATABASE_PATH);
+                for (int shard = 0; shard < shards; shard++) {
+                    final Storage storage = new Storage(geography, Storage.shardPath(DEFAULT_DATABASE_PATH, shard));
+                    try {
+                        storage.relabelTweets(
+                                positiveIntOption(commandLine, RELABEL_CHUNK, Storage.DEFAULT_RELABEL_CHUNK)
+                        );
+                    } finally {
+                        storage.close();
+                    }
+                }
             }
             /**
              * In case of a "learn" or "classify" task we need the classifier name.
@@ -254,6 +760,15 @@ class Main {
                 } catch (NumberFormatException e) {
                     logger.warn("Invalid -" + LEARNER_WORDS + "value. Ignoring it...");
                 }
+                final int window = positiveIntOption(commandLine, WINDOW, 0);
+                Long seed = null;
+                if (commandLine.hasOption(SEED)) {
+                    try {
+                        seed = Long.parseLong(commandLine.getOptionValue(SEED));
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("Invalid seed " + commandLine.getOptionValue(SEED));
+                    }
+                }
 
                 if (TASK_TYPE[1].equals(value)) {
                     String evaluation_rate_string = commandLine.getOptionValue(EVALUATION_RATE, DEFAULT_EVALUATION_RATE);
@@ -274,57 +789,168 @@ class Main {
                         if (commandLine.hasOption(LEARNER_CL)) {
                             logger.warn("-" + LEARNER_CL + " ignored with -" + TASK + " " + LEARN_ALL);
                         }
-                        Evaluation bestEval = null;
-                        Learner bestLearner = null;
-
-                        for (String classifier : Learner.classifiers.keySet()) {
-                            Learner learner = new Learner(
-                                    classifier,
-                                    null,
-                                    wordsToKeep
-                            );
-                            if ((eval = learner.buildAndEvaluate(evaluation_rate)) == null) {
-                                return;
-                            }
-                            logger.info(eval.toSummaryString("Results\n", false));
-
-                            int classIndex = learner.getTrainingData().classIndex();
-                            // Keep the best learner.
-                            if (bestEval == null || eval.precision(classIndex) > bestEval.precision(classIndex)) {
-                                bestEval = eval;
-                                bestLearner = learner;
-                            }
+                        final ParallelEvaluator evaluator = new ParallelEvaluator(
+                                positiveIntOption(commandLine, CLASSIFIER_THREADS,
+                                        Runtime.getRuntime().availableProcessors()),
+                                positiveIntOption(commandLine, MEMORY, 0)
+                        );
+                        final List<ParallelEvaluator.Result> results = evaluator.evaluate(
+                                Learner.classifiers.keySet(), wordsToKeep, window, seed, evaluation_rate
+                        );
+                        if (results.isEmpty()) {
+                            logger.fatal("No classifier could be evaluated.");
+                            return;
                         }
 
-                        // Print the best learner stats.
-                        assert bestEval != null;
+                        // Print the ranking and the best learner stats.
+                        final ParallelEvaluator.Result best = results.get(0);
+                        System.out.println("\n==== Ranking ====\n" + ParallelEvaluator.summary(results));
                         System.out.println(
-                                bestEval.toSummaryString(
+                                best.getEvaluation().toSummaryString(
                                         String.format("\n==== Best Classifier: %s ====\n",
-                                                bestLearner.getClassifier().getClass().getSimpleName()),
+                                                best.getLearner().getClassifier().getClass().getSimpleName()),
                                         false)
                         );
+
+                        if (commandLine.hasOption(MODEL)) {
+                            saveModel(best.getLearner(), commandLine.getOptionValue(MODEL));
+                        }
                     } else {
                         Learner learner = new Learner(
                                 classifier_name,
                                 commandLine.getOptionValue(LEARNER_CL, null),
                                 wordsToKeep
                         );
+                        learner.setWindow(window);
+                        learner.setSeed(seed);
+                        learner.setThreads(positiveIntOption(commandLine, FOLD_THREADS, 1));
 
                         if ((eval = learner.buildAndEvaluate(evaluation_rate)) == null) {
                             return;
                         }
 
                         logger.info(eval.toSummaryString("Results\n", false));
+
+                        if (commandLine.hasOption(MODEL)) {
+                            saveModel(learner, commandLine.getOptionValue(MODEL));
+                        }
                     }
                 } else {
+                    sampleUnlabeledUsers();
+
                     Learner learner = new Learner(
                             classifier_name,
                             commandLine.getOptionValue(LEARNER_CL, null),
                             wordsToKeep
                     );
+                    learner.setWindow(window);
+                    learner.setSeed(seed);
                     learner.buildAndClassify(commandLine.getOptionValue(OUTPUT_PATH, null));
                 }
+            }
+            /**
+             * In case of a "predict" task we need the model.
+             */
+            else if (TASK_TYPE[6].equals(value)) {
+                String model_path = commandLine.getOptionValue(MODEL);
+                if (model_path == null) {
+                    throw new ParseException(
+                            "-" + TASK + " " + TASK_TYPE[6] + " requires a model (-" + MODEL + ")"
+                    );
+                }
+
+                final Model model = Model.load(model_path);
+                sampleUnlabeledUsers();
+                Learner.predict(model, commandLine.getOptionValue(OUTPUT_PATH, null));
+            }
+            /**
+             * In case of a "serve" task we need the model.
+             * We keep serving until we're killed.
+             */
+            else if (TASK_TYPE[7].equals(value)) {
+                String model_path = commandLine.getOptionValue(MODEL);
+                if (model_path == null) {
+                    throw new ParseException(
+                            "-" + TASK + " " + TASK_TYPE[7] + " requires a model (-" + MODEL + ")"
+                    );
+                }
+
+                final ClassificationServer server = new ClassificationServer(
+                        Model.load(model_path),
+                        positiveIntOption(commandLine, PORT, ClassificationServer.DEFAULT_PORT),
+                        positiveIntOption(commandLine, SERVE_THREADS, ClassificationServer.DEFAULT_THREADS),
+                        positiveIntOption(commandLine, SERVE_BATCH_SIZE, ClassificationServer.DEFAULT_BATCH_SIZE),
+                        positiveIntOption(commandLine, SERVE_BATCH_INTERVAL,
+                                (int) ClassificationServer.DEFAULT_BATCH_INTERVAL)
+                );
+
+                // While shutting down we'll answer the pending lookups.
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        try {
+                            logger.info("Shutting down...");
+                            server.stop();
+                        } catch (InterruptedException e) {
+                            logger.debug("Error while shutting down.", e);
+                            // We're shutting down, nothing we can do.
+                        }
+                    }
+                });
+
+                server.start();
+            }
+            /**
+             * In case of a "replay" task we need the shapefile and the journal.
+             */
+            else if (TASK_TYPE[5].equals(value)) {
+                String shapefile_path = commandLine.getOptionValue(SHAPEFILE);
+                String journal_path = commandLine.getOptionValue(JOURNAL);
+                if (shapefile_path == null || journal_path == null) {
+                    throw new ParseException(
+                            "-" + TASK + " " + TASK_TYPE[5] + " requires a shapefile (-" + SHAPEFILE + ")" +
+                                    " and a journal (-" + JOURNAL + ")"
+                    );
+                }
+
+                GeographyHierarchy geography = GeographyHierarchy.load(
+                        shapefile_path,
+                        positiveIntOption(commandLine, GEO_GRID, 0)
+                );
+                final Storage[] storages = openShards(
+                        geography,
+                        positiveIntOption(commandLine, SHARDS, Storage.countShards(DEFAULT_DATABASE_PATH)),
+                        positiveIntOption(commandLine, RETENTION, 0)
+                );
+                try {
+                    new Replayer(
+                            storages,
+                            journal_path,
+                            positiveIntOption(commandLine, BATCH_SIZE, Ingester.DEFAULT_BATCH_SIZE)
+                    ).replay();
+                } finally {
+                    for (Storage storage : storages) {
+                        storage.close();
+                    }
+                }
+            }
+            /**
+             * In case of a "compile" task we need the shapefile and the snapshot path.
+             */
+            else if (TASK_TYPE[4].equals(value)) {
+                String shapefile_path = commandLine.getOptionValue(SHAPEFILE);
+                String snapshot_path = commandLine.getOptionValue(OUTPUT_PATH);
+                if (shapefile_path == null || snapshot_path == null) {
+                    throw new ParseException(
+                            "-" + TASK + " " + TASK_TYPE[4] + " requires a shapefile (-" + SHAPEFILE + ")" +
+                                    " and an output path (-" + OUTPUT_PATH + ")"
+                    );
+                } else if (!GeographySnapshot.isSnapshot(snapshot_path)) {
+                    throw new ParseException(
+                            "The snapshot path must end with " + GeographySnapshot.EXTENSION
+                    );
+                }
+
+                GeographySnapshot.write(Geography.loadShapefile(shapefile_path), snapshot_path);
             } else {
                 throw new ParseException(value + "is not a valid value for -" + TASK);
             }
@@ -0,0 +1,270 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.filters.Filter;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trained classifier, along with all it needs to label new users:
+ * the header of the users as loaded from the DB (with the location as a string,
+ * when it is converted to a vector of words: new locations are split into words as well),
+ * the filters fitted on the training data (e.g. the location vector of words),
+ * and the header of the instances the classifier has been built on.
+ *
+ * Models are built by {@link Learner#buildModel()}, and saved to a file
+ * so that users can be labeled without training the classifier again.
+ * Models of updateable classifiers can keep learning from new users, see {@link #update(Map)}.
+ * A model is used by a thread at a time: its methods are synchronized.
+ */
+class Model implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final static Logger logger = LogManager.getLogger(Model.class.getSimpleName());
+
+    private final Classifier classifier;
+    /**
+     * The header of the users, as loaded from the DB (without their ID).
+     * It holds no string values: they are set for each user, see {@link #header()}.
+     */
+    private final Instances rawHeader;
+    /**
+     * Fitted on the training data: applied in order, they keep a state between input and output.
+     */
+    private final Filter[] filters;
+    /**
+     * The header of the instances the classifier has been built on.
+     */
+    private final Instances header;
+
+    /**
+     * Build a model.
+     *
+     * @param classifier the trained classifier.
+     * @param rawHeader  the header of the users, as loaded from the DB.
+     * @param filters    the filters fitted on the training data, in order.
+     * @param header     the header of the training data, filtered.
+     */
+    Model(Classifier classifier, Instances rawHeader, Filter[] filters, Instances header) {
+        assert classifier != null && filters != null;
+        assert header.classIndex() >= 0;
+
+        this.classifier = classifier;
+        this.rawHeader = rawHeader.stringFreeStructure();
+        this.filters = filters;
+        this.header = new Instances(header, 0);
+    }
+
+    /**
+     * @param path the model file.
+     * @return the model.
+     * @throws Exception on read error.
+     */
+    public static Model load(String path) throws Exception {
+        return (Model) SerializationHelper.read(path);
+    }
+
+    /**
+     * @param path the model file.
+     * @throws Exception on write error.
+     */
+    public synchronized void save(String path) throws Exception {
+        SerializationHelper.write(path, this);
+    }
+
+    public Classifier getClassifier() {
+        return this.classifier;
+    }
+
+    /**
+     * @return true if the model can keep learning, see {@link #update(Map)}.
+     */
+    public boolean isUpdateable() {
+        return this.classifier instanceof UpdateableClassifier;
+    }
+
+    /**
+     * @param attribute an attribute of the header of a user, see {@link #header()}.
+     * @param value     the value of the attribute: a number or a string, or null if missing.
+     * @return the internal value of the attribute.
+     */
+    private static double value(Attribute attribute, Object value) {
+        if (value == null) {
+            return Utils.missingValue();
+        } else if (attribute.isString()) {
+            return attribute.addStringValue(value.toString());
+        } else if (attribute.isNumeric()) {
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException e) {
+                return Utils.missingValue();
+            }
+        }
+
+        final int index = attribute.indexOfValue(value.toString());
+        return index >= 0 ? index : Utils.missingValue();
+    }
+
+    /**
+     * @return the header of a new user: a copy of {@link #rawHeader} if it has string attributes,
+     * so that the values of the user can be added to them.
+     */
+    private Instances header() {
+        return this.rawHeader.checkForStringAttributes() ? this.rawHeader.stringFreeStructure() : this.rawHeader;
+    }
+
+    /**
+     * Apply the fitted filters to a user.
+     *
+     * @param values the values of the user, one per attribute of the header.
+     * @param header the header of the user, see {@link #header()}.
+     * @return the user, as the classifier accepts it.
+     * @throws Exception on filter error.
+     */
+    private Instance filter(double[] values, Instances header) throws Exception {
+        Instance instance = new DenseInstance(1, values);
+        instance.setDataset(header);
+        for (Filter filter : this.filters) {
+            filter.input(instance);
+            instance = filter.output();
+        }
+
+        instance.setDataset(this.header);
+        return instance;
+    }
+
+    /**
+     * Convert a user to an instance the classifier accepts.
+     *
+     * @param user the attributes of the user by name, as in the DB (see {@link Storage});
+     *             missing ones are treated as missing values.
+     * @return the user, converted.
+     * @throws Exception on filter error.
+     */
+    synchronized Instance convertAttributes(Map<String, ?> user) throws Exception {
+        final Instances header = this.header();
+        final double[] values = new double[header.numAttributes()];
+        for (int i = 0; i < values.length; i++) {
+            final Attribute attribute = header.attribute(i);
+            values[i] = value(attribute, user.get(attribute.name()));
+        }
+        return this.filter(values, header);
+    }
+
+    /**
+     * Convert a user to an instance the classifier accepts.
+     * Attributes are matched by name, so that any header loaded from the DB will do:
+     * nominal values the classifier has never seen are treated as missing.
+     * Attributes missing from the user (e.g. its ID) are ignored.
+     *
+     * @param user the user, as loaded from the DB.
+     * @return the user, converted.
+     * @throws Exception on filter error.
+     */
+    private Instance convert(Instance user) throws Exception {
+        final Instances source = user.dataset();
+        final Instances header = this.header();
+        final double[] values = new double[header.numAttributes()];
+        for (int i = 0; i < values.length; i++) {
+            final Attribute attribute = header.attribute(i);
+            final Attribute sourceAttribute = source.attribute(attribute.name());
+
+            if (sourceAttribute == null || user.isMissing(sourceAttribute)) {
+                values[i] = Utils.missingValue();
+            } else if (attribute.isNumeric()) {
+                values[i] = user.value(sourceAttribute);
+            } else {
+                values[i] = value(attribute, user.stringValue(sourceAttribute));
+            }
+        }
+        return this.filter(values, header);
+    }
+
+    /**
+     * Label a user.
+     *
+     * @param user the user, as loaded from the DB.
+     * @return the country of the user, or null if the classifier couldn't label it.
+     * @throws Exception on classification error.
+     */
+    public synchronized String classify(Instance user) throws Exception {
+        return this.label(this.classifier.classifyInstance(this.convert(user)));
+    }
+
+    /**
+     * Label a user.
+     *
+     * @param user the attributes of the user by name, see {@link #convertAttributes(Map)}.
+     * @return the country of the user, or null if the classifier couldn't label it.
+     * @throws Exception on classification error.
+     */
+    public synchronized String classify(Map<String, ?> user) throws Exception {
+        return this.label(this.classifier.classifyInstance(this.convertAttributes(user)));
+    }
+
+    /**
+     * @param classification the index of a class, as returned by the classifier.
+     * @return the name of the class, or null if the classification is missing
+     * (e.g. no class is more likely than the others): it must not fall back to the first class.
+     */
+    private String label(double classification) {
+        if (Utils.isMissingValue(classification)) {
+            return null;
+        }
+        return this.header.classAttribute().value((int) classification);
+    }
+
+    /**
+     * Label many users at once, holding the model for all of them.
+     * The users are still converted and classified one by one.
+     *
+     * @param users the attributes of the users by name, see {@link #convertAttributes(Map)}.
+     * @return the countries of the users, in order: null for the users that could not be labeled.
+     */
+    public synchronized String[] classifyAll(List<? extends Map<String, ?>> users) {
+        final String[] countries = new String[users.size()];
+        for (int i = 0; i < countries.length; i++) {
+            try {
+                countries[i] = this.classify(users.get(i));
+            } catch (Exception e) {
+                logger.error("Error while classifying user {}.", users.get(i), e);
+                countries[i] = null;
+            }
+        }
+        return countries;
+    }
+
+    /**
+     * Keep learning from a labeled user.
+     * The classifier must be updateable, see {@link #isUpdateable()}.
+     *
+     * @param user the attributes of the user by name, see {@link #convertAttributes(Map)},
+     *             including its country ({@link Storage#COUNTRY}).
+     * @return false if the user has been ignored: its country is unknown to the model.
+     * @throws Exception on classifier error.
+     */
+    public synchronized boolean update(Map<String, ?> user) throws Exception {
+        assert this.isUpdateable();
+
+        final Instance instance = this.convertAttributes(user);
+        if (instance.classIsMissing()) {
+            return false;
+        }
+
+        ((UpdateableClassifier) this.classifier).updateClassifier(instance);
+        return true;
+    }
+}
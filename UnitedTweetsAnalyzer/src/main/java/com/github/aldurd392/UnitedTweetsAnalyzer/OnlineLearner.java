@@ -0,0 +1,190 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keep a saved {@link Model} learning from the stream, while storing it.
+ *
+ * As in the training data, each user is learnt once: when its first located tweet is stored
+ * (see {@link TweetRecord#labeled} and {@link Ingester}), labeled with the country of that tweet.
+ * The user is handed over to a background thread, that updates the classifier.
+ * Its later tweets are not learnt: should they change the label of the user
+ * (the plurality of its countries, see {@link Storage}), the classifier can't forget the first one,
+ * and the user would count twice.
+ * The model is saved again periodically (and on close), replacing the model file atomically.
+ *
+ * The classifier must be updateable (e.g. nbayes or htree), see {@link Model#isUpdateable()}.
+ */
+class OnlineLearner {
+    private final static Logger logger = LogManager.getLogger(OnlineLearner.class.getSimpleName());
+
+    public final static long DEFAULT_CHECKPOINT_INTERVAL = 300;  // s
+    private final static int CAPACITY = 10000;
+    private final static String TMP_SUFFIX = ".tmp";
+
+    /**
+     * How long the learner sleeps when it finds the queue empty.
+     */
+    private final static long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final Model model;
+    private final String path;
+    private final long checkpointIntervalNanos;
+
+    /**
+     * The users waiting to be learnt, bounded as in {@link Ingester}.
+     */
+    private final ConcurrentLinkedQueue<Map<String, Object>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private long updates = 0;
+    private long ignored = 0;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Build the learner.
+     *
+     * @param model              the model to be updated.
+     * @param path               the file the model is saved to.
+     * @param checkpointInterval how often (s) the model is saved.
+     * @throws IllegalArgumentException if the classifier of the model is not updateable.
+     */
+    public OnlineLearner(Model model, String path, long checkpointInterval) {
+        assert (model != null && path != null && checkpointInterval > 0);
+        if (!model.isUpdateable()) {
+            throw new IllegalArgumentException(String.format(
+                    "The classifier %s can't be updated.", model.getClassifier().getClass().getSimpleName()));
+        }
+
+        this.model = model;
+        this.path = path;
+        this.checkpointIntervalNanos = TimeUnit.SECONDS.toNanos(checkpointInterval);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                learn();
+            }
+        }, OnlineLearner.class.getSimpleName());
+    }
+
+    public Model getModel() {
+        return this.model;
+    }
+
+    /**
+     * Start the learner thread.
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Hand a stored tweet over to the learner, if it has labeled its user for the first time.
+     * This never blocks: if the queue is full the user is dropped.
+     *
+     * @param tweet a stored tweet: its fields are copied, the record can be reused.
+     */
+    public void offer(TweetRecord tweet) {
+        if (!tweet.stored || !tweet.hasUser || !tweet.labeled) {
+            return;
+        } else if (!this.running) {
+            this.dropped.incrementAndGet();
+            return;
+        } else if (this.depth.incrementAndGet() > CAPACITY) {
+            this.depth.decrementAndGet();
+            this.dropped.incrementAndGet();
+            return;
+        }
+
+        final Map<String, Object> user = new HashMap<>();
+        user.put(Storage.LANG, tweet.lang);
+        user.put(Storage.LOCATION, tweet.location);
+        user.put(Storage.UTC_OFFSET, tweet.utcOffset == -1 ? null : tweet.utcOffset);
+        user.put(Storage.TIMEZONE, tweet.timezone);
+        user.put(Storage.COUNTRY, tweet.countries[0]);
+        this.queue.offer(user);
+    }
+
+    /**
+     * Learner loop: update the model with the queued users, and save it periodically.
+     * On shutdown, keep going until the queue is empty, then save it.
+     */
+    private void learn() {
+        long nextCheckpoint = System.nanoTime() + this.checkpointIntervalNanos;
+
+        while (this.running || !this.queue.isEmpty()) {
+            final Map<String, Object> user = this.queue.poll();
+            if (user != null) {
+                this.depth.decrementAndGet();
+                try {
+                    if (this.model.update(user)) {
+                        this.updates++;
+                    } else {
+                        this.ignored++;
+                    }
+                } catch (Exception e) {
+                    logger.error("Error while updating the model.", e);
+                    this.ignored++;
+                }
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+
+            if (System.nanoTime() - nextCheckpoint >= 0) {
+                this.checkpoint();
+                nextCheckpoint = System.nanoTime() + this.checkpointIntervalNanos;
+            }
+        }
+
+        this.checkpoint();
+    }
+
+    /**
+     * Save the model to a temporary file, then move it in place:
+     * the model file is always complete.
+     */
+    private void checkpoint() {
+        final File file = new File(this.path);
+        final File tmp = new File(this.path + TMP_SUFFIX);
+        try {
+            final long start = System.currentTimeMillis();
+            this.model.save(tmp.getPath());
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            logger.info("Model saved to {} in {} ms: {} users learnt, {} with an unknown country, {} dropped.",
+                    this.path, System.currentTimeMillis() - start, this.updates, this.ignored, this.dropped.get());
+        } catch (Exception e) {
+            logger.error("Error while saving the model to {}.", this.path, e);
+        }
+    }
+
+    /**
+     * Stop accepting users, wait for the learner to drain the queue and save the model.
+     *
+     * @throws InterruptedException if interrupted while waiting for the learner.
+     */
+    public void close() throws InterruptedException {
+        this.running = false;
+
+        LockSupport.unpark(this.thread);
+        if (this.thread.isAlive()) {
+            this.thread.join();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import weka.classifiers.Evaluation;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Evaluate many classifiers against the same training data, concurrently.
+ *
+ * The training data is loaded once, and shared by all the learners:
+ * each one gets its own copy of the set, but not of the instances.
+ * Each classifier is then built and evaluated as an independent task on a pool of threads.
+ * Optionally, the tasks running at once are limited by the heap they are estimated to need,
+ * see {@link Learner#estimateMemory()}.
+ */
+class ParallelEvaluator {
+    private final static Logger logger = LogManager.getLogger(ParallelEvaluator.class.getSimpleName());
+
+    private final int threads;
+    /**
+     * The heap (MB) shared by the running tasks, or null if unlimited.
+     */
+    private final Semaphore memory;
+    private final int memoryCap;
+
+    /**
+     * Build the evaluator.
+     *
+     * @param threads   the number of classifiers evaluated at once.
+     * @param memoryCap the heap (MB) the classifiers evaluated at once may take; 0 for no limit.
+     */
+    public ParallelEvaluator(int threads, int memoryCap) {
+        assert threads > 0 && memoryCap >= 0;
+
+        this.threads = threads;
+        this.memoryCap = memoryCap;
+        this.memory = memoryCap > 0 ? new Semaphore(memoryCap, true) : null;
+
+        final long maxMemory = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+        if (memoryCap > maxMemory) {
+            logger.warn("The memory cap ({} MB) exceeds the maximum heap size ({} MB).", memoryCap, maxMemory);
+        }
+    }
+
+    /**
+     * The evaluation of a classifier.
+     */
+    public static final class Result {
+        private final String name;
+        private final Learner learner;
+        private final Evaluation evaluation;
+        private final long elapsed;
+
+        Result(String name, Learner learner, Evaluation evaluation, long elapsed) {
+            this.name = name;
+            this.learner = learner;
+            this.evaluation = evaluation;
+            this.elapsed = elapsed;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public Learner getLearner() {
+            return this.learner;
+        }
+
+        public Evaluation getEvaluation() {
+            return this.evaluation;
+        }
+
+        /**
+         * @return the time taken to build and evaluate the classifier (ms).
+         */
+        public long getElapsed() {
+            return this.elapsed;
+        }
+    }
+
+    /**
+     * Results are ranked by weighted precision, then by accuracy.
+     */
+    private final static Comparator<Result> RANKING = new Comparator<Result>() {
+        @Override
+        public int compare(Result a, Result b) {
+            final int precision = Double.compare(
+                    b.evaluation.weightedPrecision(), a.evaluation.weightedPrecision());
+            return precision != 0 ? precision : Double.compare(b.evaluation.pctCorrect(), a.evaluation.pctCorrect());
+        }
+    };
+
+    /**
+     * Load the training data once, then build and evaluate each classifier.
+     *
+     * @param names           the names of the classifiers, see {@link Learner#classifiers}.
+     * @param wordsToKeep     see {@link Learner#Learner(String, String, int)}.
+     * @param window          see {@link Learner#setWindow(int)}.
+     * @param seed            see {@link Learner#setSeed(Long)}.
+     * @param evaluation_rate see {@link Learner#buildAndEvaluate(float)}.
+     * @return the results of the classifiers evaluated successfully, from the best.
+     * @throws Exception on training data load error.
+     */
+    public List<Result> evaluate(Collection<String> names, int wordsToKeep, int window, Long seed,
+                                 float evaluation_rate) throws Exception {
+        final List<String> sorted = sorted(names);
+        if (sorted.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        final Learner loader = new Learner(sorted.get(0), null, wordsToKeep);
+        loader.setWindow(window);
+        loader.setSeed(seed);
+        loader.loadTrainingData();
+        return this.evaluateAll(sorted, loader, wordsToKeep, seed, evaluation_rate);
+    }
+
+    /**
+     * Build and evaluate each classifier against training data already loaded,
+     * see {@link Learner#setTrainingData(Instances)}.
+     *
+     * @param names           the names of the classifiers, see {@link Learner#classifiers}.
+     * @param data            the training data, shared by the classifiers.
+     * @param seed            see {@link Learner#setSeed(Long)}.
+     * @param evaluation_rate see {@link Learner#buildAndEvaluate(float)}.
+     * @return the results of the classifiers evaluated successfully, from the best.
+     * @throws Exception on classifier instantiation error.
+     */
+    public List<Result> evaluate(Collection<String> names, Instances data, Long seed,
+                                 float evaluation_rate) throws Exception {
+        final List<String> sorted = sorted(names);
+        if (sorted.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        final Learner loader = new Learner(sorted.get(0), null, 0);
+        loader.setTrainingData(data);
+        return this.evaluateAll(sorted, loader, 0, seed, evaluation_rate);
+    }
+
+    /**
+     * @param names the names of the classifiers.
+     * @return the names, sorted.
+     */
+    private static List<String> sorted(Collection<String> names) {
+        final List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Build and evaluate each classifier, as an independent task on the pool.
+     *
+     * @param sorted the names of the classifiers, sorted.
+     * @param loader the learner that has loaded the training data.
+     * @return the results of the classifiers evaluated successfully, from the best.
+     */
+    private List<Result> evaluateAll(final List<String> sorted, final Learner loader, final int wordsToKeep,
+                                     final Long seed, final float evaluation_rate) throws Exception {
+        logger.info("Evaluating {} classifiers on {} threads, against {} instances{}.",
+                sorted.size(), this.threads, loader.getTrainingData().numInstances(),
+                this.memory != null ? " within " + this.memoryCap + " MB" : "");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        final List<Future<Result>> futures = new ArrayList<>(sorted.size());
+        try {
+            for (final String name : sorted) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws Exception {
+                        return evaluate(name, loader, wordsToKeep, seed, evaluation_rate);
+                    }
+                }));
+            }
+
+            final List<Result> results = new ArrayList<>(sorted.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    final Result result = futures.get(i).get();
+                    if (result != null) {
+                        results.add(result);
+                    }
+                } catch (ExecutionException e) {
+                    logger.error("Error while evaluating classifier {}.", sorted.get(i), e.getCause());
+                }
+            }
+
+            Collections.sort(results, RANKING);
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Build and evaluate a classifier, once the memory it needs is available.
+     *
+     * @return the result, or null if the evaluation failed.
+     */
+    private Result evaluate(String name, Learner loader, int wordsToKeep, Long seed, float evaluation_rate)
+            throws Exception {
+        final Learner learner = new Learner(name, null, wordsToKeep);
+        learner.setSeed(seed);
+        learner.shareTrainingData(loader);
+
+        final int permits = this.memory != null ? Math.min(this.memoryCap, learner.estimateMemory()) : 0;
+        if (permits > 0) {
+            logger.debug("Classifier {} waits for {} MB.", name, permits);
+            this.memory.acquire(permits);
+        }
+
+        try {
+            final long start = System.currentTimeMillis();
+            final Evaluation evaluation = learner.buildAndEvaluate(evaluation_rate);
+            final long elapsed = System.currentTimeMillis() - start;
+            if (evaluation == null) {
+                return null;
+            }
+
+            logger.info(evaluation.toSummaryString(String.format("Results of %s\n", name), false));
+            return new Result(name, learner, evaluation, elapsed);
+        } finally {
+            if (permits > 0) {
+                this.memory.release(permits);
+            }
+        }
+    }
+
+    /**
+     * @param results the ranked results, see {@link #evaluate(Collection, int, int, Long, float)}.
+     * @return a table of the results, one per line.
+     */
+    public static String summary(List<Result> results) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%4s  %-16s %9s %9s %9s %9s %9s %10s%n",
+                "Rank", "Classifier", "Accuracy", "Precision", "Recall", "F-Measure", "Kappa", "Time (s)"));
+
+        int rank = 1;
+        for (Result result : results) {
+            final Evaluation evaluation = result.evaluation;
+            builder.append(String.format("%4d  %-16s %8.2f%% %9.4f %9.4f %9.4f %9.4f %10.1f%n",
+                    rank++, result.name,
+                    evaluation.pctCorrect(),
+                    evaluation.weightedPrecision(),
+                    evaluation.weightedRecall(),
+                    evaluation.weightedFMeasure(),
+                    evaluation.kappa(),
+                    result.elapsed / 1000.0));
+        }
+        return builder.toString();
+    }
+}
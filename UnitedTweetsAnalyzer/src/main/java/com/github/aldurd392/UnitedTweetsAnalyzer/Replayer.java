@@ -0,0 +1,317 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replay the {@link Journal} into the storage, e.g. after a crash,
+ * or into a new storage after a schema or shapefile change.
+ *
+ * Segments are memory-mapped and split into statuses, which are stored in batches
+ * (each one within a single transaction) through the same path as the stream:
+ * the statuses are kept as flat records, see {@link TweetRecord},
+ * and each batch is prepared by a pool of threads before being written,
+ * see {@link Storage#prepare(TweetRecord)}.
+ * After each batch, the position reached is saved to a checkpoint file in the journal directory:
+ * if interrupted, the replay resumes from there.
+ * Statuses already stored are skipped anyway.
+ */
+class Replayer {
+    private final static Logger logger = LogManager.getLogger(Replayer.class.getSimpleName());
+
+    private final static String CHECKPOINT = "replay.checkpoint";
+    private final static String CHECKPOINT_SEPARATOR = " ";
+
+    private final Storage[] storages;
+    private final File directory;
+    private final int batchSize;
+    private final int threads;
+
+    private final List<List<TweetRecord>> batches;
+    private int batched = 0;
+
+    private long replayed = 0;
+    private long malformed = 0;
+
+    /**
+     * Replay a journal into a (possibly sharded) storage.
+     *
+     * @param storages  the storage shards, see {@link Storage#shardOf(long, int)}.
+     * @param directory the journal directory.
+     * @param batchSize the number of statuses committed within a single transaction.
+     */
+    public Replayer(Storage[] storages, String directory, int batchSize) {
+        this(storages, directory, batchSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Replay a journal into a (possibly sharded) storage.
+     *
+     * @param storages  the storage shards, see {@link Storage#shardOf(long, int)}.
+     * @param directory the journal directory.
+     * @param batchSize the number of statuses committed within a single transaction.
+     * @param threads   the number of threads preparing the statuses.
+     */
+    public Replayer(Storage[] storages, String directory, int batchSize, int threads) {
+        assert (storages != null && storages.length > 0);
+        assert (directory != null);
+        assert (batchSize > 0 && threads > 0);
+
+        this.storages = storages;
+        this.directory = new File(directory);
+        this.batchSize = batchSize;
+        this.threads = threads;
+
+        this.batches = new ArrayList<>(storages.length);
+        for (Storage ignored : storages) {
+            this.batches.add(new ArrayList<TweetRecord>(batchSize));
+        }
+    }
+
+    /**
+     * Replay the journal, from the last checkpoint.
+     *
+     * @return false if the replay stopped because a batch couldn't be stored.
+     * @throws IOException on journal or checkpoint read / write error.
+     */
+    public boolean replay() throws IOException {
+        final File checkpoint = new File(this.directory, CHECKPOINT);
+        String checkpointSegment = "";
+        long checkpointOffset = 0;
+        if (checkpoint.exists()) {
+            final String[] fields = new String(Files.readAllBytes(checkpoint.toPath()), Journal.CHARSET)
+                    .trim().split(CHECKPOINT_SEPARATOR);
+            checkpointSegment = fields[0];
+            checkpointOffset = Long.parseLong(fields[1]);
+            logger.info("Resuming the replay from {} at byte {}.", checkpointSegment, checkpointOffset);
+        }
+
+        final long start = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        try {
+            for (File segment : Journal.segments(this.directory)) {
+                final int order = segment.getName().compareTo(checkpointSegment);
+                if (order < 0) {
+                    continue;
+                }
+
+                if (!this.replaySegment(segment, order == 0 ? checkpointOffset : 0, checkpoint, executor)) {
+                    return false;
+                }
+
+                final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                logger.info("Replayed {}: {} statuses so far ({} malformed), {} statuses/s.",
+                        segment.getName(), this.replayed, this.malformed, (this.replayed * 1000) / elapsed);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.info("Replay completed, {} statuses replayed.", this.replayed);
+        return true;
+    }
+
+    /**
+     * Replay the complete lines of a segment.
+     *
+     * @param segment    the segment.
+     * @param offset     the position of the first line to be replayed.
+     * @param checkpoint the checkpoint file.
+     * @param executor   the pool preparing the batches.
+     * @return false if a batch couldn't be stored.
+     * @throws IOException on segment read or checkpoint write error.
+     */
+    private boolean replaySegment(File segment, long offset, File checkpoint, ExecutorService executor)
+            throws IOException {
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        byte[] line = new byte[4096];
+        int lineStart = (int) offset;
+        for (int i = lineStart; i < buffer.limit(); i++) {
+            if (buffer.get(i) != Journal.SEPARATOR) {
+                continue;
+            }
+
+            final int length = i - lineStart;
+            if (length > line.length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            buffer.position(lineStart);
+            buffer.get(line, 0, length);
+            lineStart = i + 1;
+
+            this.add(new String(line, 0, length, Journal.CHARSET));
+            if (this.batched >= this.batchSize && !this.flush(segment, lineStart, checkpoint, executor)) {
+                return false;
+            }
+        }
+
+        /* A trailing incomplete line is left to the next replay. */
+        return this.flush(segment, lineStart, checkpoint, executor);
+    }
+
+    /**
+     * Parse a status and add its fields to the batch of its shard:
+     * the status itself is left to the garbage collector.
+     *
+     * @param json the raw JSON of the status.
+     */
+    private void add(String json) {
+        final TweetRecord record;
+        try {
+            final Status status = TwitterObjectFactory.createStatus(json);
+            record = this.storages[0].newRecord().set(status);
+        } catch (TwitterException | RuntimeException e) {
+            logger.debug("Skipping malformed status.", e);
+            this.malformed++;
+            return;
+        }
+
+        final int shard = this.storages.length == 1 || !record.hasUser ?
+                0 : Storage.shardOf(record.userId, this.storages.length);
+        this.batches.get(shard).add(record);
+        this.batched++;
+    }
+
+    /**
+     * Prepare the batches on the pool, each one split in a slice per thread.
+     * The statuses that can't be prepared are dropped from their batch.
+     *
+     * @param executor the pool.
+     * @return false if interrupted while waiting for the pool.
+     */
+    private boolean prepare(ExecutorService executor) {
+        final List<List<TweetRecord>> slices = new ArrayList<>();
+        final List<Future<List<TweetRecord>>> futures = new ArrayList<>();
+        for (int shard = 0; shard < this.storages.length; shard++) {
+            final Storage storage = this.storages[shard];
+            final List<TweetRecord> batch = this.batches.get(shard);
+            final int slice = Math.max(1, (batch.size() + this.threads - 1) / this.threads);
+
+            for (int from = 0; from < batch.size(); from += slice) {
+                final List<TweetRecord> records = batch.subList(from, Math.min(batch.size(), from + slice));
+                slices.add(records);
+                futures.add(executor.submit(new Callable<List<TweetRecord>>() {
+                    @Override
+                    public List<TweetRecord> call() {
+                        final List<TweetRecord> failed = new ArrayList<>();
+                        for (TweetRecord record : records) {
+                            try {
+                                storage.prepare(record);
+                            } catch (RuntimeException e) {
+                                logger.error("Skipping malformed status {}.", record.id, e);
+                                failed.add(record);
+                            }
+                        }
+                        return failed;
+                    }
+                }));
+            }
+        }
+
+        final List<TweetRecord> failed = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                failed.addAll(futures.get(i).get());
+            } catch (ExecutionException e) {
+                logger.error("Error while preparing {} statuses, skipping them.", slices.get(i).size(), e.getCause());
+                failed.addAll(slices.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        if (!failed.isEmpty()) {
+            this.malformed += failed.size();
+            this.batched -= failed.size();
+            final Set<TweetRecord> dropped = Collections.newSetFromMap(
+                    new IdentityHashMap<TweetRecord, Boolean>());
+            dropped.addAll(failed);
+            for (List<TweetRecord> batch : this.batches) {
+                final Iterator<TweetRecord> iterator = batch.iterator();
+                while (iterator.hasNext()) {
+                    if (dropped.contains(iterator.next())) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Store the batches, then save the position reached.
+     *
+     * @param segment    the segment being replayed.
+     * @param offset     the position following the last batched status.
+     * @param checkpoint the checkpoint file.
+     * @param executor   the pool preparing the batches.
+     * @return false if a batch couldn't be stored.
+     * @throws IOException on checkpoint write error.
+     */
+    private boolean flush(File segment, long offset, File checkpoint, ExecutorService executor)
+            throws IOException {
+        if (!this.prepare(executor)) {
+            logger.error("Replay interrupted in {}: the next run will resume from {}.",
+                    segment.getName(), this.lastCheckpoint(checkpoint));
+            return false;
+        }
+
+        for (int shard = 0; shard < this.storages.length; shard++) {
+            final List<TweetRecord> batch = this.batches.get(shard);
+            if (!batch.isEmpty() && !this.storages[shard].insertRecords(batch)) {
+                logger.error("Replay stopped in {}: the next run will resume from {}.",
+                        segment.getName(), this.lastCheckpoint(checkpoint));
+                return false;
+            }
+            this.replayed += batch.size();
+            batch.clear();
+        }
+        this.batched = 0;
+
+        /* Replace the checkpoint atomically. */
+        final File temporary = new File(this.directory, CHECKPOINT + ".tmp");
+        Files.write(temporary.toPath(),
+                (segment.getName() + CHECKPOINT_SEPARATOR + offset).getBytes(Journal.CHARSET));
+        Files.move(temporary.toPath(), checkpoint.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * @param checkpoint the checkpoint file.
+     * @return the content of the checkpoint, for logging.
+     * @throws IOException on checkpoint read error.
+     */
+    private String lastCheckpoint(File checkpoint) throws IOException {
+        return checkpoint.exists() ?
+                new String(Files.readAllBytes(checkpoint.toPath()), Journal.CHARSET) :
+                "the beginning of the journal";
+    }
+}
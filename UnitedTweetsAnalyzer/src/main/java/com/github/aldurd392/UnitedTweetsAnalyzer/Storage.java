@@ -1,18 +1,30 @@
 package com.github.aldurd392.UnitedTweetsAnalyzer;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.sqlite.SQLiteErrorCode;
 import twitter4j.GeoLocation;
 import twitter4j.Status;
-import twitter4j.User;
-import weka.core.stemmers.SnowballStemmer;
 
 import java.io.File;
 import java.sql.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.regex.Pattern;
 
 /**
  * Handle the interaction with the storage (an SQLite database).
@@ -23,10 +35,33 @@ class Storage {
 
     private final static String CLASSIFICATION_VIEW = "classification_view";
 
+    /**
+     * See {@link #shardPath(String, int)}.
+     */
+    private final static String SHARD_SUFFIX = ".shard";
+    private final static String SHARD_SCHEMA = "shard";
+    /**
+     * The readers attach the other shards to the first one, see {@link #readerStatements(String, int, int)}:
+     * SQLite attaches at most 10 databases by default.
+     */
+    public final static int MAX_SHARDS = 1 + 10;
+
+    /**
+     * The IDs of the unlabeled users sampled for classification,
+     * see {@link #sampleUnlabeledUsers(int)}.
+     */
+    private final static String TABLE_CLASSIFICATION_SAMPLE = "CLASSIFICATION_SAMPLE";
+
+    /**
+     * While sampling, we give up after this many probes per requested user.
+     */
+    private final static int SAMPLE_PROBES = 10;
+
     /**
      * Load from the DB all the labeled instances.
      * i.e. users who have at least a tweet labeled
      * with an associated country.
+     * Each user is loaded once, labeled with the country of most of its tweets.
      */
     public final static String TRAINING_QUERY = String.format(
             "SELECT %s.%s, %s.%s, %s.%s, %s.%s, %s.%s " +
@@ -36,9 +71,9 @@ class Storage {
             Storage.TABLE_USER, Storage.LOCATION,
             Storage.TABLE_USER, Storage.UTC_OFFSET,
             Storage.TABLE_USER, Storage.TIMEZONE,
-            Storage.TABLE_TWEET, Storage.COUNTRY,
-            Storage.TABLE_USER, Storage.TABLE_TWEET,
-            Storage.TABLE_USER, Storage.ID, Storage.TABLE_TWEET, Storage.USER_ID);
+            Storage.TABLE_USER_LABEL, Storage.COUNTRY,
+            Storage.TABLE_USER, Storage.TABLE_USER_LABEL,
+            Storage.TABLE_USER, Storage.ID, Storage.TABLE_USER_LABEL, Storage.ID);
 
     /**
      * Load from the DB both the training and the unlabeled instances.
@@ -56,6 +91,25 @@ class Storage {
      */
     public final static String CLASSIFICATION_QUERY = "SELECT * FROM " + Storage.CLASSIFICATION_VIEW;
 
+    /**
+     * Load from the DB the sampled unlabeled instances only, with their ID.
+     * They are labeled by a saved {@link Model}, that already knows
+     * the universe of nominal data it has been trained on.
+     */
+    public final static String PREDICTION_QUERY = String.format(
+            "SELECT %s.%s, %s.%s, %s.%s, %s.%s, %s.%s " +
+                    "FROM %s, %s " +
+                    "WHERE %s.%s = %s.%s " +
+                    "AND NOT EXISTS (SELECT 1 FROM %s WHERE %s.%s = %s.%s)",
+            Storage.TABLE_USER, Storage.ID,
+            Storage.TABLE_USER, Storage.LANG,
+            Storage.TABLE_USER, Storage.LOCATION,
+            Storage.TABLE_USER, Storage.UTC_OFFSET,
+            Storage.TABLE_USER, Storage.TIMEZONE,
+            Storage.TABLE_CLASSIFICATION_SAMPLE, Storage.TABLE_USER,
+            Storage.TABLE_CLASSIFICATION_SAMPLE, Storage.ID, Storage.TABLE_USER, Storage.ID,
+            Storage.TABLE_USER_LABEL, Storage.TABLE_USER_LABEL, Storage.ID, Storage.TABLE_USER, Storage.ID);
+
     public final static String ID = "ID";
 
     private final static String USERNAME = "USERNAME";
@@ -71,32 +125,130 @@ class Storage {
     private final static String TABLE_USER = "USER";
     private final static String TABLE_TWEET = "TWEET";
 
+    /**
+     * Tweets are stored in daily partitions, by the (UTC) day they were created:
+     * TWEET_20150601, TWEET_20150602... see {@link #partitionTable(long)}.
+     * Old partitions are dropped as a whole, see {@link #setRetention(int)}.
+     * The TWEET table keeps the tweets stored before the partitioning.
+     */
+    private final static String PARTITION_SEPARATOR = "_";
+    private final static String PARTITION_FORMAT = "yyyyMMdd";
+    private final static String PARTITION_PATTERN = TABLE_TWEET + PARTITION_SEPARATOR + "[0-9]*";
+    private final static long DAY = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Tweet IDs embed their creation time (ms) since this epoch, shifted by {@link #TWITTER_ID_SHIFT} bits.
+     */
+    final static long TWITTER_EPOCH = 1288834974657L;
+    final static int TWITTER_ID_SHIFT = 22;
+
+    /**
+     * Maintained while storing the tweets:
+     * the number of tweets of each user in each country,
+     * and the country of most of the tweets of each user (its label).
+     */
+    private final static String TABLE_USER_COUNTRY = "USER_COUNTRY";
+    private final static String TABLE_USER_LABEL = "USER_LABEL";
+    /**
+     * The counts of the tweets within a window, see {@link #readerStatements(String, int, int)}.
+     */
+    private final static String TABLE_WINDOW_USER_COUNTRY = "WINDOW_USER_COUNTRY";
+    private final static String TWEETS = "TWEETS";
+
+    /**
+     * Keeps track of the last tweet relabeled by {@link #relabelTweets(int)}.
+     */
+    private final static String TABLE_RELABEL_CHECKPOINT = "RELABEL_CHECKPOINT";
+    private final static String TABLE_NAME = "TABLE_NAME";
+    private final static String LAST_ID = "LAST_ID";
+
+    /**
+     * Default number of tweets relabeled within a single transaction.
+     */
+    public final static int DEFAULT_RELABEL_CHUNK = 50000;
+
+    /**
+     * Maximum number of Places whose location we cache.
+     */
+    private final static int PLACE_CACHE_SIZE = 10000;
+
+    /**
+     * Maximum number of user locations whose stemmed form we cache.
+     */
+    private final static int STEM_CACHE_SIZE = 50000;
+
     public final static String COUNTRY = "COUNTRY";  // This will also be the classifier class.
 
+    /**
+     * The finer levels of the {@link GeographyHierarchy} (e.g. states, counties)
+     * are stored in COUNTRY_1, COUNTRY_2, ... see {@link #levelColumn(int)}.
+     */
+    private final static String LEVEL_SEPARATOR = "_";
+
     private final static Logger logger = LogManager.getLogger(Storage.class.getSimpleName());
 
     /**
-     * Stem the users' locations.
-     * We use the default stemmer, set up for english.
+     * Users' locations are very repetitive ("Los Angeles, CA", "NYC"...).
+     * We cache their stemmed form, by raw location.
+     * Locations without any word are cached as {@link #NO_STEM}.
+     */
+    private final static LruCache<String, String> stemCache = new LruCache<>(STEM_CACHE_SIZE);
+    private final static String NO_STEM = "";
+
+    /**
+     * The {@link GeographyHierarchy} instance used to assign a country
+     * (and its subdivisions) to each tweet.
+     */
+    private final GeographyHierarchy geography;
+    private final int levels;
+
+    /**
+     * The same few thousand Places (i.e. cities) keep showing up in the stream.
+     * We cache their midpoint and countries, by Place ID.
      */
-    private final static SnowballStemmer stemmer = new SnowballStemmer();
+    private final LruCache<String, ResolvedPlace> placeCache = new LruCache<>(PLACE_CACHE_SIZE);
 
     /**
-     * Compile the regexps we need to cache and optimize.
+     * The IDs of the users and tweets already stored, see {@link #preloadKnownIds()}:
+     * if not preloaded, they are loaded on the first insert.
+     * Known users and tweets are skipped without hitting the DB
+     * (instead of failing on the primary key constraint).
      */
-    private final static Pattern re_letters = Pattern.compile("[^\\p{L}\\p{Z}]");
-    private final static Pattern re_spaces = Pattern.compile("\\s+");
+    private LongHashSet knownUsers = null;
+    private LongHashSet knownTweets = null;
+
+    /**
+     * The IDs inserted within the current transaction:
+     * they become known only once it is committed.
+     */
+    private final LongHashSet pendingUsers = new LongHashSet();
+    private final LongHashSet pendingTweets = new LongHashSet();
+
+    private final AtomicLong skippedUsers = new AtomicLong();
+    private final AtomicLong skippedTweets = new AtomicLong();
 
     /**
-     * The {@link Geography} instances used to assign a country to each tweet.
+     * The number of days of tweets we keep (0 keeps them all),
+     * and the last day we dropped the older partitions.
      */
-    private final Geography geography;
+    private int retention = 0;
+    private long retentionDay = Long.MIN_VALUE;
 
     /**
      * Keeps the connection to the DB.
      */
     private Connection c = null;
 
+    /**
+     * Statements are prepared once and reused for every insert.
+     * Each partition gets its own tweet insert statement, by day.
+     */
+    private PreparedStatement insertUserStatement = null;
+    private final Map<Long, PreparedStatement> insertTweetStatements = new HashMap<>();
+    private PreparedStatement countUserCountryStatement = null;
+    private PreparedStatement selectUserLabelStatement = null;
+    private PreparedStatement updateUserLabelStatement = null;
+
     /**
      * Avoid shutting down the DB while someone is writing it.
      */
@@ -105,17 +257,40 @@ class Storage {
     /**
      * Create the storage.
      *
-     * @param geography     a Geometry object to assign a country to stored tweets.
+     * @param geography     a GeographyHierarchy object to assign a country to stored tweets.
      * @param database_path the database path.
      */
-    public Storage(Geography geography, String database_path) {
+    public Storage(GeographyHierarchy geography, String database_path) {
         assert (geography != null);
         assert (database_path != null);
 
         this.geography = geography;
+        this.levels = geography.getLevels();
+        this.connect(database_path);
+    }
+
+    /**
+     * Create a storage that won't store any tweet,
+     * e.g. to prepare the data for the classification.
+     *
+     * @param database_path the database path.
+     */
+    public Storage(String database_path) {
+        assert (database_path != null);
+
+        this.geography = null;
+        this.levels = 1;
         this.connect(database_path);
     }
 
+    /**
+     * @param level a level of the {@link GeographyHierarchy}.
+     * @return the name of the TWEET column storing that level.
+     */
+    static String levelColumn(int level) {
+        return level == 0 ? COUNTRY : COUNTRY + LEVEL_SEPARATOR + level;
+    }
+
     /**
      * Connect the Storage to the SQLite DB.
      *
@@ -139,8 +314,11 @@ class Storage {
             logger.debug("Database successfully opened.");
             if (!exists) {
                 this.initDatabase();
-                this.prepareClassificationView();
             }
+
+            this.upgradeDatabase();
+            this.prepareClassificationView();
+            this.prepareStatements();
         } catch (SQLException | ClassNotFoundException e) {
             logger.fatal("Error while connecting to / initializing the database.", e);
             System.exit(1);
@@ -189,289 +367,1458 @@ class Storage {
                             ID, USERNAME, LANG, LOCATION, UTC_OFFSET, TIMEZONE);
             stmt.executeUpdate(userTable);
 
-            final String tweetTable = "CREATE TABLE " + TABLE_TWEET +
-                    String.format(" (%s UNSIGNED BIG INT PRIMARY KEY NOT NULL," +
-                                    " %s FLOAT NOT NULL," +
-                                    " %s FLOAT NOT NULL," +
-                                    " %s VARCHAR(50)," +
-                                    " %s UNSIGNED BIG INT," +
-                                    " FOREIGN KEY(%s) REFERENCES %s(%s))",
-                            ID, LAT, LON, COUNTRY, USER_ID, USER_ID, TABLE_USER, ID);
-            stmt.executeUpdate(tweetTable);
+            stmt.executeUpdate("CREATE TABLE " + TABLE_TWEET + tweetColumns(""));
 
             logger.debug("Tables successfully created.");
         }
     }
 
+    /**
+     * @param levelColumns the definitions of the level columns, see {@link #levelColumn(int)}.
+     * @return the column definitions of a tweet table.
+     */
+    private static String tweetColumns(String levelColumns) {
+        return String.format(" (%s UNSIGNED BIG INT PRIMARY KEY NOT NULL," +
+                        " %s FLOAT NOT NULL," +
+                        " %s FLOAT NOT NULL," +
+                        " %s VARCHAR(50)," +
+                        " %s UNSIGNED BIG INT%s," +
+                        " FOREIGN KEY(%s) REFERENCES %s(%s))",
+                ID, LAT, LON, COUNTRY, USER_ID, levelColumns, USER_ID, TABLE_USER, ID);
+    }
+
+    /**
+     * @param day a day, as the number of days since the epoch (UTC).
+     * @return the name of the partition storing the tweets created that day.
+     */
+    static String partitionTable(long day) {
+        final SimpleDateFormat format = new SimpleDateFormat(PARTITION_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return TABLE_TWEET + PARTITION_SEPARATOR + format.format(new Date(day * DAY));
+    }
+
+    /**
+     * @param table a tweet table.
+     * @return the day of the partition (as the number of days since the epoch),
+     * or -1 for the TWEET table.
+     */
+    static long partitionDay(String table) {
+        if (!table.startsWith(TABLE_TWEET + PARTITION_SEPARATOR)) {
+            return -1;
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat(PARTITION_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(table.substring(TABLE_TWEET.length() + PARTITION_SEPARATOR.length())).getTime() / DAY;
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param date a date, or null for now.
+     * @return the date as the number of days since the epoch (UTC).
+     */
+    static long dayOf(Date date) {
+        final long time = date == null ? System.currentTimeMillis() : date.getTime();
+        return time >= 0 ? time / DAY : (time - DAY + 1) / DAY;
+    }
+
+    /**
+     * @param c a connection to the DB.
+     * @return the tweet tables: TWEET first, then the partitions from the oldest day.
+     * @throws SQLException on query error.
+     */
+    private static List<String> tweetTables(Connection c) throws SQLException {
+        final List<String> tables = new ArrayList<>();
+        try (Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery(String.format(
+                     "SELECT name FROM sqlite_master WHERE type = 'table' " +
+                             "AND (name = '%s' OR name GLOB '%s') ORDER BY name",
+                     TABLE_TWEET, PARTITION_PATTERN))) {
+            while (rs.next()) {
+                tables.add(rs.getString(1));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @return the tweet tables of this DB, see {@link #tweetTables(Connection)}.
+     * @throws SQLException on query error.
+     */
+    List<String> tweetTables() throws SQLException {
+        return tweetTables(this.c);
+    }
+
+    /**
+     * Tables are counted one at a time, instead of by a compound SELECT over all of them:
+     * SQLite limits the terms of a compound SELECT (500 by default), and there is a partition per day.
+     *
+     * @param counts    the table of the tweets of each user in each country, as {@link #TABLE_USER_COUNTRY}.
+     * @param tweets    a tweet table.
+     * @param condition an additional condition on its tweets (e.g. " AND ID >= 0"), or empty.
+     * @return the statement adding the tweets of the table to the counts.
+     */
+    private static String userCountryUpsert(String counts, String tweets, String condition) {
+        return String.format(
+                "INSERT INTO %s (%s, %s, %s) " +
+                        "SELECT %s, %s, COUNT(*) FROM %s WHERE %s IS NOT NULL%s GROUP BY %s, %s " +
+                        "ON CONFLICT(%s, %s) DO UPDATE SET %s = %s + excluded.%s",
+                counts, USER_ID, COUNTRY, TWEETS,
+                USER_ID, COUNTRY, tweets, COUNTRY, condition, USER_ID, COUNTRY,
+                USER_ID, COUNTRY, TWEETS, TWEETS, TWEETS);
+    }
+
+    /**
+     * Each user is labeled by the country with the most tweets.
+     * On ties the user keeps its current label (as {@link #updateUserLabel(long, String)} does),
+     * or else gets the first of those countries by name.
+     *
+     * @param counts the table of the tweets of each user in each country, as {@link #TABLE_USER_COUNTRY}.
+     * @param labels the table of the users labels, as {@link #TABLE_USER_LABEL}.
+     * @param users  the condition on the user ID selecting the users to be labeled again, e.g. "= ?".
+     * @return the statement labeling again the users.
+     */
+    private static String userLabelUpsert(String counts, String labels, String users) {
+        return String.format(
+                "INSERT INTO %s (%s, %s, %s) " +
+                        "SELECT u.%s, u.%s, u.%s FROM %s u LEFT JOIN %s l ON l.%s = u.%s " +
+                        "WHERE u.%s %s AND NOT EXISTS (SELECT 1 FROM %s o WHERE o.%s = u.%s AND (o.%s > u.%s OR " +
+                        "(o.%s = u.%s AND u.%s IS NOT l.%s AND (o.%s IS l.%s OR o.%s < u.%s)))) " +
+                        "ON CONFLICT(%s) DO UPDATE SET %s = excluded.%s, %s = excluded.%s",
+                labels, ID, COUNTRY, TWEETS,
+                USER_ID, COUNTRY, TWEETS, counts, labels, ID, USER_ID,
+                USER_ID, users, counts, USER_ID, USER_ID, TWEETS, TWEETS,
+                TWEETS, TWEETS, COUNTRY, COUNTRY, COUNTRY, COUNTRY, COUNTRY, COUNTRY,
+                ID, COUNTRY, COUNTRY, TWEETS, TWEETS);
+    }
+
     /**
      * We're creating a View (a virtual table inside the database),
      * that we'll use to retrieve the union of
      * training instances and unlabeled data.
+     * The unlabeled users are those sampled by {@link #sampleUnlabeledUsers(int)}:
+     * the view itself doesn't sort nor scan the whole users table.
      * <p>
      * We need to do this because otherwise SQLite would
      * lose the column type.
+     * The view is created again on every connection,
+     * so that existing DBs get its latest definition.
      *
      * @throws SQLException in case of exception while executing the query.
      */
     private void prepareClassificationView() throws SQLException {
         try (Statement stmt = this.c.createStatement()) {
-            final String classificationView = String.format(
-                    "CREATE VIEW %s AS " +
-                            "SELECT * " +
-                            "FROM (SELECT " +
-                            "%s.%s, " +
-                            "%s.%s, %s.%s, " +
-                            "%s.%s, %s.%s, " +
-                            "NULL as %s " +
-                            "FROM %s " +
-                            "WHERE %s.%s not in " +
-                            "(SELECT %s.%s FROM %s) " +
-                            "ORDER BY RANDOM() LIMIT 0, %s) " +
-                            "UNION " +
-                            "SELECT %s.%s, %s.%s, %s.%s, " +
-                            "%s.%s, %s.%s, " +
-                            "%s.%s " +
-                            "FROM %s, %s " +
-                            "WHERE %s.%s = %s.%s",
-                    Storage.CLASSIFICATION_VIEW,
-                    Storage.TABLE_USER, Storage.ID,
-                    Storage.TABLE_USER, Storage.LANG, Storage.TABLE_USER, Storage.LOCATION,
-                    Storage.TABLE_USER, Storage.UTC_OFFSET, Storage.TABLE_USER, Storage.TIMEZONE,
-                    Storage.COUNTRY,
-                    Storage.TABLE_USER,
-                    Storage.TABLE_USER, Storage.ID,
-                    Storage.TABLE_TWEET, Storage.USER_ID, Storage.TABLE_TWEET,
-                    Constants.classification_limit,
-                    Storage.TABLE_USER, Storage.ID,
-                    Storage.TABLE_USER, Storage.LANG,
-                    Storage.TABLE_USER, Storage.LOCATION,
-                    Storage.TABLE_USER, Storage.UTC_OFFSET,
-                    Storage.TABLE_USER, Storage.TIMEZONE,
-                    Storage.TABLE_TWEET, Storage.COUNTRY,
-                    Storage.TABLE_USER, Storage.TABLE_TWEET,
-                    Storage.TABLE_USER, Storage.ID, Storage.TABLE_TWEET, Storage.USER_ID
-            );
-            stmt.executeUpdate(classificationView);
+            stmt.executeUpdate(String.format(
+                    "CREATE TABLE IF NOT EXISTS %s (%s UNSIGNED BIG INT PRIMARY KEY NOT NULL)",
+                    Storage.TABLE_CLASSIFICATION_SAMPLE, Storage.ID));
+
+            stmt.executeUpdate("DROP VIEW IF EXISTS " + Storage.CLASSIFICATION_VIEW);
+            stmt.executeUpdate(classificationView(""));
         }
     }
 
     /**
-     * We stem the user Location field.
-     * It is a user-inserted string, that could differ from user to user.
-     * It is not parseable and it won't probably help us during classification.
-     * But its cost is low, so better try it.
-     *
-     * @param location string to be stemmed
-     * @return a stemmed string
+     * @param schema the schema of the view: "" or "TEMP ".
+     * @return the statement creating the classification view.
      */
-    public static String stemLocation(String location) {
-        if (location == null || location.length() == 0) {
-            return null;
-        }
+    private static String classificationView(String schema) {
+        return String.format(
+                "CREATE " + schema + "VIEW %s AS " +
+                        "SELECT %s.%s, " +
+                        "%s.%s, %s.%s, " +
+                        "%s.%s, %s.%s, " +
+                        "NULL as %s " +
+                        "FROM %s, %s " +
+                        "WHERE %s.%s = %s.%s " +
+                        "AND NOT EXISTS (SELECT 1 FROM %s WHERE %s.%s = %s.%s) " +
+                        "UNION ALL " +
+                        "SELECT %s.%s, %s.%s, %s.%s, " +
+                        "%s.%s, %s.%s, " +
+                        "%s.%s " +
+                        "FROM %s, %s " +
+                        "WHERE %s.%s = %s.%s",
+                Storage.CLASSIFICATION_VIEW,
+                Storage.TABLE_USER, Storage.ID,
+                Storage.TABLE_USER, Storage.LANG, Storage.TABLE_USER, Storage.LOCATION,
+                Storage.TABLE_USER, Storage.UTC_OFFSET, Storage.TABLE_USER, Storage.TIMEZONE,
+                Storage.COUNTRY,
+                Storage.TABLE_CLASSIFICATION_SAMPLE, Storage.TABLE_USER,
+                Storage.TABLE_CLASSIFICATION_SAMPLE, Storage.ID, Storage.TABLE_USER, Storage.ID,
+                Storage.TABLE_USER_LABEL, Storage.TABLE_USER_LABEL, Storage.ID, Storage.TABLE_USER, Storage.ID,
+                Storage.TABLE_USER, Storage.ID,
+                Storage.TABLE_USER, Storage.LANG,
+                Storage.TABLE_USER, Storage.LOCATION,
+                Storage.TABLE_USER, Storage.UTC_OFFSET,
+                Storage.TABLE_USER, Storage.TIMEZONE,
+                Storage.TABLE_USER_LABEL, Storage.COUNTRY,
+                Storage.TABLE_USER, Storage.TABLE_USER_LABEL,
+                Storage.TABLE_USER, Storage.ID, Storage.TABLE_USER_LABEL, Storage.ID
+        );
+    }
 
-        /* Remove characters that aren't letter in any language. */
-        location = re_letters.matcher(location).replaceAll(" ");
-        /* Replace multiple whitespaces with a single one. */
-        location = re_spaces.matcher(location).replaceAll(" ");
+    /**
+     * @param path  the path of the first shard (i.e. the DB path).
+     * @param shard a shard index.
+     * @return the path of the shard: users.db, users.shard1.db, users.shard2.db...
+     */
+    public static String shardPath(String path, int shard) {
+        if (shard == 0) {
+            return path;
+        }
 
-        location = location.toLowerCase();
-        location = location.trim();
+        final int extension = path.lastIndexOf('.');
+        return extension < 0 ?
+                path + SHARD_SUFFIX + shard :
+                path.substring(0, extension) + SHARD_SUFFIX + shard + path.substring(extension);
+    }
 
-        if (location.length() == 0) {
-            return null;
-        }
+    /**
+     * A user, its tweets and its label always land in the same shard.
+     *
+     * @param userId the user ID.
+     * @param shards the number of shards.
+     * @return the index of the shard storing the user.
+     */
+    public static int shardOf(long userId, int shards) {
+        long h = userId * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) ((h & Long.MAX_VALUE) % shards);
+    }
 
-        final StringBuilder stringBuffer = new StringBuilder();
-        for (String w : location.split(" ")) {
-            stringBuffer.append(stemmer.stem(w));
-            stringBuffer.append(" ");
+    /**
+     * @param path the path of the first shard (i.e. the DB path).
+     * @return the number of existing shards (at least one).
+     */
+    public static int countShards(String path) {
+        int shards = 1;
+        while (new File(shardPath(path, shards)).exists()) {
+            shards++;
         }
-
-        return stringBuffer.toString().trim();
+        return shards;
     }
 
     /**
-     * Insert a user in the Storage.
-     * Skip already existing users (no update).
+     * The statements that, once executed on a connection to the first shard,
+     * let the other shards be queried as a whole, and restrict the users labels
+     * to the tweets of the last days.
+     * The shards are attached, and TEMP views over the union of their tables
+     * take precedence over the tables of the first shard:
+     * {@link #TRAINING_QUERY} and {@link #CLASSIFICATION_QUERY} can be executed unchanged.
+     * <p>
+     * Within a window, the users labels are computed again, in a TEMP table, from the partitions of those days only
+     * (and from the range of IDs of those days in the TWEET table): older partitions are never read.
      *
-     * @param user the user to be inserted.
-     * @throws SQLException on user insert error.
+     * @param path   the path of the first shard (i.e. the DB path).
+     * @param shards the number of shards.
+     * @param window the number of days of tweets labeling the users, 0 for all of them.
+     * @return the statements to be executed, in order.
+     * @throws SQLException on error while listing the partitions, or if there are more than {@link #MAX_SHARDS}.
      */
-    private void insertUser(User user) throws SQLException {
-        if (user == null) {
-            logger.error("Trying to add NULL user to the DB.");
-            return;
+    public static List<String> readerStatements(String path, int shards, int window) throws SQLException {
+        final List<String> statements = new ArrayList<>();
+        if (shards == 1 && window <= 0) {
+            return statements;
+        } else if (shards > MAX_SHARDS) {
+            throw new SQLException(String.format("Found %d shards, at most %d can be read.", shards, MAX_SHARDS));
         }
 
-        /**
-         * If the user already exists in the DB, we have nothing to do here.
-         * Please note that, as a performance optimization,
-         * we could skip this step and catch an eventual SQL exception regarding the user's PK.
-         */
-        /* Disabled due to performance optimization, we check the error code below.
-        String select = String.format(
-                "SELECT %s FROM %s WHERE %s = ?;",
-                ID, TABLE_USER, ID
-        );
-
-        try (PreparedStatement stmt = this.c.prepareStatement(select)) {
-            stmt.setLong(1, user.getId());
+        final String[] schemas = new String[shards];
+        schemas[0] = "main";
+        for (int shard = 1; shard < shards; shard++) {
+            schemas[shard] = SHARD_SCHEMA + shard;
+            statements.add(String.format("ATTACH DATABASE '%s' AS %s",
+                    shardPath(path, shard).replace("'", "''"), schemas[shard]));
+        }
 
-            if (stmt.executeQuery().next()) {
-                logger.debug("User {} - {} already exists in DB.", user.getId(), user.getName());
-                return;
+        final List<String> tables = new ArrayList<>();
+        tables.add(TABLE_USER);
+        tables.add(TABLE_CLASSIFICATION_SAMPLE);
+        if (window <= 0) {
+            tables.add(TABLE_USER_LABEL);
+        }
+        for (String table : shards > 1 ? tables : Collections.<String>emptyList()) {
+            final StringBuilder view = new StringBuilder(String.format(
+                    "CREATE TEMP VIEW %s AS SELECT * FROM main.%s", table, table));
+            for (int shard = 1; shard < shards; shard++) {
+                view.append(String.format(" UNION ALL SELECT * FROM %s.%s", schemas[shard], table));
             }
-        } catch (SQLException e) {
-            logger.error("Error while selecting user {}", user.getId(), e);
-            throw e;
+            statements.add(view.toString());
         }
-        */
 
-        final String insert = String.format(
-                "INSERT INTO %s " +
-                        "(%s, %s, %s, %s, %s, %s) " +
-                        "VALUES (?, ?, ?, ?, ?, ?);",
-                TABLE_USER,
-                ID, USERNAME, LANG, LOCATION, UTC_OFFSET, TIMEZONE);
-        try (PreparedStatement stmt = this.c.prepareStatement(insert)) {
-            stmt.setLong(1, user.getId());
-            stmt.setString(2, user.getName());
-            stmt.setString(3, user.getLang());
-            stmt.setString(4, stemLocation(user.getLocation()));
+        if (window > 0) {
+            statements.addAll(windowLabelStatements(path, schemas, dayOf(null) - window + 1));
+        }
 
-            if (user.getUtcOffset() == -1) {
-                stmt.setNull(5, Types.INTEGER);
-            } else {
-                stmt.setInt(5, user.getUtcOffset());
-            }
+        /* Views of the first shard are bound to its own tables. */
+        statements.add(classificationView("TEMP "));
+        return statements;
+    }
 
-            stmt.setString(6, user.getTimeZone());
+    /**
+     * @param path    the path of the first shard (i.e. the DB path).
+     * @param schemas the schema of each shard.
+     * @param since   the first day of the window.
+     * @return the statements creating a TEMP table of the users labels, over the tweets since that day:
+     *      the tweets of each table are counted in turn, see {@link #userCountryUpsert(String, String, String)}.
+     * @throws SQLException on error while listing the partitions.
+     */
+    private static List<String> windowLabelStatements(String path, String[] schemas, long since)
+            throws SQLException {
+        try {
+            Class.forName(JDBC_DRIVER);
+        } catch (ClassNotFoundException e) {
+            throw new SQLException(e);
+        }
 
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            /*
-             * Having a constraint error is likely to indicate
-             * that the user already exists in the DB,
-             * and we're violating the constraint on the PK ID.
-             */
-            if (e.getErrorCode() == SQLiteErrorCode.SQLITE_CONSTRAINT.code) {
-                logger.debug("User {} - {} already exists in DB.", user.getId(), user.getName());
-            } else {
-                logger.error("Error while inserting user {} {}", user.getId(), user.getName(), e);
-                throw e;
+        final String counts = "temp." + TABLE_WINDOW_USER_COUNTRY;
+        final String labels = "temp." + TABLE_USER_LABEL;
+        final List<String> statements = new ArrayList<>();
+        statements.add(String.format(
+                "CREATE TEMP TABLE %s (%s UNSIGNED BIG INT NOT NULL," +
+                        " %s VARCHAR(50) NOT NULL," +
+                        " %s INT NOT NULL," +
+                        " PRIMARY KEY(%s, %s))",
+                TABLE_WINDOW_USER_COUNTRY, USER_ID, COUNTRY, TWEETS, USER_ID, COUNTRY));
+        statements.add(String.format(
+                "CREATE TEMP TABLE %s (%s UNSIGNED BIG INT PRIMARY KEY NOT NULL," +
+                        " %s VARCHAR(50) NOT NULL," +
+                        " %s INT NOT NULL)",
+                TABLE_USER_LABEL, ID, COUNTRY, TWEETS));
+
+        /* The tweets of the window in the TWEET table, by their IDs. */
+        final String recent = String.format(" AND %s >= %d", ID, (since * DAY - TWITTER_EPOCH) << TWITTER_ID_SHIFT);
+        int partitions = 0;
+        for (int shard = 0; shard < schemas.length; shard++) {
+            statements.add(userCountryUpsert(counts, schemas[shard] + "." + TABLE_TWEET, recent));
+
+            try (Connection c = DriverManager.getConnection(JDBC_PREFIX + shardPath(path, shard))) {
+                for (String table : tweetTables(c)) {
+                    if (partitionDay(table) >= since) {
+                        statements.add(userCountryUpsert(counts, schemas[shard] + "." + table, ""));
+                        partitions++;
+                    }
+                }
             }
         }
+        logger.info("Labeling the users by the tweets of {} daily partitions.", partitions);
+
+        statements.add(userLabelUpsert(counts, labels, "IS NOT NULL"));
+        statements.add("DROP TABLE " + counts);
+        return statements;
     }
 
     /**
-     * Insert a Tweet in the DB, after trying to localizing it in our geography.
-     * Store the User who tweeted too.
+     * Sample (uniformly, up to the gaps between unlabeled users) some unlabeled users,
+     * i.e. users without any tweet, for the classification.
+     * <p>
+     * Instead of sorting the whole users table by RANDOM(),
+     * we probe random rowids: each probe takes the first unlabeled user
+     * from there on, by a rowid range scan and an anti-join on the users labels.
      *
-     * @param tweet the Twitter status containing the Tweet and the User's detail.
+     * @param size the number of users to sample.
+     * @return the number of sampled users, less than size if there aren't enough unlabeled users.
+     * @throws SQLException on query error.
      */
-    public void insertTweet(Status tweet) {
-        this.lock.lock();
+    public int sampleUnlabeledUsers(int size) throws SQLException {
+        assert size > 0;
 
-        try {
-            try {
-                this.insertUser(tweet.getUser());
-            } catch (SQLException e) {
-                logger.warn("Skipping tweet {} because of error while inserting user {}.",
-                        tweet.getId(), tweet.getUser().getId()
-                );
+        long minRowId = 0;
+        long maxRowId = -1;
+        try (Statement stmt = this.c.createStatement();
+             ResultSet rs = stmt.executeQuery(String.format(
+                     "SELECT MIN(rowid), MAX(rowid) FROM %s", TABLE_USER))) {
+            if (rs.next()) {
+                minRowId = rs.getLong(1);
+                maxRowId = rs.getLong(2);
             }
+        }
 
-            /**
-             * The status could contain various geolocation information.
-             * We honour at first the GPS coordinates.
-             * Then the Place details.
-             * In case of place we are given a bounding box of points and
-             * we'll use the centroid of the constructed polygon while
-             * assigning a country to the Tweet.
-             *
-             * We won't store in the DB Tweets that do not ship any location info.
-             */
-            GeoLocation geoLocation = tweet.getGeoLocation();
-            if (geoLocation == null && tweet.getPlace() != null) {
-                final int rows = tweet.getPlace().getBoundingBoxCoordinates().length;
-                final int columns = tweet.getPlace().getBoundingBoxCoordinates()[rows - 1].length;
+        final String probe = String.format(
+                "SELECT %s FROM %s WHERE rowid >= ? " +
+                        "AND NOT EXISTS (SELECT 1 FROM %s WHERE %s.%s = %s.%s) " +
+                        "ORDER BY rowid LIMIT 1",
+                ID, TABLE_USER,
+                TABLE_USER_LABEL, TABLE_USER_LABEL, ID, TABLE_USER, ID);
+        final String insert = String.format(
+                "INSERT OR IGNORE INTO %s (%s) VALUES (?)",
+                TABLE_CLASSIFICATION_SAMPLE, ID);
 
-                final GeoLocation first = tweet.getPlace().getBoundingBoxCoordinates()[0][0];
-                final GeoLocation last = tweet.getPlace().getBoundingBoxCoordinates()[rows - 1][columns - 1];
+        final Random random = new Random();
+        int sampled = 0;
 
-                geoLocation = Geography.midPoint(first, last);
-            } else if (geoLocation == null) {
-                return;
+        this.lock.lock();
+        try (PreparedStatement probeStmt = this.c.prepareStatement(probe);
+             PreparedStatement insertStmt = this.c.prepareStatement(insert);
+             Statement clearStmt = this.c.createStatement()) {
+            this.c.setAutoCommit(false);
+            try {
+                clearStmt.executeUpdate("DELETE FROM " + TABLE_CLASSIFICATION_SAMPLE);
+
+                for (int probes = 0; maxRowId >= minRowId && sampled < size && probes < size * SAMPLE_PROBES;
+                     probes++) {
+                    probeStmt.setLong(1, minRowId + (long) (random.nextDouble() * (maxRowId - minRowId + 1)));
+                    try (ResultSet rs = probeStmt.executeQuery()) {
+                        if (rs.next()) {
+                            insertStmt.setLong(1, rs.getLong(1));
+                            sampled += insertStmt.executeUpdate();
+                        }
+                    }
+                }
+
+                this.c.commit();
+            } catch (SQLException e) {
+                this.c.rollback();
+                throw e;
+            } finally {
+                this.c.setAutoCommit(true);
             }
+        } finally {
+            this.lock.unlock();
+        }
 
-            final String country = this.geography.query(
-                    new Coordinate(geoLocation.getLongitude(), geoLocation.getLatitude())
-            );
-            assert country != null;
+        logger.info("Sampled {} unlabeled users for classification.", sampled);
+        return sampled;
+    }
 
-            if (country.equals(Geography.UNKNOWN_COUNTRY)) {
-                logger.warn("Got a tweet whose country is {}: {} - ({}, {})",
-                        Geography.UNKNOWN_COUNTRY,
-                        tweet.getId(),
-                        geoLocation.getLatitude(), geoLocation.getLongitude());
+    /**
+     * @param table a table.
+     * @return the (upper case) names of its columns.
+     * @throws SQLException on query error.
+     */
+    private Set<String> columns(String table) throws SQLException {
+        final Set<String> columns = new HashSet<>();
+        try (Statement stmt = this.c.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                columns.add(rs.getString("name").toUpperCase());
             }
+        }
+        return columns;
+    }
 
-            logger.debug("Tweet {}: {}", tweet.getId(), country);
+    /**
+     * @param table a table name.
+     * @return true if the table exists in this DB.
+     * @throws SQLException on query error.
+     */
+    private boolean tableExists(String table) throws SQLException {
+        return this.count(String.format(
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = '%s'", table)) > 0;
+    }
 
-            /**
-             * If the Tweet already exists in the DB, we have nothing to do here.
-             * Please note that, as a performance optimization,
-             * we could skip this step and catch an eventual SQL exception regarding the Tweet's PK.
-             */
-            /* Disabled due to performance optimization, we check the error code below.
-            String select = String.format("SELECT %s FROM %s WHERE %s = ?;",
-                    ID, TABLE_TWEET, ID);
-            try (PreparedStatement stmt = this.c.prepareStatement(select)) {
-                stmt.setLong(1, tweet.getId());
-
-                if (stmt.executeQuery().next()) {
-                    logger.debug("Tweet {} already exists in DB.", tweet.getId());
-                    return;
+    /**
+     * Bring an existing DB up to date with the current schema.
+     * Tweet tables created before a geography level was added
+     * get the missing level columns (left NULL for the old tweets,
+     * see {@link #relabelTweets(int)}), and the missing indexes.
+     *
+     * @throws SQLException on table alteration error.
+     */
+    private void upgradeDatabase() throws SQLException {
+        try (Statement stmt = this.c.createStatement()) {
+            for (String table : this.tweetTables()) {
+                final Set<String> columns = this.columns(table);
+                for (int level = 1; level < this.levels; level++) {
+                    final String column = levelColumn(level);
+                    if (!columns.contains(column)) {
+                        stmt.executeUpdate(String.format(
+                                "ALTER TABLE %s ADD COLUMN %s VARCHAR(50)", table, column));
+                        logger.info("Added column {} to table {}.", column, table);
+                    }
                 }
-            } catch (SQLException e) {
-                logger.error("Error while selecting tweet {}", tweet.getId());
-                logger.debug(e);
-
-                return;
             }
-            */
 
-            /* Better use PreparedStatement,
-             * avoid some Russians hackers to
-             * SQL inject us! :)
-             */
-            final String insert = String.format(
-                    "INSERT INTO %s (%s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?);",
-                    TABLE_TWEET,
-                    ID, LAT, LON, COUNTRY, USER_ID);
-
-            try (PreparedStatement stmt = this.c.prepareStatement(insert)) {
-                stmt.setLong(1, tweet.getId());
-                stmt.setDouble(2, geoLocation.getLatitude());
-                stmt.setDouble(3, geoLocation.getLongitude());
-                stmt.setString(4, country);
-                stmt.setLong(5, tweet.getUser().getId());
-
-                stmt.executeUpdate();
-            } catch (SQLException e) {
-            /*
-             * Having a constraint error is likely to indicate
-             * that the Tweet already exists in the DB,
-             * and we're violating the constraint on the PK ID.
-             */
-                if (e.getErrorCode() == SQLiteErrorCode.SQLITE_CONSTRAINT.code) {
-                    logger.debug("Tweet {} already exists in DB.", tweet.getId());
-                } else {
-                    logger.error("Error while inserting tweet {}", tweet.getId(), e);
-                }
+            /* Both the anti-join of the unlabeled users and the training query look tweets up by user. */
+            stmt.executeUpdate(String.format(
+                    "CREATE INDEX IF NOT EXISTS %s_%s_INDEX ON %s(%s)", TABLE_TWEET, USER_ID, TABLE_TWEET, USER_ID));
+            stmt.executeUpdate(String.format(
+                    "CREATE INDEX IF NOT EXISTS %s_%s_INDEX ON %s(%s)", TABLE_TWEET, COUNTRY, TABLE_TWEET, COUNTRY));
+        }
+
+        if (!this.tableExists(TABLE_USER_LABEL)) {
+            try (Statement stmt = this.c.createStatement()) {
+                stmt.executeUpdate(String.format(
+                        "CREATE TABLE %s (%s UNSIGNED BIG INT NOT NULL," +
+                                " %s VARCHAR(50) NOT NULL," +
+                                " %s INT NOT NULL," +
+                                " PRIMARY KEY(%s, %s))",
+                        TABLE_USER_COUNTRY, USER_ID, COUNTRY, TWEETS, USER_ID, COUNTRY));
+                stmt.executeUpdate(String.format(
+                        "CREATE TABLE %s (%s UNSIGNED BIG INT PRIMARY KEY NOT NULL," +
+                                " %s VARCHAR(50) NOT NULL," +
+                                " %s INT NOT NULL)",
+                        TABLE_USER_LABEL, ID, COUNTRY, TWEETS));
             }
-        } finally {
-            this.lock.unlock();
+
+            this.rebuildUserLabels();
+        }
+    }
+
+    /**
+     * Compute, from the stored tweets, the number of tweets of each user in each country
+     * and the users labels. This is needed only on upgrade, when they don't exist yet:
+     * otherwise they are kept up to date while storing and relabeling tweets.
+     * Dropping the old partitions doesn't change them: tweets are counted since they were stored.
+     * <p>
+     * The tweet tables are counted one at a time, from the oldest:
+     * as while storing, on ties the users keep the label they already had.
+     *
+     * @throws SQLException on query error.
+     */
+    private void rebuildUserLabels() throws SQLException {
+        final long start = System.currentTimeMillis();
+
+        this.lock.lock();
+        try (Statement stmt = this.c.createStatement()) {
+            this.c.setAutoCommit(false);
+            try {
+                stmt.executeUpdate("DELETE FROM " + TABLE_USER_COUNTRY);
+                stmt.executeUpdate("DELETE FROM " + TABLE_USER_LABEL);
+                for (String table : this.tweetTables()) {
+                    stmt.executeUpdate(userCountryUpsert(TABLE_USER_COUNTRY, table, ""));
+                    stmt.executeUpdate(userLabelUpsert(TABLE_USER_COUNTRY, TABLE_USER_LABEL,
+                            String.format("IN (SELECT %s FROM %s)", USER_ID, table)));
+                }
+
+                this.c.commit();
+            } catch (SQLException e) {
+                this.c.rollback();
+                throw e;
+            } finally {
+                this.c.setAutoCommit(true);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        logger.info("Users labels computed in {} ms: {} labeled users.",
+                System.currentTimeMillis() - start, this.count("SELECT COUNT(*) FROM " + TABLE_USER_LABEL));
+    }
+
+    /**
+     * @param prefix prepended to each level column.
+     * @param suffix appended to each level column.
+     * @return the level columns (but the first one), each one wrapped in prefix and suffix.
+     */
+    private String levelColumns(String prefix, String suffix) {
+        final StringBuilder builder = new StringBuilder();
+        for (int level = 1; level < this.levels; level++) {
+            builder.append(prefix).append(levelColumn(level)).append(suffix);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return a parameter placeholder for each level column (but the first one).
+     */
+    private String levelParameters() {
+        final StringBuilder builder = new StringBuilder();
+        for (int level = 1; level < this.levels; level++) {
+            builder.append(", ?");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Prepare the insert statements we'll reuse for the whole Storage lifetime.
+     *
+     * @throws SQLException on statement preparation error.
+     */
+    private void prepareStatements() throws SQLException {
+        final String insertUser = String.format(
+                "INSERT INTO %s " +
+                        "(%s, %s, %s, %s, %s, %s) " +
+                        "VALUES (?, ?, ?, ?, ?, ?);",
+                TABLE_USER,
+                ID, USERNAME, LANG, LOCATION, UTC_OFFSET, TIMEZONE);
+        this.insertUserStatement = this.c.prepareStatement(insertUser);
+
+        final String countUserCountry = String.format(
+                "INSERT INTO %s (%s, %s, %s) VALUES (?, ?, 1) " +
+                        "ON CONFLICT(%s, %s) DO UPDATE SET %s = %s + 1",
+                TABLE_USER_COUNTRY, USER_ID, COUNTRY, TWEETS,
+                USER_ID, COUNTRY, TWEETS, TWEETS);
+        this.countUserCountryStatement = this.c.prepareStatement(countUserCountry);
+
+        final String selectUserLabel = String.format(
+                "SELECT 1 FROM %s WHERE %s = ?", TABLE_USER_LABEL, ID);
+        this.selectUserLabelStatement = this.c.prepareStatement(selectUserLabel);
+
+        /*
+         * The label changes only when another country overtakes it
+         * (on ties the user keeps its label).
+         */
+        final String updateUserLabel = String.format(
+                "INSERT INTO %s (%s, %s, %s) " +
+                        "SELECT %s, %s, %s FROM %s WHERE %s = ? AND %s = ? " +
+                        "ON CONFLICT(%s) DO UPDATE SET %s = excluded.%s, %s = excluded.%s " +
+                        "WHERE excluded.%s > %s.%s OR excluded.%s = %s.%s",
+                TABLE_USER_LABEL, ID, COUNTRY, TWEETS,
+                USER_ID, COUNTRY, TWEETS, TABLE_USER_COUNTRY, USER_ID, COUNTRY,
+                ID, COUNTRY, COUNTRY, TWEETS, TWEETS,
+                TWEETS, TABLE_USER_LABEL, TWEETS, COUNTRY, TABLE_USER_LABEL, COUNTRY);
+        this.updateUserLabelStatement = this.c.prepareStatement(updateUserLabel);
+    }
+
+    /**
+     * Get the statement inserting the tweets created on a day,
+     * creating their partition if needed.
+     * The caller must hold the {@link #lock}.
+     *
+     * @param day the day, as the number of days since the epoch.
+     * @return the insert statement.
+     * @throws SQLException on table creation or statement preparation error.
+     */
+    private PreparedStatement insertTweetStatement(long day) throws SQLException {
+        assert this.lock.isHeldByCurrentThread();
+
+        PreparedStatement statement = this.insertTweetStatements.get(day);
+        if (statement != null) {
+            return statement;
+        }
+
+        final String table = partitionTable(day);
+        try (Statement stmt = this.c.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + table +
+                    tweetColumns(this.levelColumns(", ", " VARCHAR(50)")));
+        }
+
+        /* Better use PreparedStatement,
+         * avoid some Russians hackers to
+         * SQL inject us! :)
+         */
+        final String insertTweet = String.format(
+                "INSERT INTO %s (%s, %s, %s, %s, %s%s) VALUES (?, ?, ?, ?, ?%s);",
+                table,
+                ID, LAT, LON, COUNTRY, USER_ID,
+                this.levelColumns(", ", ""), this.levelParameters());
+        statement = this.c.prepareStatement(insertTweet);
+        this.insertTweetStatements.put(day, statement);
+        return statement;
+    }
+
+    /**
+     * Close the tweet insert statements, they'll be prepared again when needed.
+     *
+     * @throws SQLException on close error.
+     */
+    private void closeInsertTweetStatements() throws SQLException {
+        for (PreparedStatement statement : this.insertTweetStatements.values()) {
+            statement.close();
+        }
+        this.insertTweetStatements.clear();
+    }
+
+    /**
+     * Keep only the tweets of the last days: older partitions are dropped as a whole
+     * (instead of deleting their tweets one by one), once a day while storing tweets.
+     * Tweets older than that are not stored at all.
+     * The TWEET table, storing the tweets from before the partitioning, is kept.
+     *
+     * @param days the number of days of tweets we keep, 0 to keep them all.
+     */
+    public void setRetention(int days) {
+        assert days >= 0;
+
+        this.lock.lock();
+        try {
+            this.retention = days;
+            this.retentionDay = Long.MIN_VALUE;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the first day whose tweets we keep, see {@link #setRetention(int)}.
+     */
+    private long retentionStart() {
+        return this.retention > 0 ? dayOf(null) - this.retention + 1 : Long.MIN_VALUE;
+    }
+
+    /**
+     * Drop the partitions older than the retention, if not done yet today.
+     * The caller must hold the {@link #lock}, outside of any transaction.
+     *
+     * @throws SQLException on table drop error.
+     */
+    private void applyRetention() throws SQLException {
+        assert this.lock.isHeldByCurrentThread();
+
+        final long today = dayOf(null);
+        if (this.retention <= 0 || this.retentionDay == today) {
+            return;
+        }
+
+        final long since = this.retentionStart();
+        final Iterator<Map.Entry<Long, PreparedStatement>> statements =
+                this.insertTweetStatements.entrySet().iterator();
+        while (statements.hasNext()) {
+            final Map.Entry<Long, PreparedStatement> statement = statements.next();
+            if (statement.getKey() < since) {
+                statement.getValue().close();
+                statements.remove();
+            }
+        }
+
+        int dropped = 0;
+        try (Statement stmt = this.c.createStatement()) {
+            for (String table : this.tweetTables()) {
+                final long day = partitionDay(table);
+                if (day >= 0 && day < since) {
+                    stmt.executeUpdate("DROP TABLE " + table);
+                    dropped++;
+                }
+            }
+        }
+
+        if (dropped > 0) {
+            logger.info("Dropped {} partitions older than {} days.", dropped, this.retention);
+        }
+        this.retentionDay = today;
+    }
+
+    /**
+     * Count a new tweet of a user in a country, and update the user label.
+     *
+     * @param userId  the user ID.
+     * @param country the country of the new tweet.
+     * @return true if the user had no label yet: the tweet is its first located one.
+     * @throws SQLException on update error.
+     */
+    private boolean updateUserLabel(long userId, String country) throws SQLException {
+        final boolean labeled;
+        this.selectUserLabelStatement.setLong(1, userId);
+        try (ResultSet rs = this.selectUserLabelStatement.executeQuery()) {
+            labeled = rs.next();
+        }
+
+        this.countUserCountryStatement.setLong(1, userId);
+        this.countUserCountryStatement.setString(2, country);
+        this.countUserCountryStatement.executeUpdate();
+
+        this.updateUserLabelStatement.setLong(1, userId);
+        this.updateUserLabelStatement.setString(2, country);
+        this.updateUserLabelStatement.executeUpdate();
+        return !labeled;
+    }
+
+    /**
+     * Load the IDs of the stored users and tweets now, if not loaded yet.
+     * Otherwise the first insert loads them, holding the writer lock for as long as it takes:
+     * call this before the stream starts, so that the ingest never waits for it.
+     *
+     * @throws SQLException on query error.
+     */
+    public void preloadKnownIds() throws SQLException {
+        this.lock.lock();
+        try {
+            this.loadKnownIds();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Load the IDs of the stored users and tweets, if not loaded yet.
+     * The caller must hold the {@link #lock}.
+     *
+     * @throws SQLException on query error.
+     */
+    private void loadKnownIds() throws SQLException {
+        assert this.lock.isHeldByCurrentThread();
+
+        if (this.knownUsers != null) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        /* Both or neither: on error, the next insert tries again. */
+        final LongHashSet users = this.loadIds(Collections.singletonList(TABLE_USER));
+        this.knownTweets = this.loadIds(this.tweetTables());
+        this.knownUsers = users;
+
+        logger.info("Loaded {} user IDs and {} tweet IDs in {} ms, using {} MB (no false positives).",
+                this.knownUsers.size(), this.knownTweets.size(),
+                System.currentTimeMillis() - start,
+                (this.knownUsers.memoryUsage() + this.knownTweets.memoryUsage()) >> 20);
+    }
+
+    /**
+     * @param tables some tables whose primary key is {@link #ID}.
+     * @return the IDs stored in the tables.
+     * @throws SQLException on query error.
+     */
+    private LongHashSet loadIds(List<String> tables) throws SQLException {
+        long count = 0;
+        for (String table : tables) {
+            count += this.count("SELECT COUNT(*) FROM " + table);
+        }
+        final LongHashSet ids = new LongHashSet((int) Math.min(Integer.MAX_VALUE, count));
+
+        for (String table : tables) {
+            try (Statement stmt = this.c.createStatement();
+                 ResultSet rs = stmt.executeQuery(String.format("SELECT %s FROM %s", ID, table))) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * The current transaction has been committed: its IDs are now known.
+     */
+    private void commitPendingIds() {
+        this.knownUsers.addAll(this.pendingUsers);
+        this.knownTweets.addAll(this.pendingTweets);
+        this.discardPendingIds();
+    }
+
+    /**
+     * The current transaction has been rolled back: forget its IDs.
+     */
+    private void discardPendingIds() {
+        this.pendingUsers.clear();
+        this.pendingTweets.clear();
+    }
+
+    /**
+     * We stem the user Location field.
+     * It is a user-inserted string, that could differ from user to user.
+     * It is not parseable and it won't probably help us during classification.
+     * But its cost is low, so better try it.
+     *
+     * @param location string to be stemmed
+     * @return a stemmed string
+     */
+    public static String stemLocation(String location) {
+        if (location == null || location.length() == 0) {
+            return null;
+        }
+
+        final String cached = stemCache.get(location);
+        if (cached != null) {
+            return cached.equals(NO_STEM) ? null : cached;
+        }
+
+        final String stemmed = LocationNormalizer.normalize(location);
+        stemCache.put(location, stemmed == null ? NO_STEM : stemmed);
+        return stemmed;
+    }
+
+    /**
+     * Insert a user in the Storage.
+     * Skip already existing users (no update).
+     *
+     * @param user the prepared tweet of the user to be inserted.
+     * @throws SQLException on user insert error.
+     */
+    private void insertUser(TweetRecord user) throws SQLException {
+        if (this.knownUsers.contains(user.userId) || this.pendingUsers.contains(user.userId)) {
+            this.skippedUsers.incrementAndGet();
+            return;
+        }
+
+        /**
+         * If the user already exists in the DB, we have nothing to do here.
+         * Please note that, as a performance optimization,
+         * we could skip this step and catch an eventual SQL exception regarding the user's PK.
+         */
+        /* Disabled due to performance optimization, we check the error code below.
+        String select = String.format(
+                "SELECT %s FROM %s WHERE %s = ?;",
+                ID, TABLE_USER, ID
+        );
+
+        try (PreparedStatement stmt = this.c.prepareStatement(select)) {
+            stmt.setLong(1, user.getId());
+
+            if (stmt.executeQuery().next()) {
+                logger.debug("User {} - {} already exists in DB.", user.getId(), user.getName());
+                return;
+            }
+        } catch (SQLException e) {
+            logger.error("Error while selecting user {}", user.getId(), e);
+            throw e;
+        }
+        */
+
+        try {
+            final PreparedStatement stmt = this.insertUserStatement;
+            stmt.setLong(1, user.userId);
+            stmt.setString(2, user.userName);
+            stmt.setString(3, user.lang);
+            stmt.setString(4, user.location);
+
+            if (user.utcOffset == -1) {
+                stmt.setNull(5, Types.INTEGER);
+            } else {
+                stmt.setInt(5, user.utcOffset);
+            }
+
+            stmt.setString(6, user.timezone);
+
+            stmt.executeUpdate();
+            this.pendingUsers.add(user.userId);
+        } catch (SQLException e) {
+            /*
+             * Having a constraint error is likely to indicate
+             * that the user already exists in the DB,
+             * and we're violating the constraint on the PK ID.
+             */
+            if (e.getErrorCode() == SQLiteErrorCode.SQLITE_CONSTRAINT.code) {
+                logger.debug("User {} - {} already exists in DB.", user.userId, user.userName);
+                this.pendingUsers.add(user.userId);
+            } else {
+                logger.error("Error while inserting user {} {}", user.userId, user.userName, e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Insert a Tweet in the DB, after trying to localizing it in our geography.
+     * Store the User who tweeted too.
+     * The tweet and the label of its User are committed together, as a batch of one tweet,
+     * see {@link #insertRecords(List)}.
+     *
+     * @param tweet the Twitter status containing the Tweet and the User's detail.
+     */
+    public void insertTweet(Status tweet) {
+        this.insertRecords(Collections.singletonList(this.prepare(tweet)));
+    }
+
+    /**
+     * Insert a batch of Tweets in the DB within a single transaction.
+     * As in {@link #insertTweet(Status)}, duplicated users and tweets are skipped.
+     *
+     * @param tweets the Twitter statuses to be stored.
+     * @return true if the batch has been committed.
+     */
+    public boolean insertTweets(List<Status> tweets) {
+        final List<TweetRecord> records = new ArrayList<>(tweets.size());
+        for (Status tweet : tweets) {
+            try {
+                records.add(this.prepare(tweet));
+            } catch (RuntimeException e) {
+                logger.error("Skipping malformed status {}.", tweet.getId(), e);
+            }
+        }
+        return this.insertRecords(records);
+    }
+
+    /**
+     * Insert a batch of prepared Tweets in the DB within a single transaction.
+     * Only the database writes are serialized: the tweets are prepared
+     * in advance, see {@link #prepare(Status)}.
+     *
+     * @param tweets the prepared tweets to be stored.
+     * @return true if the batch has been committed.
+     */
+    public boolean insertRecords(List<TweetRecord> tweets) {
+        this.lock.lock();
+
+        try {
+            this.loadKnownIds();
+            this.applyRetention();
+            this.c.setAutoCommit(false);
+            try {
+                for (TweetRecord tweet : tweets) {
+                    this.storeRecord(tweet);
+                }
+                this.c.commit();
+                this.commitPendingIds();
+                return true;
+            } catch (SQLException | RuntimeException e) {
+                /* Malformed tweets too: never commit a partial batch. */
+                logger.error("Error while committing a batch of {} tweets, rolling back.", tweets.size(), e);
+                this.discardPendingIds();
+                this.c.rollback();
+                /* The partitions created within the transaction are gone. */
+                this.closeInsertTweetStatements();
+                return false;
+            } finally {
+                this.c.setAutoCommit(true);
+            }
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Error while handling the transaction of a batch of {} tweets.", tweets.size(), e);
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Prepare a Tweet for the storage, see {@link #prepare(TweetRecord)}.
+     *
+     * @param tweet the Twitter status containing the Tweet and the User's detail.
+     * @return the prepared tweet.
+     */
+    public TweetRecord prepare(Status tweet) {
+        final TweetRecord record = this.newRecord().set(tweet);
+        this.prepare(record);
+        return record;
+    }
+
+    /**
+     * @return a record fitting the levels of our geography, see {@link TweetRecord}.
+     */
+    public TweetRecord newRecord() {
+        return new TweetRecord(this.levels);
+    }
+
+    /**
+     * Prepare a Tweet for the storage: stem the User's location,
+     * and localize the Tweet in our geography.
+     * This doesn't need the {@link #lock}: it can be called by many threads at once.
+     *
+     * @param record the fields of the Tweet and of its User, prepared in place.
+     */
+    public void prepare(TweetRecord record) {
+        assert record.countries.length == this.levels;
+
+        record.location = stemLocation(record.location);
+
+        /**
+         * The status could contain various geolocation information.
+         * We honour at first the GPS coordinates.
+         * Then the Place details.
+         * In case of place we are given a bounding box of points and
+         * we'll use the centroid of the constructed polygon while
+         * assigning a country to the Tweet.
+         *
+         * We won't store in the DB Tweets that do not ship any location info.
+         */
+        final String[] countries = record.countries;
+        if (record.hasGeo) {
+            this.geography.query(record.longitude, record.latitude, countries);
+        } else if (record.hasPlace) {
+            final ResolvedPlace place = this.resolvePlace(record);
+            record.latitude = place.location.getLatitude();
+            record.longitude = place.location.getLongitude();
+            System.arraycopy(place.countries, 0, countries, 0, countries.length);
+        } else {
+            record.located = false;
+            return;
+        }
+        record.located = true;
+
+        if (countries[0].equals(Geography.UNKNOWN_COUNTRY)) {
+            logger.warn("Got a tweet whose country is {}: {} - ({}, {})",
+                    Geography.UNKNOWN_COUNTRY,
+                    record.id,
+                    record.latitude, record.longitude);
+        }
+
+        logger.debug("Tweet {}: {}", record.id, GeographyHierarchy.toString(countries));
+    }
+
+    /**
+     * Store a prepared Tweet (and its User) by using the current connection.
+     * The caller must hold the {@link #lock}, within the transaction of the batch:
+     * the tweet and the label of its User are committed (or rolled back) together.
+     *
+     * @param tweet the prepared tweet.
+     * @throws SQLException on user label update error: the batch must be rolled back.
+     */
+    private void storeRecord(TweetRecord tweet) throws SQLException {
+        assert this.lock.isHeldByCurrentThread();
+
+        if (this.knownTweets.contains(tweet.id) || this.pendingTweets.contains(tweet.id)) {
+            this.skippedTweets.incrementAndGet();
+            return;
+        }
+
+        if (tweet.day < this.retentionStart()) {
+            logger.debug("Skipping tweet {}, older than {} days.", tweet.id, this.retention);
+            return;
+        }
+
+        if (!tweet.hasUser) {
+            logger.error("Trying to add NULL user to the DB.");
+            return;
+        }
+
+        try {
+            this.insertUser(tweet);
+        } catch (SQLException e) {
+            logger.warn("Skipping tweet {} because of error while inserting user {}.",
+                    tweet.id, tweet.userId
+            );
+        }
+
+        if (!tweet.located) {
+            return;
+        }
+        final String[] countries = tweet.countries;
+        final String country = countries[0];
+        assert country != null;
+
+        /**
+         * If the Tweet already exists in the DB, we have nothing to do here.
+         * Please note that, as a performance optimization,
+         * we could skip this step and catch an eventual SQL exception regarding the Tweet's PK.
+         */
+        /* Disabled due to performance optimization, we check the error code below.
+        String select = String.format("SELECT %s FROM %s WHERE %s = ?;",
+                ID, TABLE_TWEET, ID);
+        try (PreparedStatement stmt = this.c.prepareStatement(select)) {
+            stmt.setLong(1, tweet.getId());
+
+            if (stmt.executeQuery().next()) {
+                logger.debug("Tweet {} already exists in DB.", tweet.getId());
+                return;
+            }
+        } catch (SQLException e) {
+            logger.error("Error while selecting tweet {}", tweet.getId());
+            logger.debug(e);
+
+            return;
+        }
+        */
+
+        try {
+            final PreparedStatement stmt = this.insertTweetStatement(tweet.day);
+            stmt.setLong(1, tweet.id);
+            stmt.setDouble(2, tweet.latitude);
+            stmt.setDouble(3, tweet.longitude);
+            stmt.setString(4, country);
+            stmt.setLong(5, tweet.userId);
+            for (int level = 1; level < countries.length; level++) {
+                stmt.setString(5 + level, countries[level]);
+            }
+
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+        /*
+         * Having a constraint error is likely to indicate
+         * that the Tweet already exists in the DB,
+         * and we're violating the constraint on the PK ID.
+         */
+            if (e.getErrorCode() == SQLiteErrorCode.SQLITE_CONSTRAINT.code) {
+                logger.debug("Tweet {} already exists in DB.", tweet.id);
+                this.pendingTweets.add(tweet.id);
+            } else {
+                logger.error("Error while inserting tweet {}", tweet.id, e);
+            }
+            return;
+        }
+
+        this.pendingTweets.add(tweet.id);
+        tweet.labeled = this.updateUserLabel(tweet.userId, country);
+        tweet.stored = true;
+    }
+
+    /**
+     * Assign again a country (at each level) to each stored tweet,
+     * e.g. after a shapefile change or after adding a finer level.
+     * <p>
+     * Each tweet table is relabeled in turn (TWEET first, then the partitions by day).
+     * Tweets are read in chunks of increasing IDs (so that each chunk
+     * is a range scan on the primary key), located in parallel
+     * and updated within a single transaction per chunk.
+     * The table and the last relabeled ID are committed together with each chunk:
+     * if interrupted, relabeling resumes from there.
+     * Partitions may be dropped meanwhile by the retention of another writer (see {@link #setRetention(int)}):
+     * each table is checked before each chunk, and skipped once gone.
+     *
+     * The counts of the users tweets by country (and so their labels) follow the tweets
+     * that change country, within the same transaction.
+     *
+     * @param chunkSize the number of tweets relabeled within a single transaction.
+     * @return the number of tweets that changed their countries during this run.
+     * @throws SQLException on query or update error.
+     */
+    public long relabelTweets(int chunkSize) throws SQLException {
+        assert chunkSize > 0;
+
+        try (Statement stmt = this.c.createStatement()) {
+            stmt.executeUpdate(String.format(
+                    "CREATE TABLE IF NOT EXISTS %s (%s UNSIGNED BIG INT NOT NULL)",
+                    TABLE_RELABEL_CHECKPOINT, LAST_ID));
+            if (!this.columns(TABLE_RELABEL_CHECKPOINT).contains(TABLE_NAME)) {
+                stmt.executeUpdate(String.format(
+                        "ALTER TABLE %s ADD COLUMN %s VARCHAR(50)", TABLE_RELABEL_CHECKPOINT, TABLE_NAME));
+            }
+        }
+
+        /* Checkpoints from before the partitioning refer to the TWEET table. */
+        String lastTable = TABLE_TWEET;
+        long lastId = Long.MIN_VALUE;
+        try (Statement stmt = this.c.createStatement();
+             ResultSet rs = stmt.executeQuery(String.format(
+                     "SELECT %s, %s FROM %s", TABLE_NAME, LAST_ID, TABLE_RELABEL_CHECKPOINT))) {
+            if (rs.next()) {
+                if (rs.getString(1) != null) {
+                    lastTable = rs.getString(1);
+                }
+                lastId = rs.getLong(2);
+                logger.info("Resuming relabeling after tweet {} of {}.", lastId, lastTable);
+            }
+        }
+
+        final List<String> tables = this.tweetTables();
+        long total = 0;
+        long done = 0;
+        for (String table : tables) {
+            final long count = this.count(String.format("SELECT COUNT(*) FROM %s", table));
+            total += count;
+            if (table.compareTo(lastTable) < 0) {
+                done += count;
+            } else if (table.equals(lastTable)) {
+                done += this.count(String.format("SELECT COUNT(*) FROM %s WHERE %s <= %d", table, ID, lastId));
+            }
+        }
+        /* The tweets relabeled by the previous runs don't count for the rate. */
+        final long resumed = done;
+        long changed = 0;
+        final long start = System.currentTimeMillis();
+
+        final int levels = this.levels;
+        final String checkpoint = String.format(
+                "INSERT INTO %s (%s, %s) VALUES (?, ?)",
+                TABLE_RELABEL_CHECKPOINT, TABLE_NAME, LAST_ID);
+
+        final long[] ids = new long[chunkSize];
+        final double[] latitudes = new double[chunkSize];
+        final double[] longitudes = new double[chunkSize];
+        final long[] users = new long[chunkSize];
+        final String[][] countries = new String[chunkSize][levels];
+
+        final String uncount = String.format(
+                "UPDATE %s SET %s = %s - 1 WHERE %s = ? AND %s = ?",
+                TABLE_USER_COUNTRY, TWEETS, TWEETS, USER_ID, COUNTRY);
+        final String prune = String.format(
+                "DELETE FROM %s WHERE %s = ? AND %s = ? AND %s <= 0",
+                TABLE_USER_COUNTRY, USER_ID, COUNTRY, TWEETS);
+
+        try (PreparedStatement checkpointStmt = this.c.prepareStatement(checkpoint);
+             PreparedStatement uncountStmt = this.c.prepareStatement(uncount);
+             PreparedStatement pruneStmt = this.c.prepareStatement(prune);
+             PreparedStatement labelStmt = this.c.prepareStatement(
+                     userLabelUpsert(TABLE_USER_COUNTRY, TABLE_USER_LABEL, "= ?"));
+             Statement clearStmt = this.c.createStatement()) {
+            for (String table : tables) {
+                if (table.compareTo(lastTable) < 0) {
+                    continue;
+                } else if (!table.equals(lastTable)) {
+                    lastId = Long.MIN_VALUE;
+                }
+
+                if (!this.tableExists(table)) {
+                    logger.info("Skipping {}, dropped meanwhile.", table);
+                    continue;
+                }
+
+                final String select = String.format(
+                        "SELECT %s, %s, %s, %s, %s%s FROM %s WHERE %s > ? ORDER BY %s LIMIT ?",
+                        ID, LAT, LON, USER_ID, COUNTRY, this.levelColumns(", ", ""), table, ID, ID);
+                final String update = String.format(
+                        "UPDATE %s SET %s = ?%s WHERE %s = ?",
+                        table, COUNTRY, this.levelColumns(", ", " = ?"), ID);
+
+                try (PreparedStatement selectStmt = this.c.prepareStatement(select);
+                     PreparedStatement updateStmt = this.c.prepareStatement(update)) {
+                    while (this.tableExists(table)) {
+                        int size = 0;
+
+                        selectStmt.setLong(1, lastId);
+                        selectStmt.setInt(2, chunkSize);
+                        try (ResultSet rs = selectStmt.executeQuery()) {
+                            while (rs.next()) {
+                                ids[size] = rs.getLong(1);
+                                latitudes[size] = rs.getDouble(2);
+                                longitudes[size] = rs.getDouble(3);
+                                users[size] = rs.getLong(4);
+                                for (int level = 0; level < levels; level++) {
+                                    countries[size][level] = rs.getString(5 + level);
+                                }
+                                size++;
+                            }
+                        }
+
+                        if (size == 0) {
+                            break;
+                        }
+
+                        final String[][] relabeled = this.geography.query(
+                                Arrays.copyOf(longitudes, size), Arrays.copyOf(latitudes, size)
+                        );
+
+                        this.lock.lock();
+                        try {
+                            this.c.setAutoCommit(false);
+                            try {
+                                for (int i = 0; i < size; i++) {
+                                    if (!Arrays.equals(relabeled[i], countries[i])) {
+                                        for (int level = 0; level < levels; level++) {
+                                            updateStmt.setString(1 + level, relabeled[i][level]);
+                                        }
+                                        updateStmt.setLong(1 + levels, ids[i]);
+                                        updateStmt.addBatch();
+                                        changed++;
+                                    }
+                                }
+                                updateStmt.executeBatch();
+
+                                /* The tweets that changed country move their count, and may change the label. */
+                                for (int i = 0; i < size; i++) {
+                                    final String from = countries[i][0];
+                                    final String to = relabeled[i][0];
+                                    if (from == null ? to == null : from.equals(to)) {
+                                        continue;
+                                    }
+
+                                    if (from != null) {
+                                        uncountStmt.setLong(1, users[i]);
+                                        uncountStmt.setString(2, from);
+                                        uncountStmt.executeUpdate();
+                                        pruneStmt.setLong(1, users[i]);
+                                        pruneStmt.setString(2, from);
+                                        pruneStmt.executeUpdate();
+                                    }
+                                    if (to != null) {
+                                        this.countUserCountryStatement.setLong(1, users[i]);
+                                        this.countUserCountryStatement.setString(2, to);
+                                        this.countUserCountryStatement.executeUpdate();
+                                    }
+                                    labelStmt.setLong(1, users[i]);
+                                    labelStmt.executeUpdate();
+                                }
+
+                                clearStmt.executeUpdate("DELETE FROM " + TABLE_RELABEL_CHECKPOINT);
+                                checkpointStmt.setString(1, table);
+                                checkpointStmt.setLong(2, ids[size - 1]);
+                                checkpointStmt.executeUpdate();
+
+                                this.c.commit();
+                            } catch (SQLException e) {
+                                logger.error("Error while relabeling tweets of {} after {}, rolling back.",
+                                        table, lastId, e);
+                                this.c.rollback();
+                                throw e;
+                            } finally {
+                                this.c.setAutoCommit(true);
+                            }
+                        } finally {
+                            this.lock.unlock();
+                        }
+
+                        lastId = ids[size - 1];
+                        done += size;
+
+                        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                        logger.info("Relabeled {} / {} tweets ({}%), {} changed, {} tweets/s.",
+                                done, total, total > 0 ? done * 100 / total : 100,
+                                changed, ((done - resumed) * 1000) / elapsed);
+                    }
+                } catch (SQLException e) {
+                    /* The table has been dropped between the check and the chunk. */
+                    if (this.tableExists(table)) {
+                        throw e;
+                    }
+                }
+
+                if (!this.tableExists(table)) {
+                    logger.info("Skipping the rest of {}, dropped meanwhile.", table);
+                }
+            }
+
+            clearStmt.executeUpdate("DELETE FROM " + TABLE_RELABEL_CHECKPOINT);
+        }
+
+        logger.info("Relabeling completed, {} tweets changed their countries.", changed);
+        return changed;
+    }
+
+    /**
+     * Execute a counting query.
+     *
+     * @param query a query returning a single number.
+     * @return the query result.
+     * @throws SQLException on query error.
+     */
+    private long count(String query) throws SQLException {
+        try (Statement stmt = this.c.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Locate a Place at the midpoint of its bounding box and assign it a country at each level.
+     * Results are cached by Place ID.
+     *
+     * @param place the record of a tweet with a Place.
+     * @return the location and the countries of the place.
+     */
+    private ResolvedPlace resolvePlace(TweetRecord place) {
+        final String placeId = place.placeId;
+        if (placeId != null) {
+            final ResolvedPlace cached = this.placeCache.get(placeId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final GeoLocation first = new GeoLocation(place.placeLatitude1, place.placeLongitude1);
+        final GeoLocation last = new GeoLocation(place.placeLatitude2, place.placeLongitude2);
+
+        final GeoLocation location = Geography.midPoint(first, last);
+        final ResolvedPlace resolved = new ResolvedPlace(
+                location,
+                this.geography.query(location.getLongitude(), location.getLatitude())
+        );
+
+        if (placeId != null) {
+            this.placeCache.put(placeId, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the number of users skipped because already stored.
+     */
+    public long getSkippedUsers() {
+        return this.skippedUsers.get();
+    }
+
+    /**
+     * @return the number of tweets skipped because already stored.
+     */
+    public long getSkippedTweets() {
+        return this.skippedTweets.get();
+    }
+
+    /**
+     * @return the cache of the stemmed locations, to inspect its hits and misses.
+     */
+    public static LruCache<String, String> getStemCache() {
+        return stemCache;
+    }
+
+    /**
+     * @return the ratio of Places whose location was found in the cache.
+     */
+    public double getPlaceCacheHitRate() {
+        return this.placeCache.getHitRate();
+    }
+
+    /**
+     * The location and the countries (one per level) assigned to a Place.
+     */
+    private static final class ResolvedPlace {
+        final GeoLocation location;
+        final String[] countries;
+
+        ResolvedPlace(GeoLocation location, String[] countries) {
+            this.location = location;
+            this.countries = countries;
         }
     }
 
@@ -483,6 +1830,19 @@ class Storage {
     public void close() throws SQLException {
         try {
             this.lock.lock();
+            if (this.insertUserStatement != null) {
+                this.insertUserStatement.close();
+            }
+            this.closeInsertTweetStatements();
+            if (this.countUserCountryStatement != null) {
+                this.countUserCountryStatement.close();
+            }
+            if (this.selectUserLabelStatement != null) {
+                this.selectUserLabelStatement.close();
+            }
+            if (this.updateUserLabelStatement != null) {
+                this.updateUserLabelStatement.close();
+            }
             this.c.close();
         } finally {
             this.lock.unlock();
@@ -0,0 +1,30 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import twitter4j.StatusListener;
+
+/**
+ * A source of statuses for the {@link Streamer}:
+ * the Twitter stream, a file of statuses or a synthetic generator.
+ * Each source delivers its statuses to the listener from its own thread(s).
+ */
+interface StreamSource {
+    /**
+     * Start delivering the statuses to the listener, without blocking.
+     *
+     * @param listener the listener receiving the statuses.
+     */
+    void start(StatusListener listener);
+
+    /**
+     * Wait until the source is exhausted (or stopped).
+     * Endless sources (e.g. the Twitter stream) return only once stopped.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void join() throws InterruptedException;
+
+    /**
+     * Stop delivering the statuses.
+     */
+    void stop();
+}
@@ -3,8 +3,10 @@ package com.github.aldurd392.UnitedTweetsAnalyzer;
 import org.apache.logging.log4j.LogManager;
 import twitter4j.*;
 
+import java.io.IOException;
+
 /**
- * Connect to the Twitter stream and store the results.
+ * Connect to a stream of statuses (by default the Twitter stream) and store the results.
  */
 class Streamer {
 
@@ -29,29 +31,83 @@ class Streamer {
 
     private final static org.apache.logging.log4j.Logger logger = LogManager.getLogger(Streamer.class.getSimpleName());
 
-	private final Storage storage;
-    private TwitterStream twitterStream = null;
+    /**
+     * The sources of the statuses, see {@link #createSource(String, Bias, boolean)}.
+     */
+    public final static String TWITTER_SOURCE = "twitter";
+    public final static String SYNTHETIC_SOURCE = "synthetic";
+    private final static String SOURCE_OPTIONS = ":";
+
+	private final Ingester ingester;
+    private final Journal journal;
+    private StreamSource source = null;
 
     /**
-     * Build the streamer and prepare the storage.
-     * @param storage the storage in which stream Statues will be stored.
+     * Build the streamer.
+     * @param ingester the ingester that will store the stream Statuses.
      */
-	public Streamer(Storage storage) {
-        assert (storage != null);
-		this.storage = storage;
+	public Streamer(Ingester ingester) {
+        this(ingester, null);
 	}
 
     /**
-     * Start listening to the stream and storing into the storage.
-     * @param bias parameter indicating how the stream should be filtered.
+     * Build the streamer.
+     * @param ingester the ingester that will store the stream Statuses.
+     * @param journal if not null, the journal receiving the raw Statuses before they are stored.
      */
-    public void startListening(Bias bias) {
-        this.twitterStream = new TwitterStreamFactory().getInstance();
+    public Streamer(Ingester ingester, Journal journal) {
+        assert (ingester != null);
+        this.ingester = ingester;
+        this.journal = journal;
+    }
+
+    /**
+     * Build a source of statuses.
+     * @param source {@link #TWITTER_SOURCE} for the Twitter stream,
+     *               {@link #SYNTHETIC_SOURCE} (optionally followed by ":" and its options, see {@link SyntheticSource})
+     *               for synthetic statuses, or the path of a file of statuses (or of a journal directory).
+     * @param bias parameter indicating how the Twitter stream should be filtered.
+     * @param keepJSON if set, the raw JSON of the Twitter statuses is kept, e.g. for the {@link Journal}.
+     * @return the source.
+     * @throws IllegalArgumentException on invalid synthetic source options.
+     */
+    public static StreamSource createSource(String source, Bias bias, boolean keepJSON) {
+        if (source.equals(TWITTER_SOURCE)) {
+            return new TwitterSource(bias, keepJSON);
+        } else if (source.equals(SYNTHETIC_SOURCE)) {
+            return new SyntheticSource("");
+        } else if (source.startsWith(SYNTHETIC_SOURCE + SOURCE_OPTIONS)) {
+            return new SyntheticSource(source.substring(SYNTHETIC_SOURCE.length() + SOURCE_OPTIONS.length()));
+        }
+        return new FileSource(source);
+    }
+
+    /**
+     * Start listening to the source and storing into the storage.
+     * @param source the source of the statuses.
+     */
+    public void startListening(StreamSource source) {
+        assert (source != null);
+        this.source = source;
 
         StatusListener listener = new StatusListener() {
             @Override
             public void onStatus(Status status) {
-                storage.insertTweet(status);
+                if (journal != null) {
+                    final String json = TwitterObjectFactory.getRawJSON(status);
+                    try {
+                        if (json != null) {
+                            journal.append(json);
+                        }
+                    } catch (IOException e) {
+                        logger.error("Error while journaling status {}.", status.getId(), e);
+                    }
+                }
+
+                /* Only a flat record is retained, the status can go. */
+                if (!ingester.offer(status)) {
+                    logger.debug("Ingest queue full, dropping status {}.", status.getId());
+                }
             }
 
             @Override
@@ -80,28 +136,22 @@ class Streamer {
             public void onScrubGeo(long userId, long upToStatusId) { }
         };
 
-        twitterStream.addListener(listener);
-
-        final FilterQuery filterQuery = new FilterQuery();
-        switch (bias) {
-            case geo:
-                filterQuery.locations(Constants.boundingBox);
-                twitterStream.filter(filterQuery);
-                break;
-            case all_geo:
-                filterQuery.locations(Constants.worldWideBox);
-                twitterStream.filter(filterQuery);
-                break;
-            case all:
-                twitterStream.sample();
-                break;
+        source.start(listener);
+    }
+
+    /**
+     * Wait until the source is exhausted, see {@link StreamSource#join()}.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void join() throws InterruptedException {
+        if (this.source != null) {
+            this.source.join();
         }
     }
 
     public void stopListening() {
-        if (this.twitterStream != null) {
-            this.twitterStream.clearListeners();
-            this.twitterStream.cleanUp();
+        if (this.source != null) {
+            this.source.stop();
         }
     }
 }
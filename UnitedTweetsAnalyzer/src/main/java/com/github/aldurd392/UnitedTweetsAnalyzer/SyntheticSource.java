@@ -0,0 +1,220 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import twitter4j.StatusListener;
+import twitter4j.TwitterObjectFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthetic statuses, to measure the ingest throughput without the network.
+ *
+ * Statuses are built as JSON and parsed by twitter4j, as the stream would.
+ * They are configured by a comma separated list of key=value options:
+ * - count: the number of statuses (default {@value #DEFAULT_COUNT}).
+ * - rate: the statuses per second, 0 for as fast as possible (default).
+ * - geo: the ratio of statuses with GPS coordinates (default {@value #DEFAULT_GEO}).
+ * - place: the ratio of statuses with a Place only (default {@value #DEFAULT_PLACE}),
+ *      the others have no location.
+ * - places: the number of distinct Places (default {@value #DEFAULT_PLACES}).
+ * - repeat: the ratio of statuses whose user has already been seen (default {@value #DEFAULT_REPEAT}).
+ * - seed: the seed of the generator.
+ * Locations lie within {@link Constants#boundingBox}.
+ */
+class SyntheticSource extends ThreadedSource {
+    private final static String OPTION_SEPARATOR = ",";
+    private final static String VALUE_SEPARATOR = "=";
+
+    private final static long DEFAULT_COUNT = 1000000;
+    private final static double DEFAULT_GEO = 0.3;
+    private final static double DEFAULT_PLACE = 0.3;
+    private final static int DEFAULT_PLACES = 1000;
+    private final static double DEFAULT_REPEAT = 0.8;
+
+    /**
+     * The half size (degrees) of the Places bounding boxes.
+     */
+    private final static double PLACE_SIZE = 0.1;
+
+    private final static String DATE_FORMAT = "EEE MMM dd HH:mm:ss ZZZZZ yyyy";
+
+    /**
+     * Users get their attributes from these, by ID.
+     */
+    private final static String[] LANGS = {"en", "en", "en", "es", "fr", "it", "pt", "ja"};
+    private final static String[] LOCATIONS = {
+            "Los Angeles, CA", "NYC", "New York, NY", "Chicago", "Houston, TX", "London",
+            "San Francisco", "Miami, FL", "Boston", "Seattle, WA", "Earth", "",
+    };
+    private final static String[] TIMEZONES = {
+            "Pacific Time (US & Canada)", "Eastern Time (US & Canada)", "Central Time (US & Canada)", "London",
+    };
+    private final static int[] UTC_OFFSETS = {-28800, -18000, -21600, 0};
+
+    private final long count;
+    private final long rate;
+    private final double geo;
+    private final double place;
+    private final double repeat;
+    private final Random random;
+
+    private final double[] placeLongitudes;
+    private final double[] placeLatitudes;
+
+    private final StringBuilder json = new StringBuilder(1024);
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+    private long createdAtSecond = -1;
+    private String createdAt = null;
+
+    /**
+     * @param options the generator options, see {@link SyntheticSource}; may be empty.
+     * @throws IllegalArgumentException on invalid options.
+     */
+    public SyntheticSource(String options) {
+        final Map<String, String> values = new HashMap<>();
+        for (String option : options.split(OPTION_SEPARATOR)) {
+            if (option.trim().isEmpty()) {
+                continue;
+            }
+
+            final String[] pair = option.split(VALUE_SEPARATOR, 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid synthetic source option " + option);
+            }
+            values.put(pair[0].trim(), pair[1].trim());
+        }
+
+        try {
+            this.count = Long.parseLong(pop(values, "count", String.valueOf(DEFAULT_COUNT)));
+            this.rate = Long.parseLong(pop(values, "rate", "0"));
+            this.geo = Double.parseDouble(pop(values, "geo", String.valueOf(DEFAULT_GEO)));
+            this.place = Double.parseDouble(pop(values, "place", String.valueOf(DEFAULT_PLACE)));
+            this.repeat = Double.parseDouble(pop(values, "repeat", String.valueOf(DEFAULT_REPEAT)));
+
+            final int places = Integer.parseInt(pop(values, "places", String.valueOf(DEFAULT_PLACES)));
+            final String seed = pop(values, "seed", null);
+            this.random = seed == null ? new Random() : new Random(Long.parseLong(seed));
+
+            this.placeLongitudes = new double[Math.max(1, places)];
+            this.placeLatitudes = new double[Math.max(1, places)];
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid synthetic source option value.", e);
+        }
+
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("Unknown synthetic source options " + values.keySet());
+        } else if (this.count < 0 || this.rate < 0 || this.geo < 0 || this.place < 0 || this.geo + this.place > 1 ||
+                this.repeat < 0 || this.repeat > 1) {
+            throw new IllegalArgumentException("Invalid synthetic source options " + options);
+        }
+
+        for (int i = 0; i < this.placeLongitudes.length; i++) {
+            this.placeLongitudes[i] = this.randomLongitude();
+            this.placeLatitudes[i] = this.randomLatitude();
+        }
+        this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    private static String pop(Map<String, String> values, String key, String defaultValue) {
+        final String value = values.remove(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private double randomLongitude() {
+        final double[][] box = Constants.boundingBox;
+        return box[0][0] + this.random.nextDouble() * (box[1][0] - box[0][0]);
+    }
+
+    private double randomLatitude() {
+        final double[][] box = Constants.boundingBox;
+        return box[0][1] + this.random.nextDouble() * (box[1][1] - box[0][1]);
+    }
+
+    @Override
+    protected void run(StatusListener listener) throws Exception {
+        final long start = System.nanoTime();
+        /* Status IDs follow the time, as Twitter's: runs don't collide. Users are the same across runs. */
+        final long firstId = (System.currentTimeMillis() - Storage.TWITTER_EPOCH) << Storage.TWITTER_ID_SHIFT;
+        final long firstUserId = 1;
+        long users = 0;
+
+        for (long i = 0; i < this.count && this.isRunning(); i++) {
+            if (this.rate > 0) {
+                final long wait = start + i * TimeUnit.SECONDS.toNanos(1) / this.rate - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            final long userId = users > 0 && this.random.nextDouble() < this.repeat ?
+                    firstUserId + (long) (this.random.nextDouble() * users) :
+                    firstUserId + users++;
+
+            this.deliver(listener, TwitterObjectFactory.createStatus(this.status(firstId + i, userId)));
+        }
+    }
+
+    /**
+     * @param id     the status ID.
+     * @param userId the user ID.
+     * @return the JSON of a new status, as in the stream.
+     */
+    private String status(long id, long userId) {
+        final long now = System.currentTimeMillis();
+        if (now / 1000 != this.createdAtSecond) {
+            this.createdAtSecond = now / 1000;
+            this.createdAt = this.dateFormat.format(new Date(now));
+        }
+
+        final StringBuilder json = this.json;
+        json.setLength(0);
+        json.append("{\"id\":").append(id)
+                .append(",\"created_at\":\"").append(this.createdAt)
+                .append("\",\"text\":\"Synthetic status ").append(id).append('"');
+
+        final int hash = (int) ((userId ^ (userId >>> 32)) & Integer.MAX_VALUE);
+        final int zone = hash % TIMEZONES.length;
+        json.append(",\"user\":{\"id\":").append(userId)
+                .append(",\"name\":\"user").append(userId)
+                .append("\",\"screen_name\":\"user").append(userId)
+                .append("\",\"lang\":\"").append(LANGS[hash % LANGS.length])
+                .append("\",\"location\":\"").append(LOCATIONS[(hash / 7) % LOCATIONS.length])
+                .append("\",\"time_zone\":\"").append(TIMEZONES[zone])
+                .append("\",\"utc_offset\":").append(UTC_OFFSETS[zone])
+                .append('}');
+
+        final double location = this.random.nextDouble();
+        if (location < this.geo) {
+            json.append(",\"coordinates\":{\"type\":\"Point\",\"coordinates\":[")
+                    .append(this.randomLongitude()).append(',').append(this.randomLatitude())
+                    .append("]}");
+        } else if (location < this.geo + this.place) {
+            final int place = this.random.nextInt(this.placeLongitudes.length);
+            final double longitude = this.placeLongitudes[place];
+            final double latitude = this.placeLatitudes[place];
+            json.append(",\"place\":{\"id\":\"").append(Integer.toHexString(place))
+                    .append("\",\"name\":\"Place ").append(place)
+                    .append("\",\"full_name\":\"Place ").append(place)
+                    .append("\",\"place_type\":\"city\",\"bounding_box\":{\"type\":\"Polygon\",\"coordinates\":[[")
+                    .append('[').append(longitude - PLACE_SIZE).append(',').append(latitude - PLACE_SIZE).append("],")
+                    .append('[').append(longitude - PLACE_SIZE).append(',').append(latitude + PLACE_SIZE).append("],")
+                    .append('[').append(longitude + PLACE_SIZE).append(',').append(latitude + PLACE_SIZE).append("],")
+                    .append('[').append(longitude + PLACE_SIZE).append(',').append(latitude - PLACE_SIZE).append(']')
+                    .append("]]}}");
+        }
+
+        return json.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return SyntheticSource.class.getSimpleName();
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import twitter4j.Status;
+import twitter4j.StatusListener;
+
+/**
+ * A finite, local source of statuses, delivered by a dedicated thread
+ * as fast as the source allows: once exhausted, it logs its throughput.
+ */
+abstract class ThreadedSource implements StreamSource {
+    private final static Logger logger = LogManager.getLogger(ThreadedSource.class.getSimpleName());
+
+    private Thread thread = null;
+    private volatile boolean running = true;
+    private long delivered = 0;
+
+    @Override
+    public void start(final StatusListener listener) {
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                try {
+                    ThreadedSource.this.run(listener);
+                } catch (Exception e) {
+                    listener.onException(e);
+                }
+
+                final long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+                logger.info("{} delivered {} statuses in {} ms, {} statuses/s.",
+                        ThreadedSource.this, delivered, elapsed, (delivered * 1000) / elapsed);
+            }
+        }, this.getClass().getSimpleName());
+        this.thread.start();
+    }
+
+    /**
+     * Deliver the statuses, until exhausted or stopped.
+     *
+     * @param listener the listener receiving the statuses.
+     * @throws Exception on error, reported to the listener.
+     */
+    protected abstract void run(StatusListener listener) throws Exception;
+
+    /**
+     * Deliver a status, and count it.
+     *
+     * @param listener the listener receiving the status.
+     * @param status   the status.
+     */
+    protected void deliver(StatusListener listener, Status status) {
+        listener.onStatus(status);
+        this.delivered++;
+    }
+
+    /**
+     * @return false once the source has been stopped.
+     */
+    protected boolean isRunning() {
+        return this.running;
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        if (this.thread != null) {
+            this.thread.join();
+        }
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import twitter4j.GeoLocation;
+import twitter4j.Place;
+import twitter4j.Status;
+import twitter4j.User;
+
+/**
+ * The few fields of a status the storage needs, flat:
+ * they are extracted once, see {@link #set(Status)}, so that the twitter4j
+ * object graph can be released as soon as the status is received.
+ *
+ * The record is then prepared for the storage: the user's location is stemmed
+ * and the tweet is located (and assigned its countries) in advance,
+ * so that storing it only takes the database writes.
+ * See {@link Storage#prepare(TweetRecord)}.
+ *
+ * Records are mutable, so that they can be reused once stored.
+ */
+final class TweetRecord {
+    long id;
+    /**
+     * The day the tweet was created, see {@link Storage#dayOf(java.util.Date)}.
+     */
+    long day;
+
+    boolean hasUser;
+    long userId;
+    String userName;
+    String lang;
+    /**
+     * As given by the user, then stemmed.
+     */
+    String location;
+    /**
+     * -1 if unknown.
+     */
+    int utcOffset;
+    String timezone;
+
+    /**
+     * True if the tweet ships its GPS coordinates.
+     */
+    boolean hasGeo;
+    /**
+     * True if the tweet ships a Place (and no GPS coordinates):
+     * its ID and the opposite corners of its bounding box.
+     */
+    boolean hasPlace;
+    String placeId;
+    double placeLatitude1;
+    double placeLongitude1;
+    double placeLatitude2;
+    double placeLongitude2;
+
+    /**
+     * False if the tweet doesn't ship any location: only its user is stored.
+     */
+    boolean located;
+    double latitude;
+    double longitude;
+    /**
+     * The country at each level, coarse to fine.
+     */
+    final String[] countries;
+
+    /**
+     * True once the tweet has been stored, see {@link Storage#insertRecords(java.util.List)}.
+     */
+    boolean stored;
+    /**
+     * True if storing the tweet has given its user its first label,
+     * i.e. the tweet is the first located one of its user.
+     */
+    boolean labeled;
+
+    /**
+     * @param levels the number of levels of the geography.
+     */
+    TweetRecord(int levels) {
+        this.countries = new String[levels];
+    }
+
+    /**
+     * Extract the fields of a status, overwriting the current ones.
+     *
+     * @param status the status.
+     * @return this record.
+     */
+    TweetRecord set(Status status) {
+        this.id = status.getId();
+        this.day = Storage.dayOf(status.getCreatedAt());
+
+        final User user = status.getUser();
+        this.hasUser = user != null;
+        this.userId = user != null ? user.getId() : 0;
+        this.userName = user != null ? user.getName() : null;
+        this.lang = user != null ? user.getLang() : null;
+        this.location = user != null ? user.getLocation() : null;
+        this.utcOffset = user != null ? user.getUtcOffset() : -1;
+        this.timezone = user != null ? user.getTimeZone() : null;
+
+        final GeoLocation geoLocation = status.getGeoLocation();
+        final Place place = status.getPlace();
+        final GeoLocation[][] boundingBox = place != null ? place.getBoundingBoxCoordinates() : null;
+        this.hasGeo = geoLocation != null;
+        this.hasPlace = !this.hasGeo && boundingBox != null && boundingBox.length > 0;
+        this.placeId = null;
+
+        if (this.hasGeo) {
+            this.latitude = geoLocation.getLatitude();
+            this.longitude = geoLocation.getLongitude();
+        } else if (this.hasPlace) {
+            final GeoLocation[] last = boundingBox[boundingBox.length - 1];
+            this.placeId = place.getId();
+            this.placeLatitude1 = boundingBox[0][0].getLatitude();
+            this.placeLongitude1 = boundingBox[0][0].getLongitude();
+            this.placeLatitude2 = last[last.length - 1].getLatitude();
+            this.placeLongitude2 = last[last.length - 1].getLongitude();
+        }
+
+        this.located = false;
+        this.stored = false;
+        this.labeled = false;
+        return this;
+    }
+
+    /**
+     * Drop the references to the strings of the last status,
+     * so that a pooled record doesn't keep them alive until it is reused.
+     */
+    void clear() {
+        this.userName = null;
+        this.lang = null;
+        this.location = null;
+        this.timezone = null;
+        this.placeId = null;
+    }
+}
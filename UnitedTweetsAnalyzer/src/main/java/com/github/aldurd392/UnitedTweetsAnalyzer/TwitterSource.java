@@ -0,0 +1,69 @@
+package com.github.aldurd392.UnitedTweetsAnalyzer;
+
+import twitter4j.FilterQuery;
+import twitter4j.StatusListener;
+import twitter4j.TwitterStream;
+import twitter4j.TwitterStreamFactory;
+import twitter4j.conf.ConfigurationBuilder;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The Twitter stream, filtered according to a {@link Streamer.Bias}.
+ * Credentials are read from the twitter4j configuration.
+ */
+class TwitterSource implements StreamSource {
+    private final Streamer.Bias bias;
+    private final boolean keepJSON;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private TwitterStream twitterStream = null;
+
+    /**
+     * @param bias     parameter indicating how the stream should be filtered.
+     * @param keepJSON if set, the raw JSON of the statuses is kept, e.g. for the {@link Journal}.
+     */
+    public TwitterSource(Streamer.Bias bias, boolean keepJSON) {
+        assert (bias != null);
+
+        this.bias = bias;
+        this.keepJSON = keepJSON;
+    }
+
+    @Override
+    public void start(StatusListener listener) {
+        this.twitterStream = new TwitterStreamFactory(
+                new ConfigurationBuilder().setJSONStoreEnabled(this.keepJSON).build()
+        ).getInstance();
+        this.twitterStream.addListener(listener);
+
+        final FilterQuery filterQuery = new FilterQuery();
+        switch (this.bias) {
+            case geo:
+                filterQuery.locations(Constants.boundingBox);
+                this.twitterStream.filter(filterQuery);
+                break;
+            case all_geo:
+                filterQuery.locations(Constants.worldWideBox);
+                this.twitterStream.filter(filterQuery);
+                break;
+            case all:
+                this.twitterStream.sample();
+                break;
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        this.stopped.await();
+    }
+
+    @Override
+    public void stop() {
+        if (this.twitterStream != null) {
+            this.twitterStream.clearListeners();
+            this.twitterStream.cleanUp();
+        }
+        this.stopped.countDown();
+    }
+}
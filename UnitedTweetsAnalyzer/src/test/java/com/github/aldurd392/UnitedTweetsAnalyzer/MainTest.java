@@ -1,11 +1,50 @@
 package com.github.aldurd392.UnitedTweetsAnalyzer;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKTReader;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 import org.geotools.geometry.jts.JTSFactoryFinder;
+import twitter4j.Status;
+import twitter4j.StatusAdapter;
+import twitter4j.TwitterObjectFactory;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Evaluation;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.stemmers.SnowballStemmer;
+import weka.filters.Filter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Unit test for simple Main.
@@ -41,6 +80,74 @@ public class MainTest
         assertEquals(Storage.stemLocation("                 {  ITALIA   }"), "italia");
     }
 
+    /**
+     * The regex based location stemming, as it was before {@link LocationNormalizer}.
+     */
+    private static String legacyStemLocation(String location) {
+        if (location == null || location.length() == 0) {
+            return null;
+        }
+
+        location = Pattern.compile("[^\\p{L}\\p{Z}]").matcher(location).replaceAll(" ");
+        location = Pattern.compile("\\s+").matcher(location).replaceAll(" ");
+
+        location = location.toLowerCase();
+        location = location.trim();
+
+        if (location.length() == 0) {
+            return null;
+        }
+
+        final SnowballStemmer stemmer = new SnowballStemmer();
+        final StringBuilder stringBuffer = new StringBuilder();
+        for (String w : location.split(" ")) {
+            stringBuffer.append(stemmer.stem(w));
+            stringBuffer.append(" ");
+        }
+
+        return stringBuffer.toString().trim();
+    }
+
+    /**
+     * Test that the single pass normalizer matches the regex based stemming.
+     */
+    public void testLocationNormalizer() {
+        final String[] locations = {
+                null, "", " ", "!!!", "Germany/Germany", "Germany , Germany",
+                "                 {  ITALIA   }", "Los Angeles, CA", "NYC\t\n(USA)",
+                "S\u00e3o Paulo - Brasil", "\u00a0Berlin\u00a0", "\u0130stanbul",
+                "\u039f\u0394\u039f\u03a3 \u0391\u0398\u0397\u039d\u0391\u03a3", "\u6771\u4eac",
+                "I \u2764\ufe0f NY \ud83d\uddfd", "\ud800broken surrogate",
+        };
+        for (String location : locations) {
+            assertEquals(legacyStemLocation(location), LocationNormalizer.normalize(location));
+        }
+
+        final String alphabet = " \t\n,./!{}_-1AaZz\u00c0\u00e9\u00df\u0130I\u0131\u03a3\u03c3\u0416\u6f22\u00a0\u3000\u2028";
+        final Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            final StringBuilder location = new StringBuilder();
+            for (int length = random.nextInt(30); length > 0; length--) {
+                location.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            assertEquals(legacyStemLocation(location.toString()), LocationNormalizer.normalize(location.toString()));
+        }
+    }
+
+    /**
+     * Test that cached stemmed locations match the computed ones.
+     */
+    public void testStemCache() {
+        final long hits = Storage.getStemCache().getHits();
+
+        assertEquals(Storage.stemLocation("Los Angeles, CA"), "los angel ca");
+        assertEquals(Storage.stemLocation("Los Angeles, CA"), "los angel ca");
+        assertEquals(Storage.stemLocation("!!!"), null);
+        assertEquals(Storage.stemLocation("!!!"), null);
+
+        assertEquals(Storage.getStemCache().getHits(), hits + 2);
+    }
+
     /**
      * Test the envelope box containment.
      */
@@ -67,4 +174,1236 @@ public class MainTest
         point.geometryChanged();
         assertFalse(Geography.isInsideEnvelope(point));
     }
+
+    /**
+     * Build a small geography: two adjacent states and an island.
+     */
+    private static List<Map.Entry<String, MultiPolygon>> testPolygons() throws Exception {
+        final WKTReader reader = new WKTReader();
+        final List<Map.Entry<String, MultiPolygon>> polygons = new ArrayList<>();
+
+        polygons.add(new AbstractMap.SimpleImmutableEntry<>("WEST", (MultiPolygon) reader.read(
+                "MULTIPOLYGON(((-120 30, -100 30, -100 45, -120 45, -120 30)))")));
+        polygons.add(new AbstractMap.SimpleImmutableEntry<>("EAST", (MultiPolygon) reader.read(
+                "MULTIPOLYGON(((-100 30, -80 30, -90 45, -100 45, -100 30)))")));
+        polygons.add(new AbstractMap.SimpleImmutableEntry<>("ISLAND", (MultiPolygon) reader.read(
+                "MULTIPOLYGON(((-75 25, -70 26, -73 32, -75 25)))")));
+
+        return polygons;
+    }
+
+    /**
+     * Test that the pre-classification grid gives the same answers as the exact lookup.
+     */
+    public void testGridLookup() throws Exception {
+        final Geography exact = new Geography(testPolygons(), 0);
+        final Geography gridded = new Geography(testPolygons(), 64);
+
+        assertEquals(exact.query(new Coordinate(-110, 40)), "WEST");
+        assertEquals(exact.query(new Coordinate(-95, 35)), "EAST");
+        assertEquals(exact.query(new Coordinate(-73, 28)), "ISLAND");
+        assertEquals(exact.query(new Coordinate(0, 0)), Geography.UNKNOWN_COUNTRY);
+
+        final double minX = Constants.envelopeBox.getMinX();
+        final double minY = Constants.envelopeBox.getMinY();
+        final double width = Constants.envelopeBox.getWidth();
+        final double height = Constants.envelopeBox.getHeight();
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            final Coordinate coordinate = new Coordinate(
+                    minX + random.nextDouble() * width,
+                    minY + random.nextDouble() * height
+            );
+            assertEquals(exact.query(coordinate), gridded.query(coordinate));
+        }
+
+        // Points lying on the polygons borders and on the cells edges.
+        for (int i = 0; i <= 64; i++) {
+            final Coordinate border = new Coordinate(-100, minY + i * height / 64);
+            assertEquals(exact.query(border), gridded.query(border));
+
+            final Coordinate edge = new Coordinate(minX + i * width / 64, 40);
+            assertEquals(exact.query(edge), gridded.query(edge));
+        }
+    }
+
+    /**
+     * Test that a snapshot gives back the polygons it was written from, and the same lookups.
+     */
+    public void testSnapshot() throws Exception {
+        final List<Map.Entry<String, MultiPolygon>> polygons = testPolygons();
+        // Many parts, a hole and no name.
+        polygons.add(new AbstractMap.SimpleImmutableEntry<>(null, (MultiPolygon) new WKTReader().read(
+                "MULTIPOLYGON(((-95 24, -85 24, -85 29, -95 29, -95 24), (-92 25, -88 25, -88 28, -92 28, -92 25)), " +
+                        "((-84 24, -80 24, -80 28, -84 24)))")));
+
+        final File file = File.createTempFile("snapshot", GeographySnapshot.EXTENSION);
+        file.deleteOnExit();
+        GeographySnapshot.write(polygons, file.getPath());
+        final List<Map.Entry<String, MultiPolygon>> loaded = GeographySnapshot.read(file.getPath());
+
+        assertEquals(polygons.size(), loaded.size());
+        for (int i = 0; i < polygons.size(); i++) {
+            assertEquals(polygons.get(i).getKey(), loaded.get(i).getKey());
+            assertTrue(polygons.get(i).getValue().equalsExact(loaded.get(i).getValue()));
+        }
+        assertNull(loaded.get(3).getKey());
+
+        final Geography original = new Geography(polygons, 0);
+        final Geography reloaded = new Geography(loaded, 0);
+        assertEquals(reloaded.query(new Coordinate(-110, 40)), "WEST");
+        assertEquals(reloaded.query(new Coordinate(-95, 35)), "EAST");
+        assertEquals(reloaded.query(new Coordinate(-73, 28)), "ISLAND");
+        assertEquals(reloaded.query(new Coordinate(-90, 26.5)), Geography.UNKNOWN_COUNTRY);  // In the hole.
+        assertNull(reloaded.query(new Coordinate(-94, 24.5)));
+        assertNull(reloaded.query(new Coordinate(-81, 25)));
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            final double longitude = -130 + random.nextDouble() * 70;
+            final double latitude = 20 + random.nextDouble() * 30;
+            assertEquals(original.query(longitude, latitude), reloaded.query(longitude, latitude));
+        }
+
+        assertTrue(file.delete());
+    }
+
+    /**
+     * Test that batch queries give the same answers as single ones.
+     */
+    public void testBatchLookup() throws Exception {
+        final Geography geography = new Geography(testPolygons(), 0);
+
+        final int size = 50000;
+        final double[] longitudes = new double[size];
+        final double[] latitudes = new double[size];
+
+        final Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            longitudes[i] = -130 + random.nextDouble() * 70;
+            latitudes[i] = 20 + random.nextDouble() * 30;
+        }
+
+        final int[] countries = geography.queryIds(longitudes, latitudes);
+        for (int i = 0; i < size; i++) {
+            assertEquals(geography.query(longitudes[i], latitudes[i]), geography.getCountry(countries[i]));
+        }
+    }
+
+    /**
+     * Test the cascaded lookup: counties are only searched within their state.
+     */
+    public void testHierarchyLookup() throws Exception {
+        final WKTReader reader = new WKTReader();
+        final List<Map.Entry<String, MultiPolygon>> counties = new ArrayList<>();
+        counties.add(new AbstractMap.SimpleImmutableEntry<>("NORTH WEST", (MultiPolygon) reader.read(
+                "MULTIPOLYGON(((-120 38, -100 38, -100 45, -120 45, -120 38)))")));
+        counties.add(new AbstractMap.SimpleImmutableEntry<>("SOUTH WEST", (MultiPolygon) reader.read(
+                "MULTIPOLYGON(((-120 30, -100 30, -100 38, -120 38, -120 30)))")));
+        // Overlaps EAST too, but its interior point lies in WEST: it must never be returned within EAST.
+        counties.add(new AbstractMap.SimpleImmutableEntry<>("WIDE", (MultiPolygon) reader.read(
+                "MULTIPOLYGON(((-119 30, -95 30, -95 31, -119 31, -119 30)))")));
+
+        final List<List<Map.Entry<String, MultiPolygon>>> levels = new ArrayList<>();
+        levels.add(testPolygons());
+        levels.add(counties);
+        final GeographyHierarchy hierarchy = new GeographyHierarchy(levels, 64);
+        assertEquals(hierarchy.getLevels(), 2);
+
+        assertEquals(GeographyHierarchy.toString(hierarchy.query(-110, 40)), "[WEST, NORTH WEST]");
+        assertEquals(GeographyHierarchy.toString(hierarchy.query(-110, 35)), "[WEST, SOUTH WEST]");
+        assertEquals(GeographyHierarchy.toString(hierarchy.query(-96, 30.5)), "[EAST, UNKNOWN]");
+        assertEquals(GeographyHierarchy.toString(hierarchy.query(-73, 28)), "[ISLAND, UNKNOWN]");
+        assertEquals(GeographyHierarchy.toString(hierarchy.query(0, 0)), "[UNKNOWN, UNKNOWN]");
+
+        final double[] longitudes = {-110, -110, -96, -73, 0};
+        final double[] latitudes = {40, 35, 30.5, 28, 0};
+        final String[][] countries = hierarchy.query(longitudes, latitudes);
+        for (int i = 0; i < longitudes.length; i++) {
+            assertEquals(GeographyHierarchy.toString(countries[i]),
+                    GeographyHierarchy.toString(hierarchy.query(longitudes[i], latitudes[i])));
+        }
+    }
+
+    /**
+     * Test the long set against a HashSet, across many resizes.
+     */
+    public void testLongHashSet() {
+        final LongHashSet set = new LongHashSet();
+        final Set<Long> expected = new HashSet<>();
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // Small values collide often, large ones look like Twitter IDs.
+            final long value = i % 2 == 0 ? random.nextInt(1000) - 500 : random.nextLong();
+            assertEquals(set.add(value), expected.add(value));
+        }
+        assertEquals(set.add(0), expected.add(0L));
+        assertEquals(set.size(), expected.size());
+
+        for (long value = -1000; value < 1000; value++) {
+            assertEquals(set.contains(value), expected.contains(value));
+        }
+        for (Long value : expected) {
+            assertTrue(set.contains(value));
+        }
+
+        final LongHashSet copy = new LongHashSet(10);
+        copy.addAll(set);
+        assertEquals(copy.size(), set.size());
+
+        set.clear();
+        assertEquals(set.size(), 0);
+        assertFalse(set.contains(0));
+        assertTrue(copy.contains(0));
+    }
+
+    /**
+     * Test the shards paths and that users are spread evenly across shards.
+     */
+    public void testSharding() {
+        assertEquals(Storage.shardPath("users.db", 0), "users.db");
+        assertEquals(Storage.shardPath("users.db", 3), "users.shard3.db");
+        assertEquals(Storage.shardPath("users", 1), "users.shard1");
+
+        final int shards = 4;
+        final int[] users = new int[shards];
+        for (long userId = 1; userId <= 40000; userId++) {
+            final int shard = Storage.shardOf(userId, shards);
+            assertEquals(shard, Storage.shardOf(userId, shards));
+            users[shard]++;
+        }
+        for (int count : users) {
+            assertTrue(count > 9000 && count < 11000);
+        }
+    }
+
+    /**
+     * Test the naming of the daily partitions.
+     */
+    public void testPartitions() {
+        // 2015-06-01T23:59:59Z
+        final long day = Storage.dayOf(new Date(1433203199000L));
+        assertEquals(Storage.partitionTable(day), "TWEET_20150601");
+        assertEquals(Storage.dayOf(new Date(1433203200000L)), day + 1);
+        assertEquals(Storage.partitionDay("TWEET_20150601"), day);
+        assertEquals(Storage.partitionDay("TWEET"), -1);
+    }
+
+    /**
+     * Test that the journal starts a new segment on every start, and keeps a status per line.
+     */
+    public void testJournal() throws Exception {
+        final File directory = Files.createTempDirectory("journal").toFile();
+
+        Journal journal = new Journal(directory.getPath());
+        journal.append("{\"id\":1}");
+        journal.append("{\"text\":\"\u00e8\"}");
+        journal.close();
+        journal.append("{\"id\":3}");
+
+        journal = new Journal(directory.getPath());
+        journal.append("{\"id\":2}");
+
+        // The flusher syncs the last status without waiting for another one, nor for the close.
+        final File last = Journal.segments(directory)[1];
+        for (int i = 0; i < 50 && last.length() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(Files.readAllLines(last.toPath(), Journal.CHARSET), Arrays.asList("{\"id\":2}"));
+        journal.close();
+
+        final File[] segments = Journal.segments(directory);
+        assertEquals(segments.length, 2);
+        assertEquals(Files.readAllLines(segments[0].toPath(), Journal.CHARSET),
+                Arrays.asList("{\"id\":1}", "{\"text\":\"\u00e8\"}"));
+        assertEquals(Files.readAllLines(segments[1].toPath(), Journal.CHARSET),
+                Arrays.asList("{\"id\":2}"));
+
+        for (File segment : segments) {
+            assertTrue(segment.delete());
+        }
+        assertTrue(directory.delete());
+    }
+
+    /**
+     * @return the JSON of a status.
+     */
+    private static String journaledStatus(long id) {
+        return "{\"id\":" + id + ",\"created_at\":\"Mon Jan 05 10:00:00 +0000 2015\",\"text\":\"status\"," +
+                "\"user\":{\"id\":" + id + ",\"name\":\"user\"}}";
+    }
+
+    /**
+     * A storage recording the statuses handed over by the replayer,
+     * failing (i.e. interrupting the replay) after a number of batches.
+     */
+    private static class RecordingStorage extends Storage {
+        private final List<Long> ids;
+        private int batches;
+
+        RecordingStorage(String path, List<Long> ids, int batches) {
+            super(path);
+            this.ids = ids;
+            this.batches = batches;
+        }
+
+        @Override
+        public boolean insertRecords(List<TweetRecord> tweets) {
+            if (this.batches-- <= 0) {
+                return false;
+            }
+            for (TweetRecord tweet : tweets) {
+                this.ids.add(tweet.id);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Test that an interrupted replay resumes from its checkpoint:
+     * every status is stored once, and in order.
+     */
+    public void testReplayResume() throws Exception {
+        final File directory = Files.createTempDirectory("journal").toFile();
+        final File database = File.createTempFile("replay", ".db");
+        assertTrue(database.delete());  // The storage creates it.
+
+        Journal journal = new Journal(directory.getPath());
+        for (long id = 1; id <= 100; id++) {
+            journal.append(journaledStatus(id));
+        }
+        journal.close();
+        journal = new Journal(directory.getPath());
+        for (long id = 101; id <= 130; id++) {
+            journal.append(journaledStatus(id));
+        }
+        journal.close();
+
+        // The writer crashed in the middle of the last status.
+        final File[] segments = Journal.segments(directory);
+        final String partial = journaledStatus(131);
+        final int cut = partial.length() / 2;
+        Files.write(segments[1].toPath(), partial.substring(0, cut).getBytes(Journal.CHARSET),
+                StandardOpenOption.APPEND);
+
+        final List<Long> ids = new ArrayList<>();
+        Storage storage = new RecordingStorage(database.getPath(), ids, 2);
+        assertFalse(new Replayer(new Storage[]{storage}, directory.getPath(), 25).replay());
+        storage.close();
+        assertEquals(ids.size(), 50);
+
+        storage = new RecordingStorage(database.getPath(), ids, Integer.MAX_VALUE);
+        assertTrue(new Replayer(new Storage[]{storage}, directory.getPath(), 25).replay());
+        assertEquals(ids.size(), 130);
+
+        // The last status is complete now.
+        Files.write(segments[1].toPath(), (partial.substring(cut) + "\n").getBytes(Journal.CHARSET),
+                StandardOpenOption.APPEND);
+        assertTrue(new Replayer(new Storage[]{storage}, directory.getPath(), 25).replay());
+        storage.close();
+
+        assertEquals(ids.size(), 131);
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i), Long.valueOf(i + 1));
+        }
+
+        // The checkpoint has been replaced atomically.
+        for (File file : directory.listFiles()) {
+            assertFalse(file.getName().endsWith(".tmp"));
+            assertTrue(file.delete());
+        }
+        assertTrue(directory.delete());
+        assertTrue(database.delete());
+    }
+
+    /**
+     * A storage recording the size of the batches handed over by the ingester.
+     */
+    private static class BatchStorage extends Storage {
+        private final List<Integer> batches = new ArrayList<>();
+
+        BatchStorage(String path) {
+            super(path);
+        }
+
+        @Override
+        public synchronized boolean insertRecords(List<TweetRecord> tweets) {
+            this.batches.add(tweets.size());
+            return true;
+        }
+
+        synchronized List<Integer> getBatches() {
+            return new ArrayList<>(this.batches);
+        }
+    }
+
+    /**
+     * Wait (up to 5 s) for the ingester to store a number of statuses.
+     */
+    private static void awaitStored(Ingester ingester, long stored) throws InterruptedException {
+        for (int i = 0; i < 500 && ingester.getStored() < stored; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(ingester.getStored(), stored);
+    }
+
+    /**
+     * Test that the ingester commits a batch once full or once its deadline expires,
+     * drops the statuses exceeding its capacity and drains its queue on close.
+     */
+    public void testIngester() throws Exception {
+        final File database = File.createTempFile("ingester", ".db");
+        assertTrue(database.delete());  // The storage creates it.
+        final BatchStorage storage = new BatchStorage(database.getPath());
+
+        // Full batches: the deadline is far away.
+        Ingester ingester = new Ingester(new Storage[]{storage}, 100, 10, 60000, 1);
+        ingester.start();
+        for (long id = 1; id <= 30; id++) {
+            assertTrue(ingester.offer(TwitterObjectFactory.createStatus(journaledStatus(id))));
+        }
+        awaitStored(ingester, 30);
+        assertEquals(storage.getBatches(), Arrays.asList(10, 10, 10));
+        ingester.close();
+
+        // A batch that won't be filled is committed on its deadline, before the close.
+        ingester = new Ingester(new Storage[]{storage}, 100, 100, 50, 1);
+        ingester.start();
+        for (long id = 31; id <= 35; id++) {
+            assertTrue(ingester.offer(TwitterObjectFactory.createStatus(journaledStatus(id))));
+        }
+        awaitStored(ingester, 5);
+        assertEquals(storage.getBatches(), Arrays.asList(10, 10, 10, 5));
+        ingester.close();
+
+        // Not started yet: the statuses past the capacity are dropped...
+        ingester = new Ingester(new Storage[]{storage}, 5, 100, 60000, 1);
+        for (long id = 36; id <= 43; id++) {
+            assertEquals(ingester.offer(TwitterObjectFactory.createStatus(journaledStatus(id))), id < 41);
+        }
+        assertEquals(ingester.getQueueDepth(), 5);
+        assertEquals(ingester.getDropped(), 3);
+
+        // ... and the queued ones are stored on close, without waiting for the deadline.
+        ingester.start();
+        ingester.close();
+        assertEquals(ingester.getStored(), 5);
+        assertEquals(ingester.getQueueDepth(), 0);
+        assertEquals(storage.getBatches(), Arrays.asList(10, 10, 10, 5, 5));
+
+        // Once closed, statuses are refused.
+        assertFalse(ingester.offer(TwitterObjectFactory.createStatus(journaledStatus(44))));
+        assertEquals(ingester.getDropped(), 4);
+
+        storage.close();
+        assertTrue(database.delete());
+    }
+
+    /**
+     * Test that the synthetic source honours its mix of locations and users.
+     */
+    public void testSyntheticSource() throws Exception {
+        final List<Status> statuses = new ArrayList<>();
+        final StreamSource source = Streamer.createSource(
+                "synthetic:count=10000,geo=0.5,place=0.25,repeat=0.9,seed=1", Streamer.Bias.geo, false);
+        source.start(new StatusAdapter() {
+            @Override
+            public void onStatus(Status status) {
+                statuses.add(status);
+            }
+        });
+        source.join();
+
+        int geo = 0;
+        int place = 0;
+        final Set<Long> users = new HashSet<>();
+        for (Status status : statuses) {
+            if (status.getGeoLocation() != null) {
+                geo++;
+            } else if (status.getPlace() != null) {
+                place++;
+            }
+            users.add(status.getUser().getId());
+        }
+
+        assertEquals(statuses.size(), 10000);
+        assertTrue(geo > 4500 && geo < 5500);
+        assertTrue(place > 2000 && place < 3000);
+        assertTrue(users.size() > 800 && users.size() < 1200);
+
+        try {
+            Streamer.createSource("synthetic:geo=0.8,place=0.8", Streamer.Bias.geo, false);
+            fail("Invalid options accepted.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Test that a record doesn't hold on to its status, and that a released record can be reused.
+     */
+    public void testTweetRecord() throws Exception {
+        // Only flat values: nothing of the twitter4j object graph survives set().
+        for (Field field : TweetRecord.class.getDeclaredFields()) {
+            final Class<?> type = field.getType();
+            assertTrue(field.getName(), type.isPrimitive() || type == String.class || type == String[].class);
+        }
+
+        final List<Status> statuses = new ArrayList<>();
+        final StreamSource source = Streamer.createSource(
+                "synthetic:count=100,geo=0.5,place=0.5,seed=1", Streamer.Bias.geo, false);
+        source.start(new StatusAdapter() {
+            @Override
+            public void onStatus(Status status) {
+                statuses.add(status);
+            }
+        });
+        source.join();
+
+        final TweetRecord record = new TweetRecord(1);
+        for (Status status : statuses) {
+            record.set(status).clear();
+            assertNull(record.userName);
+            assertNull(record.lang);
+            assertNull(record.location);
+            assertNull(record.timezone);
+            assertNull(record.placeId);
+        }
+
+        // Reused, a record carries nothing over from its previous status.
+        Status place = null;
+        Status geo = null;
+        for (Status status : statuses) {
+            if (status.getGeoLocation() != null) {
+                geo = status;
+            } else {
+                place = status;
+            }
+        }
+        assertNotNull(place);
+        assertNotNull(geo);
+
+        record.set(place);
+        record.located = true;
+        record.stored = true;
+        record.labeled = true;
+        record.clear();
+        record.set(geo);
+        assertEquals(record.id, geo.getId());
+        assertEquals(record.location, geo.getUser().getLocation());
+        assertTrue(record.hasGeo);
+        assertFalse(record.hasPlace);
+        assertNull(record.placeId);
+        assertFalse(record.located);
+        assertFalse(record.stored);
+        assertFalse(record.labeled);
+    }
+
+    /**
+     * @return an empty dataset of users: their language (en, es, fr),
+     * optionally their UTC offset (-5, -6, -8), and their country as the class.
+     */
+    private static Instances usersHeader(boolean utcOffset, String... countries) {
+        final ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute(Storage.LANG, Arrays.asList("en", "es", "fr")));
+        if (utcOffset) {
+            attributes.add(new Attribute(Storage.UTC_OFFSET, Arrays.asList("-5", "-6", "-8")));
+        }
+        attributes.add(new Attribute(Storage.COUNTRY, Arrays.asList(countries)));
+        final Instances data = new Instances("users", attributes, 300);
+        data.setClassIndex(attributes.size() - 1);
+        return data;
+    }
+
+    /**
+     * @param rates for the language, and then the UTC offset if given:
+     *              how often it matches the country (by index), instead of being random.
+     * @return 300 users from CA, NY and TX, always the same ones.
+     */
+    private static Instances usersData(double... rates) {
+        assert rates.length == 1 || rates.length == 2;
+
+        final Instances data = usersHeader(rates.length == 2, "CA", "NY", "TX");
+        final Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            final double[] values = new double[rates.length + 1];
+            values[rates.length] = random.nextInt(3);
+            for (int attribute = 0; attribute < rates.length; attribute++) {
+                values[attribute] = random.nextDouble() < rates[attribute] ? values[rates.length] : random.nextInt(3);
+            }
+            data.add(new DenseInstance(1, values));
+        }
+        return data;
+    }
+
+    /**
+     * Test that the folds evaluated concurrently give the sequential results, with the same seed.
+     */
+    public void testParallelCrossValidation() throws Exception {
+        final Instances data = usersData(0.7, 0);
+
+        // Sequential, then 4 folds at once.
+        final int[] threads = {1, 4};
+        final Evaluation[] evaluations = new Evaluation[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final Learner learner = new Learner("nbayes", null, 0);
+            learner.setSeed(42L);
+            learner.setThreads(threads[i]);
+            learner.setTrainingData(new Instances(data));
+            evaluations[i] = learner.buildAndEvaluate(10);
+        }
+
+        assertEquals(evaluations[0].numInstances(), 300.0, 1e-9);
+        assertEquals(evaluations[1].numInstances(), evaluations[0].numInstances(), 1e-9);
+        assertEquals(evaluations[1].pctCorrect(), evaluations[0].pctCorrect(), 1e-9);
+        assertEquals(evaluations[1].precision(2), evaluations[0].precision(2), 1e-9);
+        assertTrue(Arrays.deepEquals(evaluations[1].confusionMatrix(), evaluations[0].confusionMatrix()));
+        assertEquals(evaluations[1].meanAbsoluteError(), evaluations[0].meanAbsoluteError(), 1e-9);
+    }
+
+    /**
+     * Test that the classifiers evaluated concurrently on shared data
+     * give the results of a learner evaluated alone, with the same seed.
+     */
+    public void testParallelEvaluator() throws Exception {
+        final Instances data = usersData(0.7, 0.5);
+
+        final List<String> names = Arrays.asList("nbayes", "dtree", "reptree", "decision_stump", "htree");
+        final List<ParallelEvaluator.Result> results =
+                new ParallelEvaluator(names.size(), 0).evaluate(names, data, 42L, 10);
+        assertEquals(names.size(), results.size());
+
+        for (ParallelEvaluator.Result result : results) {
+            final Learner learner = new Learner(result.getName(), null, 0);
+            learner.setSeed(42L);
+            learner.setTrainingData(new Instances(data));
+            final Evaluation expected = learner.buildAndEvaluate(10);
+
+            final Evaluation actual = result.getEvaluation();
+            assertEquals(result.getName(), expected.numInstances(), actual.numInstances(), 1e-9);
+            assertEquals(result.getName(), expected.pctCorrect(), actual.pctCorrect(), 1e-9);
+            assertEquals(result.getName(), expected.weightedPrecision(), actual.weightedPrecision(), 1e-9);
+            assertEquals(result.getName(), expected.meanAbsoluteError(), actual.meanAbsoluteError(), 1e-9);
+            assertTrue(result.getName(), Arrays.deepEquals(expected.confusionMatrix(), actual.confusionMatrix()));
+        }
+
+        // The shared instances are left untouched.
+        assertEquals(300, data.numInstances());
+    }
+
+    /**
+     * Test that a saved model labels users loaded with another header as the trained classifier does.
+     */
+    public void testModel() throws Exception {
+        final Instances data = usersData(0.9);
+
+        final Learner learner = new Learner("nbayes", null, 0);
+        learner.setTrainingData(data);
+        final Model trained = learner.buildModel();
+
+        final File file = File.createTempFile("model", ".model");
+        trained.save(file.getPath());
+        final Model model = Model.load(file.getPath());
+        assertTrue(file.delete());
+
+        // Unlabeled users: they come with their ID, and their nominal values in another order.
+        final ArrayList<Attribute> userAttributes = new ArrayList<>();
+        userAttributes.add(new Attribute(Storage.ID));
+        userAttributes.add(new Attribute(Storage.LANG, Arrays.asList("fr", "de", "en", "es")));
+        final Instances users = new Instances("unlabeled", userAttributes, 4);
+        for (int i = 0; i < 4; i++) {
+            users.add(new DenseInstance(1, new double[]{i, i}));
+        }
+
+        final String[] countries = {"TX", null, "CA", "NY"};
+        for (int i = 0; i < users.numInstances(); i++) {
+            final Instance user = users.instance(i);
+            if (countries[i] != null) {
+                assertEquals(model.classify(user), countries[i]);
+            } else {
+                // Unknown language, the model sees it as missing.
+                assertNotNull(model.classify(user));
+            }
+        }
+
+        // Keep learning: english speakers move to Texas.
+        assertTrue(model.isUpdateable());
+        final Map<String, Object> english = new HashMap<>();
+        english.put(Storage.LANG, "en");
+        english.put(Storage.COUNTRY, "TX");
+        for (int i = 0; i < 500; i++) {
+            assertTrue(model.update(english));
+        }
+        assertEquals(model.classify(english), "TX");
+
+        english.put(Storage.COUNTRY, "FL");
+        assertFalse(model.update(english));
+
+        // A classifier without any opinion leaves the user unlabeled, instead of picking the first class.
+        final Model undecided = new Model(new AbstractClassifier() {
+            @Override
+            public void buildClassifier(Instances instances) {
+            }
+
+            @Override
+            public double[] distributionForInstance(Instance instance) {
+                return new double[instance.numClasses()];
+            }
+        }, data, new Filter[0], data);
+        assertNull(undecided.classify(english));
+        assertNull(undecided.classify(users.instance(0)));
+        assertNull(undecided.classifyAll(Collections.singletonList(english))[0]);
+    }
+
+    /**
+     * @return a model trained against a user per row of values (language, country).
+     */
+    private static Model buildUsersModel(List<double[]> users) throws Exception {
+        final Instances data = usersHeader(false, "WEST", "EAST", "ISLAND");
+        for (double[] user : users) {
+            data.add(new DenseInstance(1, user));
+        }
+
+        final Learner learner = new Learner("nbayes", null, 0);
+        learner.setTrainingData(data);
+        return learner.buildModel();
+    }
+
+    /**
+     * @return a located status of a user, as in the stream.
+     */
+    private static Status locatedStatus(long id, long userId, double longitude, double latitude) throws Exception {
+        return TwitterObjectFactory.createStatus(
+                "{\"id\":" + id + ",\"created_at\":\"Mon Jan 05 10:00:00 +0000 2015\",\"text\":\"status\"," +
+                        "\"user\":{\"id\":" + userId + ",\"name\":\"user\",\"lang\":\"en\"}," +
+                        "\"coordinates\":{\"type\":\"Point\",\"coordinates\":[" + longitude + "," + latitude + "]}}");
+    }
+
+    /**
+     * @return the label of a user and the tweets it counts, one string per row of the label table.
+     */
+    private static List<String> userLabels(String database, long userId) throws Exception {
+        final List<String> labels = new ArrayList<>();
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + database);
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNTRY, TWEETS FROM USER_LABEL WHERE ID = " + userId)) {
+            while (rs.next()) {
+                labels.add(rs.getString(1) + " " + rs.getInt(2));
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Test that storing a tweet updates the label row of its user,
+     * and that storing it again neither duplicates the row nor counts the tweet twice.
+     */
+    public void testUserLabel() throws Exception {
+        final List<List<Map.Entry<String, MultiPolygon>>> levels = new ArrayList<>();
+        levels.add(testPolygons());
+        final File database = File.createTempFile("label", ".db");
+        assertTrue(database.delete());  // The storage creates it.
+        final Storage storage = new Storage(new GeographyHierarchy(levels, 0), database.getPath());
+
+        storage.insertTweet(locatedStatus(1, 7, -110, 40));  // WEST.
+        assertEquals(Arrays.asList("WEST 1"), userLabels(database.getPath(), 7));
+        storage.insertTweet(locatedStatus(1, 7, -110, 40));
+        assertEquals(Arrays.asList("WEST 1"), userLabels(database.getPath(), 7));
+
+        // On ties the user keeps its label, until another country overtakes it.
+        storage.insertTweet(locatedStatus(2, 7, -95, 35));  // EAST.
+        assertEquals(Arrays.asList("WEST 1"), userLabels(database.getPath(), 7));
+        assertTrue(storage.insertTweets(Arrays.asList(locatedStatus(3, 7, -95, 35), locatedStatus(2, 7, -95, 35))));
+        assertEquals(Arrays.asList("EAST 2"), userLabels(database.getPath(), 7));
+
+        storage.insertTweet(locatedStatus(3, 7, -95, 35));
+        assertEquals(Arrays.asList("EAST 2"), userLabels(database.getPath(), 7));
+
+        storage.close();
+        assertTrue(database.delete());
+    }
+
+    /**
+     * The centers of the test polygons, see {@link #testPolygons()}.
+     */
+    private final static double[] WEST = {-110, 40};
+    private final static double[] EAST = {-95, 35};
+    private final static double[] ISLAND = {-73, 28};
+
+    /**
+     * @return a prepared tweet of a user, created on a day at a point.
+     */
+    private static TweetRecord storedRecord(Storage storage, long id, long userId, long day, double[] point) {
+        final TweetRecord record = storage.newRecord();
+        record.id = id;
+        record.day = day;
+        record.hasUser = true;
+        record.userId = userId;
+        record.userName = "user" + userId;
+        record.utcOffset = -1;
+        record.hasGeo = true;
+        record.longitude = point[0];
+        record.latitude = point[1];
+        storage.prepare(record);
+        return record;
+    }
+
+    /**
+     * @return the test polygons, with WEST and EAST swapped.
+     */
+    private static List<List<Map.Entry<String, MultiPolygon>>> swappedLevels() throws Exception {
+        final List<Map.Entry<String, MultiPolygon>> polygons = new ArrayList<>();
+        for (Map.Entry<String, MultiPolygon> polygon : testPolygons()) {
+            final String name = polygon.getKey();
+            polygons.add(new AbstractMap.SimpleImmutableEntry<>(
+                    "WEST".equals(name) ? "EAST" : "EAST".equals(name) ? "WEST" : name, polygon.getValue()));
+        }
+
+        final List<List<Map.Entry<String, MultiPolygon>>> levels = new ArrayList<>();
+        levels.add(polygons);
+        return levels;
+    }
+
+    /**
+     * Test the users labels across the daily partitions:
+     * labels over a window of more partitions than a compound SELECT may read,
+     * labels surviving the retention, and labels following the relabeled tweets.
+     */
+    public void testPartitionLabels() throws Exception {
+        final List<List<Map.Entry<String, MultiPolygon>>> levels = new ArrayList<>();
+        levels.add(testPolygons());
+        final File database = File.createTempFile("partitions", ".db");
+        assertTrue(database.delete());  // The storage creates it.
+        Storage storage = new Storage(new GeographyHierarchy(levels, 0), database.getPath());
+
+        final long today = Storage.dayOf(null);
+        final List<TweetRecord> records = new ArrayList<>();
+        long id = 1;
+        // User 3 tweets from WEST every day: a partition per day.
+        for (long day = today - 599; day <= today; day++) {
+            records.add(storedRecord(storage, id++, 3, day, WEST));
+        }
+        for (long day = today - 600; day < today - 597; day++) {
+            records.add(storedRecord(storage, id++, 1, day, WEST));
+        }
+        records.add(storedRecord(storage, id++, 1, today - 1, EAST));
+        records.add(storedRecord(storage, id++, 1, today, EAST));
+        records.add(storedRecord(storage, id++, 2, today - 700, ISLAND));
+        // A tie: user 6 keeps the first country.
+        records.add(storedRecord(storage, id++, 6, today, ISLAND));
+        records.add(storedRecord(storage, id++, 6, today, WEST));
+        assertTrue(storage.insertRecords(records));
+        assertTrue(storage.tweetTables().size() > 600);
+
+        assertEquals(Arrays.asList("WEST 3"), userLabels(database.getPath(), 1));
+        assertEquals(Arrays.asList("ISLAND 1"), userLabels(database.getPath(), 2));
+        assertEquals(Arrays.asList("WEST 600"), userLabels(database.getPath(), 3));
+        assertEquals(Arrays.asList("ISLAND 1"), userLabels(database.getPath(), 6));
+
+        // The labels within a window, from the partitions of its days only.
+        for (int window : new int[]{1000, 2}) {
+            final Map<Long, String> labels = new HashMap<>();
+            try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + database.getPath());
+                 Statement stmt = c.createStatement()) {
+                for (String statement : Storage.readerStatements(database.getPath(), 1, window)) {
+                    stmt.execute(statement);
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT ID, COUNTRY, TWEETS FROM USER_LABEL")) {
+                    while (rs.next()) {
+                        labels.put(rs.getLong(1), rs.getString(2) + " " + rs.getInt(3));
+                    }
+                }
+            }
+
+            if (window == 1000) {
+                assertEquals("WEST 3", labels.get(1L));
+                assertEquals("ISLAND 1", labels.get(2L));
+                assertEquals("WEST 600", labels.get(3L));
+            } else {
+                assertEquals("EAST 2", labels.get(1L));
+                assertNull(labels.get(2L));
+                assertEquals("WEST 2", labels.get(3L));
+            }
+            // Without a current label, ties go to the first country by name.
+            assertEquals("ISLAND 1", labels.get(6L));
+        }
+
+        // Dropping the old partitions keeps the counts of their tweets.
+        storage.setRetention(10);
+        assertTrue(storage.insertRecords(Collections.singletonList(storedRecord(storage, id++, 4, today, WEST))));
+        assertEquals(11, storage.tweetTables().size());  // TWEET, and the last 10 days.
+        assertEquals(Arrays.asList("WEST 3"), userLabels(database.getPath(), 1));
+        assertEquals(Arrays.asList("ISLAND 1"), userLabels(database.getPath(), 2));
+        assertEquals(Arrays.asList("WEST 600"), userLabels(database.getPath(), 3));
+        storage.close();
+
+        // Relabeling moves the counts of the stored tweets only.
+        storage = new Storage(new GeographyHierarchy(swappedLevels(), 0), database.getPath());
+        assertEquals(2 + 10 + 1 + 1, storage.relabelTweets(3));
+        assertEquals(0, storage.relabelTweets(3));
+        storage.close();
+
+        assertEquals(Arrays.asList("WEST 5"), userLabels(database.getPath(), 1));
+        assertEquals(Arrays.asList("ISLAND 1"), userLabels(database.getPath(), 2));
+        assertEquals(Arrays.asList("WEST 590"), userLabels(database.getPath(), 3));
+        assertEquals(Arrays.asList("EAST 1"), userLabels(database.getPath(), 4));
+        assertEquals(Arrays.asList("ISLAND 1"), userLabels(database.getPath(), 6));
+
+        assertTrue(database.delete());
+    }
+
+    /**
+     * Leave a relabeling checkpoint, as an interrupted run does.
+     */
+    private static void relabelCheckpoint(String database, String table, long lastId) throws Exception {
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + database);
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS RELABEL_CHECKPOINT " +
+                    "(LAST_ID UNSIGNED BIG INT NOT NULL, TABLE_NAME VARCHAR(50))");
+            stmt.executeUpdate("DELETE FROM RELABEL_CHECKPOINT");
+            stmt.executeUpdate("INSERT INTO RELABEL_CHECKPOINT (TABLE_NAME, LAST_ID) " +
+                    "VALUES ('" + table + "', " + lastId + ")");
+        }
+    }
+
+    /**
+     * Test that relabeling resumes after its checkpoint, even once the checkpointed partition is gone,
+     * and that it counts the tweets changed by this run only.
+     */
+    public void testRelabelResume() throws Exception {
+        final List<List<Map.Entry<String, MultiPolygon>>> levels = new ArrayList<>();
+        levels.add(testPolygons());
+        final File database = File.createTempFile("relabel", ".db");
+        assertTrue(database.delete());  // The storage creates it.
+        Storage storage = new Storage(new GeographyHierarchy(levels, 0), database.getPath());
+
+        // Three tweets a day for four days, from WEST: IDs 1-3, 4-6, 7-9, 10-12.
+        final long today = Storage.dayOf(null);
+        final List<TweetRecord> records = new ArrayList<>();
+        long id = 1;
+        for (long day = today - 3; day <= today; day++) {
+            for (int i = 0; i < 3; i++) {
+                records.add(storedRecord(storage, id++, 7, day, WEST));
+            }
+        }
+        assertTrue(storage.insertRecords(records));
+        storage.close();
+        assertEquals(Arrays.asList("WEST 12"), userLabels(database.getPath(), 7));
+
+        // Interrupted after tweet 5: the tweets after it only are relabeled.
+        relabelCheckpoint(database.getPath(), Storage.partitionTable(today - 2), 5);
+        storage = new Storage(new GeographyHierarchy(swappedLevels(), 0), database.getPath());
+        assertEquals(1 + 3 + 3, storage.relabelTweets(2));
+        storage.close();
+        assertEquals(Arrays.asList("EAST 7"), userLabels(database.getPath(), 7));
+
+        // Interrupted within a partition dropped since: the run goes on from the next one.
+        relabelCheckpoint(database.getPath(), Storage.partitionTable(today - 1), 8);
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + database.getPath());
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP TABLE " + Storage.partitionTable(today - 1));
+        }
+        storage = new Storage(new GeographyHierarchy(levels, 0), database.getPath());
+        assertEquals(3, storage.relabelTweets(2));
+        assertEquals(Arrays.asList("WEST 8"), userLabels(database.getPath(), 7));
+
+        // A completed run leaves no checkpoint: the next one starts over, and finds tweet 6 only.
+        assertEquals(1, storage.relabelTweets(2));
+        assertEquals(0, storage.relabelTweets(2));
+        storage.close();
+        assertEquals(Arrays.asList("WEST 9"), userLabels(database.getPath(), 7));
+
+        assertTrue(database.delete());
+    }
+
+    /**
+     * @return the IDs of the sampled users, and of the unlabeled ones in the classification view.
+     */
+    private static List<Set<Long>> sampledUsers(String database) throws Exception {
+        final List<Set<Long>> users = new ArrayList<>();
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + database);
+             Statement stmt = c.createStatement()) {
+            for (String query : new String[]{
+                    "SELECT ID FROM CLASSIFICATION_SAMPLE",
+                    "SELECT ID FROM classification_view WHERE COUNTRY IS NULL"}) {
+                final Set<Long> ids = new HashSet<>();
+                try (ResultSet rs = stmt.executeQuery(query)) {
+                    while (rs.next()) {
+                        ids.add(rs.getLong(1));
+                    }
+                }
+                users.add(ids);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Test that the sample of the users to be classified holds unlabeled users only,
+     * replaces the previous one, and follows the labels into the classification view.
+     */
+    public void testSampleUnlabeledUsers() throws Exception {
+        final List<List<Map.Entry<String, MultiPolygon>>> levels = new ArrayList<>();
+        levels.add(testPolygons());
+        final File database = File.createTempFile("sample", ".db");
+        assertTrue(database.delete());  // The storage creates it.
+        final Storage storage = new Storage(new GeographyHierarchy(levels, 0), database.getPath());
+        assertEquals(0, storage.sampleUnlabeledUsers(5));
+
+        // Users 1-10 tweet from WEST, users 11-40 don't locate their tweets.
+        final long today = Storage.dayOf(null);
+        final List<TweetRecord> records = new ArrayList<>();
+        for (long user = 1; user <= 40; user++) {
+            final TweetRecord record = storedRecord(storage, user, user, today, WEST);
+            if (user > 10) {
+                record.hasGeo = false;
+                storage.prepare(record);
+            }
+            records.add(record);
+        }
+        assertTrue(storage.insertRecords(records));
+
+        assertEquals(10, storage.sampleUnlabeledUsers(10));
+        List<Set<Long>> sampled = sampledUsers(database.getPath());
+        assertEquals(10, sampled.get(0).size());
+        assertEquals(sampled.get(0), sampled.get(1));
+        for (long user : sampled.get(0)) {
+            assertTrue(user > 10);
+        }
+
+        // A new sample replaces the previous one, and can't exceed the unlabeled users.
+        final int size = storage.sampleUnlabeledUsers(100);
+        assertTrue(size > 10 && size <= 30);
+        sampled = sampledUsers(database.getPath());
+        assertEquals(size, sampled.get(0).size());
+        assertEquals(sampled.get(0), sampled.get(1));
+
+        // A sampled user that gets labeled leaves the unlabeled users of the view.
+        final long labeled = sampled.get(0).iterator().next();
+        assertTrue(storage.insertRecords(Collections.singletonList(
+                storedRecord(storage, 100 + labeled, labeled, today, EAST))));
+        sampled = sampledUsers(database.getPath());
+        assertEquals(size, sampled.get(0).size());
+        assertEquals(size - 1, sampled.get(1).size());
+        assertFalse(sampled.get(1).contains(labeled));
+
+        storage.close();
+        assertTrue(database.delete());
+    }
+
+    /**
+     * Test that learning from the stored stream gives the model of the batch training:
+     * each user is learnt once, however many tweets it has.
+     */
+    public void testOnlineLearner() throws Exception {
+        final String[] langs = {"en", "es", "fr"};
+        final double[][] points = {{-110, 40}, {-95, 35}, {-73, 28}};  // WEST, EAST, ISLAND.
+
+        final List<double[]> users = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            users.add(new double[]{i % 3, i % 3});
+        }
+        final Model online = buildUsersModel(users);
+
+        final List<List<Map.Entry<String, MultiPolygon>>> levels = new ArrayList<>();
+        levels.add(testPolygons());
+        final File database = File.createTempFile("online", ".db");
+        assertTrue(database.delete());  // The storage creates it.
+        final Storage storage = new Storage(new GeographyHierarchy(levels, 0), database.getPath());
+
+        final File model = File.createTempFile("online", ".model");
+        final OnlineLearner learner = new OnlineLearner(online, model.getPath(), 300);
+        learner.start();
+
+        // Users tweet from their country, some of them many times.
+        final List<TweetRecord> stream = new ArrayList<>();
+        long id = 1;
+        for (int user = 0; user < 40; user++) {
+            final int lang = user % 3;
+            final int country = (user / 3) % 3;
+            users.add(new double[]{lang, country});
+
+            for (int tweet = 0; tweet <= (user % 4) * 5; tweet++) {
+                final TweetRecord record = storage.newRecord();
+                record.id = id++;
+                record.day = Storage.dayOf(new Date());
+                record.hasUser = true;
+                record.userId = 1000 + user;
+                record.userName = "user" + user;
+                record.lang = langs[lang];
+                record.utcOffset = -1;
+                record.hasGeo = true;
+                record.longitude = points[country][0];
+                record.latitude = points[country][1];
+                storage.prepare(record);
+                stream.add(record);
+            }
+        }
+        assertTrue(storage.insertRecords(stream));
+        for (TweetRecord record : stream) {
+            learner.offer(record);
+        }
+        learner.close();
+        storage.close();
+        assertTrue(model.delete());
+        assertTrue(database.delete());
+
+        final Model batch = buildUsersModel(users);
+        for (String lang : langs) {
+            final Map<String, Object> user = new HashMap<>();
+            user.put(Storage.LANG, lang);
+
+            final double[] expected = batch.getClassifier().distributionForInstance(batch.convertAttributes(user));
+            final double[] actual = online.getClassifier().distributionForInstance(online.convertAttributes(user));
+            assertEquals(actual.length, expected.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(actual[i], expected[i], 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Test that a model converting the location to words splits the locations it has never seen as well.
+     */
+    public void testLocationWordsModel() throws Exception {
+        final String[] locations = {"austin tx", "dallas tx", "el paso tx", "brooklyn ny", "albany ny", "buffalo ny"};
+        final ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute(Storage.LANG, Arrays.asList("en", "es")));
+        attributes.add(new Attribute(Storage.LOCATION, Arrays.asList(locations)));
+        attributes.add(new Attribute(Storage.COUNTRY, Arrays.asList("NY", "TX")));
+        final Instances data = new Instances("users", attributes, 300);
+        for (int i = 0; i < 300; i++) {
+            final int location = i % locations.length;
+            data.add(new DenseInstance(1, new double[]{i % 2, location, location < 3 ? 1 : 0}));
+        }
+
+        final Learner learner = new Learner("nbayes", null, 10);
+        learner.setUpTrainingData(data);
+        final Model model = learner.buildModel();
+
+        final Map<String, Object> texan = new HashMap<>();
+        texan.put(Storage.LANG, "en");
+        texan.put(Storage.LOCATION, "houston tx");
+        final Map<String, Object> known = new HashMap<>(texan);
+        known.put(Storage.LOCATION, "austin tx");
+        final Map<String, Object> newYorker = new HashMap<>(texan);
+        newYorker.put(Storage.LOCATION, "rochester ny");
+
+        final Instance instance = model.convertAttributes(texan);
+        final Attribute tx = instance.dataset().attribute("_LOCATIONtx");
+        final Attribute ny = instance.dataset().attribute("_LOCATIONny");
+        assertNotNull(tx);
+        assertNotNull(ny);
+        assertFalse(instance.isMissing(tx));
+        assertFalse(instance.isMissing(ny));
+
+        // The new location has the same words as the known one, and not those of New York.
+        assertEquals(instance.stringValue(tx), model.convertAttributes(known).stringValue(tx));
+        assertFalse(instance.stringValue(tx).equals(model.convertAttributes(newYorker).stringValue(tx)));
+
+        assertEquals(model.classify(texan), "TX");
+        assertEquals(model.classify(newYorker), "NY");
+
+        // The same holds once the model is saved.
+        final File file = File.createTempFile("model", ".model");
+        model.save(file.getPath());
+        final Model loaded = Model.load(file.getPath());
+        assertTrue(file.delete());
+        assertEquals(loaded.classify(texan), "TX");
+        assertEquals(loaded.classify(newYorker), "NY");
+    }
+
+    /**
+     * @return the body of a local GET request, trimmed.
+     */
+    private static String get(int port, String path) throws Exception {
+        final HttpURLConnection connection =
+                (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        assertEquals(connection.getResponseCode(), 200);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), "UTF-8"))) {
+            return reader.readLine().trim();
+        }
+    }
+
+    /**
+     * Test that concurrent lookups are batched, and answered as by the model.
+     */
+    public void testClassificationServer() throws Exception {
+        final Learner learner = new Learner("nbayes", null, 0);
+        learner.setTrainingData(usersData(1));
+        final ClassificationServer server = new ClassificationServer(learner.buildModel(), 0, 8, 64, 50);
+        server.start();
+
+        try {
+            final int port = server.getPort();
+            final String[] langs = {"en", "es", "fr"};
+            final String[] countries = {"CA", "NY", "TX"};
+            final String[] answers = new String[24];
+            final Thread[] clients = new Thread[answers.length];
+            for (int i = 0; i < clients.length; i++) {
+                final int client = i;
+                clients[i] = new Thread() {
+                    public void run() {
+                        try {
+                            answers[client] = get(port, "/classify?lang=" + langs[client % 3] +
+                                    "&location=Austin%2C%20TX&timezone=Central%20Time");
+                        } catch (Exception e) {
+                            answers[client] = e.toString();
+                        }
+                    }
+                };
+                clients[i].start();
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+
+            for (int i = 0; i < answers.length; i++) {
+                assertEquals(answers[i], countries[i % 3]);
+            }
+
+            final String stats = get(port, "/stats");
+            assertTrue(stats, stats.contains("\"lookups\": " + answers.length));
+            assertTrue(stats, stats.contains("\"errors\": 0"));
+
+            // Concurrent lookups share their batches.
+            final Matcher batches = Pattern.compile("\"batches\": (\\d+)").matcher(stats);
+            assertTrue(stats, batches.find());
+            assertTrue(stats, Integer.parseInt(batches.group(1)) < answers.length);
+        } finally {
+            server.stop();
+        }
+
+        assertEquals(ClassificationServer.percentile(new long[]{}, 0.5), 0);
+        final long[] latencies = new long[100];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = i + 1;
+        }
+        assertEquals(ClassificationServer.percentile(latencies, 0.5), 50);
+        assertEquals(ClassificationServer.percentile(latencies, 0.99), 99);
+    }
+
+    /**
+     * Test the LRU eviction and the hit rate of the cache.
+     */
+    public void testLruCache() {
+        final LruCache<String, Integer> cache = new LruCache<>(2);
+
+        cache.put("a", 1);
+        cache.put("b", 2);
+        assertEquals(cache.get("a"), Integer.valueOf(1));
+
+        // "b" is now the least recently used entry.
+        cache.put("c", 3);
+        assertNull(cache.get("b"));
+        assertEquals(cache.get("a"), Integer.valueOf(1));
+        assertEquals(cache.get("c"), Integer.valueOf(3));
+
+        assertEquals(cache.getHits(), 3);
+        assertEquals(cache.getMisses(), 1);
+        assertEquals(cache.getHitRate(), 0.75, 1e-9);
+    }
 }